@@ -0,0 +1,80 @@
+package GPSUtils;
+
+import Navigation.SyntheticImages;
+import boofcv.abst.feature.associate.AssociateDescription;
+import boofcv.abst.feature.associate.ScoreAssociation;
+import boofcv.abst.feature.detdesc.DetectDescribePoint;
+import boofcv.abst.feature.detect.interest.ConfigFastHessian;
+import boofcv.core.image.ConvertImage;
+import boofcv.factory.feature.associate.ConfigAssociateGreedy;
+import boofcv.factory.feature.associate.FactoryAssociation;
+import boofcv.factory.feature.detdesc.FactoryDetectDescribe;
+import boofcv.factory.geo.ConfigRansac;
+import boofcv.factory.geo.FactoryMultiViewRobust;
+import boofcv.struct.feature.TupleDesc_F64;
+import boofcv.struct.geo.AssociatedPair;
+import boofcv.struct.image.GrayF32;
+import boofcv.struct.image.GrayU8;
+import georegression.struct.homography.Homography2D_F64;
+import org.ddogleg.fitting.modelset.ModelMatcher;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/*
+Frame to frame homography used for dead reckoning, with the same SURF, association and RANSAC settings
+as GPSVideoTest.stitch. computeTransform describes both frames every time, the StitchingContext only the new one.
+PhaseCorrelationOdometry is what GPSVideoTest tracks with now, the features are only its fallback.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class ComputeTransformBenchmark {
+    GrayF32 imageA, imageB;
+    DetectDescribePoint<GrayF32, TupleDesc_F64> detDesc;
+    AssociateDescription<TupleDesc_F64> associate;
+    ModelMatcher<Homography2D_F64, AssociatedPair> modelMatcher;
+    StitchingContext<GrayF32, TupleDesc_F64> stitching;
+    PhaseCorrelationOdometry odometry;
+    boolean nextIsA;
+
+    @Setup
+    public void setup(){
+        GrayU8 texture = SyntheticImages.texture(1000, 600, 4);
+        imageA = ConvertImage.convert(texture.subimage(0, 0, 960, 540).clone(), (GrayF32) null);
+        imageB = ConvertImage.convert(texture.subimage(20, 10, 980, 550).clone(), (GrayF32) null);
+
+        detDesc = FactoryDetectDescribe.surfStable(new ConfigFastHessian(1, 2, 200, 1, 9, 4, 4), null, null, GrayF32.class);
+        ScoreAssociation<TupleDesc_F64> scorer = FactoryAssociation.scoreEuclidean(TupleDesc_F64.class, true);
+        associate = FactoryAssociation.greedy(new ConfigAssociateGreedy(true, 2), scorer);
+        modelMatcher = FactoryMultiViewRobust.homographyRansac(null, new ConfigRansac(60, 3));
+
+        stitching = StitchingContext.surf(GrayF32.class);
+        stitching.process(imageA);
+        odometry = new PhaseCorrelationOdometry();
+        odometry.process(imageA);
+    }
+
+    @Benchmark
+    public Homography2D_F64 computeTransform(){
+        return GPSVideoTest.computeTransform(imageA, imageB, detDesc, associate, modelMatcher);
+    }
+
+    // next frame of a video, alternating between the two images
+    @Benchmark
+    public Homography2D_F64 stitchingContextProcess(){
+        GrayF32 next = nextIsA ? imageA : imageB;
+        nextIsA = !nextIsA;
+        return stitching.process(next);
+    }
+
+    @Benchmark
+    public Homography2D_F64 phaseCorrelation(){
+        GrayF32 next = nextIsA ? imageA : imageB;
+        nextIsA = !nextIsA;
+        return odometry.process(next);
+    }
+}
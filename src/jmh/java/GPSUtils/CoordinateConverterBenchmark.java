@@ -0,0 +1,74 @@
+package GPSUtils;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/*
+Geodetic conversions done for every point of a track.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CoordinateConverterBenchmark {
+    // ariel
+    double lat = 32.09237848, lon = 35.17513055, height = 564.05338779;
+    double[] xyz;
+
+    // a track of a million points, as columns
+    static final int TRACK_POINTS = 1_000_000;
+    double[] trackLat, trackLon, trackHeight;
+    double[] trackX, trackY, trackZ;
+
+    @Setup
+    public void setup(){
+        xyz = CoordinateConverter.getXYZfromLatLonDegrees(lat, lon, height);
+
+        trackLat = new double[TRACK_POINTS];
+        trackLon = new double[TRACK_POINTS];
+        trackHeight = new double[TRACK_POINTS];
+        trackX = new double[TRACK_POINTS];
+        trackY = new double[TRACK_POINTS];
+        trackZ = new double[TRACK_POINTS];
+        for(int i = 0; i < TRACK_POINTS; i++){
+            // a few km north east of the start
+            trackLat[i] = lat + i*1e-8;
+            trackLon[i] = lon + i*1e-8;
+            trackHeight[i] = height + i*1e-4;
+        }
+        CoordinateConverter.getXYZfromLatLonDegrees(trackLat, trackLon, trackHeight, trackX, trackY, trackZ, TRACK_POINTS);
+    }
+
+    @Benchmark
+    public double[] xyzToLatLonRadians(){
+        return CoordinateConverter.xyzToLatLonRadians(xyz);
+    }
+
+    @Benchmark
+    public double[] xyzToLatLonDegrees(){
+        return CoordinateConverter.xyzToLatLonDegrees(xyz);
+    }
+
+    @Benchmark
+    public double[] getXYZfromLatLonDegrees(){
+        return CoordinateConverter.getXYZfromLatLonDegrees(lat, lon, height);
+    }
+
+    // the whole track, vectorized when the benchmark runs with --add-modules jdk.incubator.vector
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public double[] trackToLatLonDegrees(){
+        CoordinateConverter.xyzToLatLonDegrees(trackX, trackY, trackZ, trackLat, trackLon, trackHeight, TRACK_POINTS);
+        return trackLat;
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public double[] trackFromLatLonDegrees(){
+        CoordinateConverter.getXYZfromLatLonDegrees(trackLat, trackLon, trackHeight, trackX, trackY, trackZ, TRACK_POINTS);
+        return trackX;
+    }
+}
@@ -0,0 +1,58 @@
+package Navigation;
+
+import boofcv.struct.image.GrayF32;
+import boofcv.struct.image.Planar;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/*
+Per frame preprocessing: the allocating square + shrink path against the fused one writing into a buffer.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class ImageUtilsBenchmark {
+    @Param({"1080x1920"})
+    public String size;
+
+    Planar<GrayF32> frame;
+    Planar<GrayF32> square;
+    Planar<GrayF32> output = new Planar<>(GrayF32.class, 1, 1, 3);
+
+    @Setup
+    public void setup(){
+        String[] dims = size.split("x");
+        int width = Integer.parseInt(dims[0]), height = Integer.parseInt(dims[1]);
+        frame = SyntheticImages.toPlanar(SyntheticImages.texture(width, height, 1));
+        square = ImageUtils.squareImage(frame);
+    }
+
+    @Benchmark
+    public Planar<GrayF32> squareImage(){
+        return ImageUtils.squareImage(frame);
+    }
+
+    @Benchmark
+    public Planar<GrayF32> shrinkImage(){
+        return ImageUtils.shrinkImage(square, 2);
+    }
+
+    @Benchmark
+    public Planar<GrayF32> shrinkImageIntoBuffer(){
+        return ImageUtils.shrinkImage(square, 2, output);
+    }
+
+    @Benchmark
+    public Planar<GrayF32> squareThenShrink(){
+        return ImageUtils.shrinkImage(ImageUtils.squareImage(frame), 2);
+    }
+
+    @Benchmark
+    public Planar<GrayF32> squareAndShrinkImage(){
+        return ImageUtils.squareAndShrinkImage(frame, 2, output);
+    }
+}
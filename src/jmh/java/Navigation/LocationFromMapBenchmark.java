@@ -0,0 +1,69 @@
+package Navigation;
+
+import boofcv.abst.scene.SceneRecognition;
+import boofcv.struct.image.GrayF32;
+import boofcv.struct.image.GrayU8;
+import boofcv.struct.image.Planar;
+import org.bridj.util.Pair;
+import org.ddogleg.struct.DogArray;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/*
+One localization query against a small model trained on a generated map.
+The query cache is off, every call runs the query.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class LocationFromMapBenchmark {
+    static final int MAP_WIDTH = 960;
+    static final int MAP_HEIGHT = 540;
+    static final int NUM_TILES = 5;
+
+    LocationFromMap location;
+    Planar<GrayF32> queryPlanar;
+    GrayU8 queryGray;
+    Pair<Integer,Integer> near;
+
+    @Setup(Level.Trial)
+    public void setup(){
+        GrayU8 map = SyntheticImages.texture(MAP_WIDTH, MAP_HEIGHT, 2);
+        List<String> names = new ArrayList<>();
+        List<GrayU8> tiles = SyntheticImages.splitMap(map, NUM_TILES, names);
+        SceneRecognition<GrayU8> recognizer = LocationFromMap.buildModel(names, tiles);
+        recognizer.setVerbose(null, null);
+        location = new LocationFromMap(recognizer);
+        location.setQueryCache(null);
+
+        // query with a tile of the map, the drone looking straight at that spot
+        queryGray = tiles.get(tiles.size()/2);
+        queryPlanar = SyntheticImages.toPlanar(queryGray);
+        TileIndex index = location.getTileIndex();
+        int tile = index.findTile(names.get(tiles.size()/2));
+        near = new Pair<>(index.getMinX(tile) + 1, index.getMinY(tile) + 1);
+    }
+
+    @Benchmark
+    public DogArray<SceneRecognition.Match> getMatchesArrayPlanar(){
+        return location.getMatchesArray(queryPlanar, near);
+    }
+
+    @Benchmark
+    public DogArray<SceneRecognition.Match> getMatchesArrayGray(){
+        return location.getMatchesArray(queryGray, near);
+    }
+
+    // the same query from several threads on one model, time per query grows only if they compete for cores
+    @Benchmark
+    @Threads(4)
+    public DogArray<SceneRecognition.Match> getMatchesArrayConcurrent(){
+        return location.getMatchesArray(queryGray, near);
+    }
+}
@@ -0,0 +1,56 @@
+package Navigation;
+
+import boofcv.abst.scene.SceneRecognition;
+import boofcv.struct.image.GrayU8;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/*
+Building a model from a generated map with different numbers of threads, to see how training scales with cores.
+indexShared only adds the tiles to a vocabulary learned beforehand, which is what a new granularity costs.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ModelBuildBenchmark {
+    static final int MAP_WIDTH = 1920;
+    static final int MAP_HEIGHT = 1080;
+
+    @Param({"1", "2", "4", "8"})
+    int threads;
+
+    @Param({"5", "11"})
+    int numTiles;
+
+    List<String> names;
+    List<GrayU8> tiles;
+    SharedVocabulary<?> vocabulary;
+
+    @Setup(Level.Trial)
+    public void setup(){
+        names = new ArrayList<>();
+        GrayU8 map = SyntheticImages.texture(MAP_WIDTH, MAP_HEIGHT, 3);
+        tiles = SyntheticImages.splitMap(map, numTiles, names);
+        vocabulary = SharedVocabulary.learn(SyntheticImages.splitMap(map, 8, new ArrayList<>()), threads);
+    }
+
+    @Benchmark
+    public SceneRecognition<GrayU8> buildModel(){
+        SceneRecognition<GrayU8> recognizer = LocationFromMap.buildModel(names, tiles, threads);
+        recognizer.setVerbose(null, null);
+        return recognizer;
+    }
+
+    @Benchmark
+    public SceneRecognition<GrayU8> indexShared(){
+        SceneRecognition<GrayU8> recognizer = vocabulary.index(names, tiles, threads);
+        recognizer.setVerbose(null, null);
+        return recognizer;
+    }
+}
@@ -0,0 +1,43 @@
+package Navigation;
+
+import boofcv.struct.image.GrayF32;
+import boofcv.struct.image.GrayU8;
+import boofcv.struct.image.Planar;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/*
+Stitching one frame into the mosaic. The camera slides back and forth over a generated texture
+so consecutive frames always overlap.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+@State(Scope.Thread)
+public class MotionFromMosiacBenchmark {
+    static final int NUM_FRAMES = 60;
+
+    List<Planar<GrayF32>> frames;
+    MotionFromMosiac motion;
+    int frame;
+    int step = 1;
+
+    @Setup(Level.Trial)
+    public void setup(){
+        GrayU8 texture = SyntheticImages.texture(1200 + NUM_FRAMES, 1080 + NUM_FRAMES, 3);
+        frames = SyntheticImages.slidingFrames(texture, 1200, 1080, NUM_FRAMES);
+        motion = new MotionFromMosiac(frames.get(0));
+    }
+
+    @Benchmark
+    public boolean processFrame(){
+        // ping pong through the frames
+        if(frame + step < 0 || frame + step >= frames.size()) step = -step;
+        frame += step;
+        return motion.processFrame(frames.get(frame));
+    }
+}
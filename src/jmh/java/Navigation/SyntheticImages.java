@@ -0,0 +1,61 @@
+package Navigation;
+
+import boofcv.alg.misc.ImageMiscOps;
+import boofcv.core.image.ConvertImage;
+import boofcv.struct.image.GrayF32;
+import boofcv.struct.image.GrayU8;
+import boofcv.struct.image.Planar;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeMap;
+
+/*
+Generated inputs for the benchmarks, so they run without the videos and maps in resources/.
+The texture is random rectangles on noise, which gives the feature detectors plenty to find.
+ */
+public class SyntheticImages {
+
+    public static GrayU8 texture(int width, int height, long seed){
+        Random rand = new Random(seed);
+        GrayU8 image = new GrayU8(width, height);
+        ImageMiscOps.fillUniform(image, rand, 0, 60);
+        int numRectangles = width*height/400;
+        for(int i = 0; i < numRectangles; i++){
+            int w = 4 + rand.nextInt(30);
+            int h = 4 + rand.nextInt(30);
+            ImageMiscOps.fillRectangle(image, 60 + rand.nextInt(196), rand.nextInt(width), rand.nextInt(height), w, h);
+        }
+        return image;
+    }
+
+    // three band float copy of a gray image, the format frames come out of the video in
+    public static Planar<GrayF32> toPlanar(GrayU8 gray){
+        GrayF32 band = ConvertImage.convert(gray, (GrayF32) null);
+        Planar<GrayF32> image = new Planar<>(GrayF32.class, gray.width, gray.height, 3);
+        for(int i = 0; i < 3; i++){
+            image.getBand(i).setTo(band);
+        }
+        return image;
+    }
+
+    // frames of a camera sliding over the texture, one pixel per frame
+    public static List<Planar<GrayF32>> slidingFrames(GrayU8 texture, int width, int height, int numFrames){
+        List<Planar<GrayF32>> frames = new ArrayList<>();
+        for(int i = 0; i < numFrames; i++){
+            frames.add(toPlanar(texture.subimage(i, i/2, i + width, i/2 + height).clone()));
+        }
+        return frames;
+    }
+
+    /*
+    Cuts the map into a grid with MapToData.splitMap and returns the tile ids (names without extension)
+    in names, in the order they are added to a model.
+     */
+    public static List<GrayU8> splitMap(GrayU8 map, int numTiles, List<String> names){
+        TreeMap<String, GrayU8> tiles = MapToData.splitMap(map, numTiles);
+        names.addAll(tiles.keySet());
+        return new ArrayList<>(tiles.values());
+    }
+}
@@ -0,0 +1,71 @@
+package Navigation;
+
+import org.bridj.util.Pair;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/*
+Tile lookups done on every localization query: parsing tile names with MapToData against the TileIndex.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class TileLookupBenchmark {
+    @Param({"5", "11"})
+    public int numTiles;
+
+    List<String> names = new ArrayList<>();
+    TileIndex index;
+    int x = 349, y = 446;
+
+    @Setup
+    public void setup(){
+        // same grid as the real map, 1920x1080
+        int tileSize = 1080/numTiles;
+        for(int row = 0; row < 1080/tileSize; row++){
+            for(int col = 0; col < 1920/tileSize; col++){
+                String name = MapToData.tileCoordinatesToName(col, row, col*tileSize, row*tileSize,
+                        (col + 1)*tileSize, (row + 1)*tileSize);
+                names.add(name.substring(0, name.lastIndexOf('.')));
+            }
+        }
+        index = TileIndex.build(names);
+    }
+
+    @Benchmark
+    public void parseTileNames(Blackhole bh){
+        for(String name : names){
+            Pair<Pair<Integer,Integer>,Pair<Integer,Integer>> corners = MapToData.tileNameToCoordinate(name);
+            bh.consume(corners);
+            bh.consume(MapToData.tileNameToRowCol(name));
+        }
+    }
+
+    @Benchmark
+    public int tileContainingPoint(){
+        return index.tileContainingPoint(x, y);
+    }
+
+    // the filter run for every candidate of a query
+    @Benchmark
+    public int nearFilterAllTiles(){
+        int tile = index.tileContainingPoint(x, y);
+        int count = 0;
+        for(String name : names){
+            if(index.isEqualOrNear(tile, name)) count++;
+        }
+        return count;
+    }
+
+    @Benchmark
+    public TileIndex buildIndex(){
+        return TileIndex.build(names);
+    }
+}
@@ -11,6 +11,45 @@ public class CoordinateConverter {
     public static final double RADIANS_TO_DEGREES = 180.0 / Math.PI;
     public static final double DEGREES_TO_RADIANS = Math.PI / 180.0;
 
+    // WGS84, the same ellipsoid the single point conversions use
+    static final double A = 6378137.0; //semi major axis
+    static final double B = 6356752.3142; //semi minor axis
+    static final double E_SQUARED = (A * A - B * B) / (A * A); //first eccentricity squared
+    static final double E_PRIME_SQUARED = (A * A - B * B) / (B * B); //second eccentricity squared
+
+    /**
+     * The bulk conversions run on the JDK Vector API when the jdk.incubator.vector module is present
+     * (--add-modules jdk.incubator.vector), CoordinateConverterVector is on the class path and
+     * -Dgps.vectorConversion=false isn't set, otherwise one point at a time. Null when they don't.
+     */
+    static final BulkConversions VECTOR = loadVector();
+
+    /**
+     * Bulk conversions of the points that fill whole vectors, each returns how
+     * many points it converted, the rest are left to the scalar loop.
+     */
+    interface BulkConversions {
+        int xyzToLatLon(double[] x, double[] y, double[] z,
+                        double[] lat, double[] lon, double[] height, int length, double scale);
+
+        int getXYZfromLatLon(double[] lat, double[] lon, double[] height,
+                             double[] x, double[] y, double[] z, int length, double scale);
+    }
+
+    private static BulkConversions loadVector() {
+        if (!Boolean.parseBoolean(System.getProperty("gps.vectorConversion", "true"))
+                || ModuleLayer.boot().findModule("jdk.incubator.vector").isEmpty()) {
+            return null;
+        }
+        try {
+            // compiled on its own with the incubator module, see build.gradle
+            return (BulkConversions) Class.forName("GPSUtils.CoordinateConverterVector")
+                    .getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException | LinkageError e) {
+            return null;
+        }
+    }
+
     /**
      * Converts DIS xyz world coordinates to latitude and longitude (IN
      * RADIANS). This algorithm may not be 100% accurate near the poles. Uses
@@ -145,4 +184,163 @@ public class CoordinateConverter {
 
         return degrees;
     }
-}
\ No newline at end of file
+
+    /**
+     * Same as {@link #xyzToLatLonDegrees(double[])} without allocating, for
+     * code that converts a point at a time in a loop.
+     *
+     * @param latLonHeight where the lat, lon (degrees) and elevation (meters)
+     *                     are written, in that order
+     */
+    public static void xyzToLatLonDegrees(double x, double y, double z, double[] latLonHeight) {
+        double W = Math.sqrt(x * x + y * y);
+
+        // same as the bulk conversion, see xyzToLatLon
+        double tanBZero = (A * z) / (B * W);
+        double cosBZero = 1.0 / Math.sqrt(1.0 + tanBZero * tanBZero);
+        double sinBZero = tanBZero * cosBZero;
+        double tanPhi = (z + E_PRIME_SQUARED * B * sinBZero * sinBZero * sinBZero)
+                / (W - A * E_SQUARED * cosBZero * cosBZero * cosBZero);
+        double cosPhi = 1.0 / Math.sqrt(1.0 + tanPhi * tanPhi);
+        double sinPhi = tanPhi * cosPhi;
+        double rSubN = (A * A) / Math.sqrt(A * A * cosPhi * cosPhi + B * B * sinPhi * sinPhi);
+
+        latLonHeight[0] = Math.atan(tanPhi) * RADIANS_TO_DEGREES;
+        latLonHeight[1] = Math.atan2(y, x) * RADIANS_TO_DEGREES;
+        latLonHeight[2] = W / cosPhi - rSubN;
+    }
+
+    /**
+     * Converts many DIS xyz world coordinates at once, the same conversion as
+     * {@link #xyzToLatLonRadians(double[])} for the points 0 to length - 1 of
+     * the arrays. Nothing is allocated, the results are written to the
+     * caller's arrays, which may be the input arrays.
+     *
+     * @param x      X of each point
+     * @param y      Y of each point
+     * @param z      Z of each point
+     * @param lat    where the latitudes are written, in radians
+     * @param lon    where the longitudes are written, in radians
+     * @param height where the elevations are written, in meters
+     * @param length number of points
+     */
+    public static void xyzToLatLonRadians(double[] x, double[] y, double[] z,
+                                          double[] lat, double[] lon, double[] height, int length) {
+        xyzToLatLon(x, y, z, lat, lon, height, length, 1.0);
+    }
+
+    /**
+     * Same as {@link #xyzToLatLonRadians(double[], double[], double[], double[], double[], double[], int)}
+     * with lat and lon in degrees.
+     */
+    public static void xyzToLatLonDegrees(double[] x, double[] y, double[] z,
+                                          double[] lat, double[] lon, double[] height, int length) {
+        xyzToLatLon(x, y, z, lat, lon, height, length, RADIANS_TO_DEGREES);
+    }
+
+    /**
+     * Converts many lat, long and heights into DIS XYZ at once, the same
+     * conversion as {@link #getXYZfromLatLonRadians(double, double, double)}
+     * for the points 0 to length - 1 of the arrays. Nothing is allocated, the
+     * results are written to the caller's arrays, which may be the input
+     * arrays.
+     *
+     * @param lat    latitude of each point, in radians
+     * @param lon    longitude of each point, in radians
+     * @param height elevation of each point, in meters
+     * @param x      where X is written
+     * @param y      where Y is written
+     * @param z      where Z is written
+     * @param length number of points
+     */
+    public static void getXYZfromLatLonRadians(double[] lat, double[] lon, double[] height,
+                                               double[] x, double[] y, double[] z, int length) {
+        getXYZfromLatLon(lat, lon, height, x, y, z, length, 1.0);
+    }
+
+    /**
+     * Same as {@link #getXYZfromLatLonRadians(double[], double[], double[], double[], double[], double[], int)}
+     * with lat and lon in degrees.
+     */
+    public static void getXYZfromLatLonDegrees(double[] lat, double[] lon, double[] height,
+                                               double[] x, double[] y, double[] z, int length) {
+        getXYZfromLatLon(lat, lon, height, x, y, z, length, DEGREES_TO_RADIANS);
+    }
+
+    private static void xyzToLatLon(double[] x, double[] y, double[] z,
+                                    double[] lat, double[] lon, double[] height, int length, double scale) {
+        checkLength(length, x, y, z, lat, lon, height);
+        int done = 0;
+        if (VECTOR != null) {
+            done = VECTOR.xyzToLatLon(x, y, z, lat, lon, height, length, scale);
+        }
+        xyzToLatLon(x, y, z, lat, lon, height, done, length, scale);
+    }
+
+    private static void getXYZfromLatLon(double[] lat, double[] lon, double[] height,
+                                         double[] x, double[] y, double[] z, int length, double scale) {
+        checkLength(length, lat, lon, height, x, y, z);
+        int done = 0;
+        if (VECTOR != null) {
+            done = VECTOR.getXYZfromLatLon(lat, lon, height, x, y, z, length, scale);
+        }
+        getXYZfromLatLon(lat, lon, height, x, y, z, done, length, scale);
+    }
+
+    private static void checkLength(int length, double[]... arrays) {
+        if (length < 0) throw new IllegalArgumentException("negative length " + length);
+        for (double[] array : arrays) {
+            if (array.length < length) throw new IllegalArgumentException("array of " + array.length + " for " + length + " points");
+        }
+    }
+
+    /**
+     * The points from to to - 1, one at a time. Same formulas as
+     * xyzToLatLonRadians(double[]) with the trigonometry of the angles that
+     * are only used in between replaced by algebra: for B = atan(t),
+     * cos B = 1 / sqrt(1 + t^2) and sin B = t cos B, the same for phi. The
+     * vector version does the same, so both give the same results.
+     */
+    static void xyzToLatLon(double[] x, double[] y, double[] z,
+                            double[] lat, double[] lon, double[] height, int from, int to, double scale) {
+        for (int i = from; i < to; i++) {
+            double xi = x[i];
+            double yi = y[i];
+            double zi = z[i];
+            double W = Math.sqrt(xi * xi + yi * yi);
+
+            double tanBZero = (A * zi) / (B * W);
+            double cosBZero = 1.0 / Math.sqrt(1.0 + tanBZero * tanBZero);
+            double sinBZero = tanBZero * cosBZero;
+            double tanPhi = (zi + E_PRIME_SQUARED * B * sinBZero * sinBZero * sinBZero)
+                    / (W - A * E_SQUARED * cosBZero * cosBZero * cosBZero);
+            double cosPhi = 1.0 / Math.sqrt(1.0 + tanPhi * tanPhi);
+            double sinPhi = tanPhi * cosPhi;
+            double rSubN = (A * A) / Math.sqrt(A * A * cosPhi * cosPhi + B * B * sinPhi * sinPhi);
+
+            lat[i] = Math.atan(tanPhi) * scale;
+            lon[i] = Math.atan2(yi, xi) * scale;
+            height[i] = W / cosPhi - rSubN;
+        }
+    }
+
+    /**
+     * The points from to to - 1, one at a time.
+     */
+    static void getXYZfromLatLon(double[] lat, double[] lon, double[] height,
+                                 double[] x, double[] y, double[] z, int from, int to, double scale) {
+        for (int i = from; i < to; i++) {
+            double latitude = lat[i] * scale;
+            double longitude = lon[i] * scale;
+            double h = height[i];
+            double cosLat = Math.cos(latitude);
+            double sinLat = Math.sin(latitude);
+
+            double rSubN = (A * A) / Math.sqrt(A * A * cosLat * cosLat + B * B * sinLat * sinLat);
+
+            x[i] = (rSubN + h) * cosLat * Math.cos(longitude);
+            y[i] = (rSubN + h) * cosLat * Math.sin(longitude);
+            z[i] = ((B * B) / (A * A) * rSubN + h) * sinLat;
+        }
+    }
+}
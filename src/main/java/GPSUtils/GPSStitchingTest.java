@@ -199,9 +199,9 @@ public class GPSStitchingTest {
 
             // Create a list of waypoints from the given points
             Set<Waypoint> waypoints = new HashSet<>();
-            for (Point point : points) {
-                double[] gpsCoords = CoordinateConverter.xyzToLatLonDegrees(new double[]{point.x(), point.y(), point.z()});
-                GeoPosition position = new GeoPosition(gpsCoords[0], gpsCoords[1]);
+            double[][] gpsCoords = GPSPointFactory.toLatLonDegrees(points);
+            for (int i = 0; i < points.length; i++) {
+                GeoPosition position = new GeoPosition(gpsCoords[0][i], gpsCoords[1][i]);
                 waypoints.add(new DefaultWaypoint(position));
             }
 
@@ -213,8 +213,7 @@ public class GPSStitchingTest {
             mapViewer.setOverlayPainter(waypointPainter);
 
             // Set the initial display position
-            double[] gpsCoords = CoordinateConverter.xyzToLatLonDegrees(new double[]{points[0].x(), points[0].y(), points[0].z()});
-            GeoPosition startPosition = new GeoPosition(gpsCoords[0], gpsCoords[1]);
+            GeoPosition startPosition = new GeoPosition(gpsCoords[0][0], gpsCoords[1][0]);
             mapViewer.setAddressLocation(startPosition);
 
             // Create a JFrame to display the map viewer
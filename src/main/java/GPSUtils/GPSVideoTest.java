@@ -1,19 +1,13 @@
 package GPSUtils;
 
 import boofcv.abst.feature.associate.AssociateDescription;
-import boofcv.abst.feature.associate.ScoreAssociation;
 import boofcv.abst.feature.detdesc.DetectDescribePoint;
-import boofcv.abst.feature.detect.interest.ConfigFastHessian;
 import boofcv.alg.descriptor.UtilFeature;
 import boofcv.alg.distort.ImageDistort;
 import boofcv.alg.distort.PixelTransformHomography_F32;
 import boofcv.alg.distort.impl.DistortSupport;
 import boofcv.alg.interpolate.InterpolatePixelS;
-import boofcv.factory.feature.associate.ConfigAssociateGreedy;
-import boofcv.factory.feature.associate.FactoryAssociation;
-import boofcv.factory.feature.detdesc.FactoryDetectDescribe;
-import boofcv.factory.geo.ConfigRansac;
-import boofcv.factory.geo.FactoryMultiViewRobust;
+import boofcv.core.image.ConvertImage;
 import boofcv.factory.interpolate.FactoryInterpolation;
 import boofcv.gui.image.ImageGridPanel;
 import boofcv.gui.image.ShowImages;
@@ -44,18 +38,27 @@ import org.jxmapviewer.viewer.*;
 import javax.swing.*;
 import java.awt.*;
 import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
 import java.util.*;
 import java.util.List;
 
 public class GPSVideoTest {
     public static void main(String[] args) {
-        int skipFrames = 10;
+        // every frame is tracked, the stitching is drawn for every renderEvery-th one
+        int renderEvery = 10;
+        // below this the phase correlation didn't match the frames and the features are used instead
+        double minOdometryConfidence = 0.1;
         int maxFrames = 10000;
         int frameCounter = 0;
         double distanceThreshold = 1.5;
-        Point startingPoint = GPSPointFactory.fromGPSCoords(32.09237848, 35.17513055, 564.05338779);
-        List<Point> gpsPoints = new LinkedList<>();
-        gpsPoints.add(startingPoint);
+        int maxDisplayedPoints = 2000;
+        // the track is dead reckoned in meters east and north of the takeoff point, the top of the first frame faces north
+        LocalTangentPlane takeoff = new LocalTangentPlane(32.09237848, 35.17513055, 564.05338779);
+        double east = 0;
+        double north = 0;
+        double[] xyz = new double[3];
         double degree = 0.0;
 
         double xDistance = 500;
@@ -66,6 +69,17 @@ public class GPSVideoTest {
 //		String fileName = UtilIO.pathExample("mosaic/airplane01.mjpeg");
 //        String fileName = "resources/ariel.mp4";
         String fileName = "resources/DJI_0520.MP4";
+
+        // the track goes to a file as it is made, it can be read while the video is processed and is kept if it crashes
+        TrajectoryStore gpsPoints;
+        try {
+            gpsPoints = TrajectoryStore.create(Path.of("resources/trajectories/gps_video_test.trj"));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        takeoff.enuToEcef(east, north, 0, xyz);
+        gpsPoints.append(frameCounter, xyz[0], xyz[1], xyz[2], 0, 1);
+
         SimpleImageSequence<Planar<GrayF32>> video = media.openVideo(fileName, ImageType.pl(3, GrayF32.class));
 
         Planar<GrayF32> frame = video.next();
@@ -82,54 +96,94 @@ public class GPSVideoTest {
         gui.setPreferredSize(new Dimension(2 * frame.width, 2 * frame.height));
         ShowImages.showWindow(gui, "Example Mosaic", true);
 
+        // frame to frame motion comes from phase correlation, the SURF features and RANSAC of the stitching are
+        // only used for the frames it can't match
+        PhaseCorrelationOdometry odometry = new PhaseCorrelationOdometry();
+        StitchingContext<GrayF32, TupleDesc_F64> stitching = StitchingContext.surf(GrayF32.class);
+        GrayF32 gray = new GrayF32(frame.width, frame.height);
+        GrayF32 previousGray = new GrayF32(frame.width, frame.height);
+        odometry.process(ConvertImage.average(previousFrame, previousGray));
+        BufferedImage bufferedPreviousFrame = ConvertBufferedImage.convertTo_F32(previousFrame, null, true);
+        int fallbacks = 0;
+        int failedFallbacks = 0;
+        long odometryNanos = 0;
+        // position of the last point in the track
+        double trackedEast = east;
+        double trackedNorth = north;
+
         while (video.hasNext() && frameCounter < maxFrames) {
             frame = video.next();
             BufferedImage bufferedCurrentFrame = ConvertBufferedImage.convertTo_F32(frame, null, true);
 
-            if (frameCounter % skipFrames == 0) {
-                BufferedImage bufferedPreviousFrame = ConvertBufferedImage.convertTo_F32(previousFrame, null, true);
-                Homography2D_F64 transform = stitch(bufferedPreviousFrame, bufferedCurrentFrame, GrayF32.class, gui);
-
-                // use the homography to transform the center of the previous image
-                Point2D_F64 startImageCenter = new Point2D_F64(bufferedPreviousFrame.getWidth() / 2.0, bufferedPreviousFrame.getHeight() / 2.0);
-                Point2D_F64 startImageTop = new Point2D_F64(bufferedPreviousFrame.getWidth() / 2.0, 0.0);
-                Point2D_F64 transformedCenterPoint = new Point2D_F64();
-                Point2D_F64 transformedTopPoint = new Point2D_F64();
-                HomographyPointOps_F64.transform(transform, startImageCenter, transformedCenterPoint);
-                HomographyPointOps_F64.transform(transform, startImageTop, transformedTopPoint);
-                double turnDegrees = calculateDegree(
-                        startImageTop.x - startImageCenter.x,
-                        startImageTop.y - startImageCenter.y,
-                        transformedTopPoint.x - transformedCenterPoint.x,
-                        transformedTopPoint.y - transformedCenterPoint.y);
-                degree += turnDegrees;
-                System.out.println("Change in Degrees: " + turnDegrees);
-
-//                System.out.println(startImageCenter);
-//                System.out.println(transformedCenterPoint);
-
-                // compute distances in meters and get new point from result
-                double xDistanceMeters = (startImageCenter.x - transformedCenterPoint.x) * xDistancePerPixel;
-                double yDistanceMeters = (startImageCenter.y - transformedCenterPoint.y) * yDistancePerPixel;
-                double[] rotatedVector = rotateVector(xDistanceMeters, yDistanceMeters, degree);
-                Point lastPoint = gpsPoints.get(gpsPoints.size() - 1);
-                Point newPoint = GPSPointFactory.fromVelocity(lastPoint, rotatedVector[0], rotatedVector[1], 0);
-                double distance = PointAlgo.distance(lastPoint, newPoint);
-
-                if (distance > distanceThreshold) {
-                    gpsPoints.add(newPoint);
-//                    System.out.println("Moving! (Distance: " + distance + ")");
+            long start = System.nanoTime();
+            Homography2D_F64 transform = odometry.process(ConvertImage.average(frame, gray));
+            if (odometry.getConfidence() < minOdometryConfidence) {
+                fallbacks++;
+                try {
+                    transform = stitching.process(previousGray, gray);
+                } catch (RuntimeException e) {
+                    // the frames phase correlation can't match often have too few features as well,
+                    // then its estimate is the best there is
+                    failedFallbacks++;
                 }
+            }
+            odometryNanos += System.nanoTime() - start;
+            GrayF32 tmp = previousGray;
+            previousGray = gray;
+            gray = tmp;
+
+            // use the homography to transform the center of the previous image
+            Point2D_F64 startImageCenter = new Point2D_F64(bufferedPreviousFrame.getWidth() / 2.0, bufferedPreviousFrame.getHeight() / 2.0);
+            Point2D_F64 startImageTop = new Point2D_F64(bufferedPreviousFrame.getWidth() / 2.0, 0.0);
+            Point2D_F64 transformedCenterPoint = new Point2D_F64();
+            Point2D_F64 transformedTopPoint = new Point2D_F64();
+            HomographyPointOps_F64.transform(transform, startImageCenter, transformedCenterPoint);
+            HomographyPointOps_F64.transform(transform, startImageTop, transformedTopPoint);
+            double turnDegrees = calculateDegree(
+                    startImageTop.x - startImageCenter.x,
+                    startImageTop.y - startImageCenter.y,
+                    transformedTopPoint.x - transformedCenterPoint.x,
+                    transformedTopPoint.y - transformedCenterPoint.y);
+            degree += turnDegrees;
+
+            // compute distances in meters and get new point from result
+            double xDistanceMeters = (startImageCenter.x - transformedCenterPoint.x) * xDistancePerPixel;
+            double yDistanceMeters = (startImageCenter.y - transformedCenterPoint.y) * yDistancePerPixel;
+            double[] rotatedVector = rotateVector(xDistanceMeters, yDistanceMeters, degree);
+            // image y grows down, towards the south
+            east += rotatedVector[0];
+            north -= rotatedVector[1];
+
+            // a frame moves much less than the threshold, the track gets a point once the steps add up to it
+            double distance = Math.hypot(east - trackedEast, north - trackedNorth);
+            if (distance > distanceThreshold) {
+                trackedEast = east;
+                trackedNorth = north;
+                takeoff.enuToEcef(east, north, 0, xyz);
+                gpsPoints.append(frameCounter, xyz[0], xyz[1], xyz[2], (float) degree, 1);
+//                System.out.println("Moving! (Distance: " + distance + ")");
+            }
 
-                previousFrame = frame.clone();
+            if (frameCounter % renderEvery == 0) {
+                renderStitching(bufferedPreviousFrame, bufferedCurrentFrame, transform, gui);
+                System.out.println("Change in Degrees: " + turnDegrees);
             }
+            bufferedPreviousFrame = bufferedCurrentFrame;
             frameCounter++;
 
             gui.setImage(0, 0, bufferedCurrentFrame);
             gui.repaint();
         }
-
-        displayPointsOnMap(gpsPoints.toArray(new Point[0]));
+        System.out.printf("odometry: %d frames, %.1f ms a frame, %d matched with features, %d of them failed%n",
+                frameCounter, odometryNanos / 1e6 / Math.max(frameCounter, 1), fallbacks, failedFallbacks);
+
+        // a long flight has more points than the map can draw, every n-th one shows the path just as well
+        displayPointsOnMap(gpsPoints.downsample(maxDisplayedPoints).toPoints());
+        try {
+            gpsPoints.close();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
     }
 
     public static <T extends ImageGray<T>, TD extends TupleDesc<TD>> Homography2D_F64 computeTransform(T imageA, T imageB, DetectDescribePoint<T, TD> detDesc, AssociateDescription<TD> associate, ModelMatcher<Homography2D_F64, AssociatedPair> modelMatcher) {
@@ -188,15 +242,10 @@ public class GPSVideoTest {
         T inputA = ConvertBufferedImage.convertFromSingle(imageA, null, imageType);
         T inputB = ConvertBufferedImage.convertFromSingle(imageB, null, imageType);
 
-        // Detect using the standard SURF feature descriptor and describer
-        DetectDescribePoint detDesc = FactoryDetectDescribe.surfStable(new ConfigFastHessian(1, 2, 200, 1, 9, 4, 4), null, null, imageType);
-        ScoreAssociation<TupleDesc_F64> scorer = FactoryAssociation.scoreEuclidean(TupleDesc_F64.class, true);
-        AssociateDescription<TupleDesc_F64> associate = FactoryAssociation.greedy(new ConfigAssociateGreedy(true, 2), scorer);
-
-        // fit the images using a homography. This works well for rotations and distant objects.
-        ModelMatcher<Homography2D_F64, AssociatedPair> modelMatcher = FactoryMultiViewRobust.homographyRansac(null, new ConfigRansac(60, 3));
-
-        Homography2D_F64 H = computeTransform(inputA, inputB, detDesc, associate, modelMatcher);
+        // one off pair, for a video keep a StitchingContext around instead
+        StitchingContext<T, TupleDesc_F64> stitching = StitchingContext.surf(imageType);
+        stitching.process(inputA);
+        Homography2D_F64 H = stitching.process(inputB);
         renderStitching(imageA, imageB, H, gui);
         return H;
     }
@@ -218,9 +267,9 @@ public class GPSVideoTest {
 
             // Create a list of waypoints from the given points
             Set<Waypoint> waypoints = new HashSet<>();
-            for (Point point : points) {
-                double[] gpsCoords = CoordinateConverter.xyzToLatLonDegrees(new double[]{point.x(), point.y(), point.z()});
-                GeoPosition position = new GeoPosition(gpsCoords[0], gpsCoords[1]);
+            double[][] gpsCoords = GPSPointFactory.toLatLonDegrees(points);
+            for (int i = 0; i < points.length; i++) {
+                GeoPosition position = new GeoPosition(gpsCoords[0][i], gpsCoords[1][i]);
                 waypoints.add(new DefaultWaypoint(position));
             }
 
@@ -232,8 +281,7 @@ public class GPSVideoTest {
             mapViewer.setOverlayPainter(waypointPainter);
 
             // Set the initial display position
-            double[] gpsCoords = CoordinateConverter.xyzToLatLonDegrees(new double[]{points[0].x(), points[0].y(), points[0].z()});
-            GeoPosition startPosition = new GeoPosition(gpsCoords[0], gpsCoords[1]);
+            GeoPosition startPosition = new GeoPosition(gpsCoords[0][0], gpsCoords[1][0]);
             mapViewer.setAddressLocation(startPosition);
 
             // Create a JFrame to display the map viewer
@@ -0,0 +1,122 @@
+package GPSUtils;
+
+/**
+ * A local east, north, up (ENU) frame anchored at a point on the earth, e.g.
+ * where the drone took off. Displacements measured by the drone are in
+ * meters along the ground, so they add up here with a few multiply-adds
+ * instead of going through CoordinateConverter on every step, and the
+ * track stays on the tangent plane instead of drifting off the ellipsoid.
+ * The anchor and the rotation between ENU and DIS xyz (see
+ * CoordinateConverter) are computed once. None of the conversions allocate,
+ * results are written to the caller's arrays.
+ * Over the few kilometers of a flight the plane is within meters of the
+ * ellipsoid: up is the height above the plane, not the elevation.
+ */
+public class LocalTangentPlane {
+    // anchor in DIS xyz
+    private final double x0;
+    private final double y0;
+    private final double z0;
+    private final double latitude;
+    private final double longitude;
+    private final double height;
+
+    // rows are the east, north and up axes in DIS xyz
+    private final double ex, ey;
+    private final double nx, ny, nz;
+    private final double ux, uy, uz;
+
+    /**
+     * @param latitude  latitude of the anchor, in degrees
+     * @param longitude longitude of the anchor, in degrees
+     * @param height    elevation of the anchor, in meters
+     */
+    public LocalTangentPlane(double latitude, double longitude, double height) {
+        this.latitude = latitude;
+        this.longitude = longitude;
+        this.height = height;
+        double[] anchor = CoordinateConverter.getXYZfromLatLonDegrees(latitude, longitude, height);
+        x0 = anchor[0];
+        y0 = anchor[1];
+        z0 = anchor[2];
+
+        double sinLat = Math.sin(latitude * CoordinateConverter.DEGREES_TO_RADIANS);
+        double cosLat = Math.cos(latitude * CoordinateConverter.DEGREES_TO_RADIANS);
+        double sinLon = Math.sin(longitude * CoordinateConverter.DEGREES_TO_RADIANS);
+        double cosLon = Math.cos(longitude * CoordinateConverter.DEGREES_TO_RADIANS);
+        ex = -sinLon;
+        ey = cosLon;
+        nx = -sinLat * cosLon;
+        ny = -sinLat * sinLon;
+        nz = cosLat;
+        ux = cosLat * cosLon;
+        uy = cosLat * sinLon;
+        uz = sinLat;
+    }
+
+    /**
+     * A plane anchored at a point in DIS xyz.
+     */
+    public static LocalTangentPlane at(Point anchor) {
+        double[] latLonHeight = CoordinateConverter.xyzToLatLonDegrees(new double[]{anchor.x(), anchor.y(), anchor.z()});
+        return new LocalTangentPlane(latLonHeight[0], latLonHeight[1], latLonHeight[2]);
+    }
+
+    /**
+     * Converts a point of the plane to DIS xyz.
+     *
+     * @param xyz where x, y and z are written, in that order
+     */
+    public void enuToEcef(double east, double north, double up, double[] xyz) {
+        xyz[0] = x0 + ex * east + nx * north + ux * up;
+        xyz[1] = y0 + ey * east + ny * north + uy * up;
+        xyz[2] = z0 + nz * north + uz * up;
+    }
+
+    /**
+     * Converts a DIS xyz point to the plane.
+     *
+     * @param enu where east, north and up (meters) are written, in that order
+     */
+    public void ecefToEnu(double x, double y, double z, double[] enu) {
+        double dx = x - x0;
+        double dy = y - y0;
+        double dz = z - z0;
+        // the rotation is orthonormal, its inverse is its transpose
+        enu[0] = ex * dx + ey * dy;
+        enu[1] = nx * dx + ny * dy + nz * dz;
+        enu[2] = ux * dx + uy * dy + uz * dz;
+    }
+
+    /**
+     * Converts a point of the plane to latitude and longitude, for drawing it
+     * on a map. Goes through CoordinateConverter, so it costs the trigonometry
+     * the other conversions don't.
+     *
+     * @param latLonHeight where the lat, lon (degrees) and elevation (meters)
+     *                     are written, in that order
+     */
+    public void enuToLatLon(double east, double north, double up, double[] latLonHeight) {
+        double x = x0 + ex * east + nx * north + ux * up;
+        double y = y0 + ey * east + ny * north + uy * up;
+        double z = z0 + nz * north + uz * up;
+        CoordinateConverter.xyzToLatLonDegrees(x, y, z, latLonHeight);
+    }
+
+    public double getLatitude() {
+        return latitude;
+    }
+
+    public double getLongitude() {
+        return longitude;
+    }
+
+    public double getHeight() {
+        return height;
+    }
+
+    @Override
+    public String toString() {
+        return "[ENU at lat: " + latitude + ", lon: " + longitude + ", h: " + height + "]";
+    }
+}
@@ -0,0 +1,378 @@
+package GPSUtils;
+
+import boofcv.abst.transform.fft.DiscreteFourierTransform;
+import boofcv.alg.misc.ImageStatistics;
+import boofcv.alg.transform.fft.DiscreteFourierTransformOps;
+import boofcv.struct.image.GrayF32;
+import boofcv.struct.image.InterleavedF32;
+import georegression.struct.homography.Homography2D_F64;
+
+import java.util.Arrays;
+
+/**
+ * Frame to frame motion of a camera looking straight down, found with phase correlation instead of features.
+ * Between two frames of nadir footage the ground mostly turns, grows or shrinks (the height changed) and shifts.
+ * Shifting an image leaves the magnitude of its spectrum alone, while turning and scaling it turn and scale the
+ * spectrum. In log-polar coordinates those become shifts too, so the rotation and scale are found first by phase
+ * correlating the log-polar magnitude spectra of the two frames. The new frame is then turned and scaled back and
+ * the shift is found by phase correlating it with the previous frame.
+ *
+ * Frames are cut to their biggest centre square that is a whole number of times size and shrunk to size x size
+ * pixels first. The FFT and every buffer are made once and reused, so a frame costs a handful of FFTs of that size
+ * on the calling thread and allocates only the returned transform.
+ * The height of the shift's correlation peak is 1 for identical frames and close to 0 for unrelated ones,
+ * {@link #getConfidence()} tells when the estimate shouldn't be trusted and features are needed instead.
+ */
+public class PhaseCorrelationOdometry {
+    public static final int DEFAULT_SIZE = 256;
+    // below this the turn is tried the other way around too, see process
+    private static final float FLIP_CONFIDENCE = 0.2f;
+
+    private final int size;
+    private final DiscreteFourierTransform<GrayF32, InterleavedF32> fft = DiscreteFourierTransformOps.createTransformF32();
+    // separable Hann window, keeps the edges of the frame out of its spectrum
+    private final float[] window;
+    // the low frequencies are about the same in every frame, the high ones locate the rotation and scale
+    private final GrayF32 highPass;
+    // where in the spectrum every log-polar sample is read from, rows are angles over half a turn, columns log radii
+    private final float[] polarU;
+    private final float[] polarV;
+    private final double logRadiusStep;
+
+    private GrayF32 small;
+    private GrayF32 previousSmall;
+    private final GrayF32 windowed;
+    private final GrayF32 magnitude;
+    private final GrayF32 polar;
+    private final GrayF32 warped;
+    private final GrayF32 correlation;
+    private InterleavedF32 spectrum;
+    private InterleavedF32 previousSpectrum;
+    private InterleavedF32 polarSpectrum;
+    private InterleavedF32 previousPolarSpectrum;
+    private final InterleavedF32 warpedSpectrum;
+    private final InterleavedF32 product;
+    private boolean hasPrevious;
+
+    // last estimate
+    private double rotation;
+    private double scale = 1;
+    private double shiftX;
+    private double shiftY;
+    private double confidence;
+    private double peakX;
+    private double peakY;
+    private float peakValue;
+
+    public PhaseCorrelationOdometry() {
+        this(DEFAULT_SIZE);
+    }
+
+    /**
+     * @param size side of the square frames are shrunk to, a power of two
+     */
+    public PhaseCorrelationOdometry(int size) {
+        if (!DiscreteFourierTransformOps.isPowerOf2(size) || size < 16) {
+            throw new IllegalArgumentException("size must be a power of two of at least 16, not " + size);
+        }
+        this.size = size;
+        window = new float[size];
+        for (int i = 0; i < size; i++) {
+            window[i] = (float) (0.5 - 0.5 * Math.cos(2 * Math.PI * (i + 0.5) / size));
+        }
+        highPass = new GrayF32(size, size);
+        for (int v = 0; v < size; v++) {
+            double cosV = Math.cos(Math.PI * frequency(v));
+            for (int u = 0; u < size; u++) {
+                double x = Math.cos(Math.PI * frequency(u)) * cosV;
+                highPass.unsafe_set(u, v, (float) ((1 - x) * (2 - x)));
+            }
+        }
+        // radii from 1 to the highest frequency on a log scale, angles over half a turn since the magnitude of a
+        // real image's spectrum is symmetric
+        logRadiusStep = Math.log(size / 2.0) / size;
+        polarU = new float[size * size];
+        polarV = new float[size * size];
+        for (int a = 0; a < size; a++) {
+            double angle = Math.PI * a / size;
+            for (int r = 0; r < size; r++) {
+                double radius = Math.exp(r * logRadiusStep);
+                polarU[a * size + r] = (float) (radius * Math.cos(angle));
+                polarV[a * size + r] = (float) (radius * Math.sin(angle));
+            }
+        }
+
+        small = new GrayF32(size, size);
+        previousSmall = new GrayF32(size, size);
+        windowed = new GrayF32(size, size);
+        magnitude = new GrayF32(size, size);
+        polar = new GrayF32(size, size);
+        warped = new GrayF32(size, size);
+        correlation = new GrayF32(size, size);
+        spectrum = new InterleavedF32(size, size, 2);
+        previousSpectrum = new InterleavedF32(size, size, 2);
+        polarSpectrum = new InterleavedF32(size, size, 2);
+        previousPolarSpectrum = new InterleavedF32(size, size, 2);
+        warpedSpectrum = new InterleavedF32(size, size, 2);
+        product = new InterleavedF32(size, size, 2);
+    }
+
+    // signed frequency of an FFT index, in cycles per pixel
+    private double frequency(int index) {
+        return (index < size / 2 ? index : index - size) / (double) size;
+    }
+
+    /**
+     * Makes the image the current frame. Images have to keep the same size between calls to reset.
+     *
+     * @return transform from the previous frame to this one, or null if this is the first frame
+     */
+    public Homography2D_F64 process(GrayF32 image) {
+        int factor = Math.min(image.width, image.height) / size;
+        if (factor == 0) throw new IllegalArgumentException("frame is smaller than " + size + " pixels");
+        int side = factor * size;
+        int x0 = (image.width - side) / 2;
+        int y0 = (image.height - side) / 2;
+
+        GrayF32 tmp = previousSmall;
+        previousSmall = small;
+        small = tmp;
+        shrink(image, x0, y0, factor, small);
+
+        InterleavedF32 tmpSpectrum = previousSpectrum;
+        previousSpectrum = spectrum;
+        spectrum = tmpSpectrum;
+        window(small, windowed);
+        fft.forward(windowed, spectrum);
+
+        tmpSpectrum = previousPolarSpectrum;
+        previousPolarSpectrum = polarSpectrum;
+        polarSpectrum = tmpSpectrum;
+        logPolarMagnitude(spectrum, polar);
+        fft.forward(polar, polarSpectrum);
+
+        boolean first = !hasPrevious;
+        hasPrevious = true;
+        if (first) return null;
+
+        // the rotation and scale move the log-polar spectrum, columns are log radius and rows are angle
+        phaseCorrelate(previousPolarSpectrum, polarSpectrum);
+        double angle = -Math.PI * peakY / size;
+        scale = Math.exp(peakX * logRadiusStep);
+
+        // the spectrum can't tell a turn from the same turn plus half a turn, the shift can. Frames close together
+        // hardly turn, the other way around is only tried if the small turn doesn't fit
+        double bestConfidence = -Double.MAX_VALUE;
+        for (int flip = 0; flip < 2 && bestConfidence < FLIP_CONFIDENCE; flip++) {
+            double candidate = angle + flip * Math.PI;
+            warp(small, candidate, scale, warped);
+            window(warped, windowed);
+            fft.forward(windowed, warpedSpectrum);
+            phaseCorrelate(previousSpectrum, warpedSpectrum);
+            if (peakValue > bestConfidence) {
+                bestConfidence = peakValue;
+                rotation = candidate;
+                // the peak moves the turned frame onto the previous one, the shift goes the other way
+                shiftX = -peakX;
+                shiftY = -peakY;
+            }
+        }
+        confidence = bestConfidence;
+        if (rotation > Math.PI) rotation -= 2 * Math.PI;
+
+        return transform(x0, y0, factor);
+    }
+
+    /**
+     * Forgets the last frame, the next call to process starts a new sequence.
+     */
+    public void reset() {
+        hasPrevious = false;
+    }
+
+    /**
+     * Turn of the ground from the previous frame to the current one in degrees, positive is clockwise on the screen.
+     */
+    public double getRotation() {
+        return Math.toDegrees(rotation);
+    }
+
+    /**
+     * How much bigger the ground looks in the current frame than in the previous one.
+     */
+    public double getScale() {
+        return scale;
+    }
+
+    /**
+     * Height of the correlation peak of the last estimate, 1 for identical frames and near 0 for unrelated ones.
+     */
+    public double getConfidence() {
+        return confidence;
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    // the previous frame point p is at c + scale*R(p + shift - c) in the current frame, in shrunk pixels
+    private Homography2D_F64 transform(int x0, int y0, int factor) {
+        double c = (size - 1) / 2.0;
+        double cos = scale * Math.cos(rotation);
+        double sin = scale * Math.sin(rotation);
+        double smallX = c + cos * (shiftX - c) - sin * (shiftY - c);
+        double smallY = c + sin * (shiftX - c) + cos * (shiftY - c);
+        // shrunk pixel q is the average of the frame pixels around origin + q*factor
+        double originX = x0 + (factor - 1) / 2.0;
+        double originY = y0 + (factor - 1) / 2.0;
+        double tx = originX + factor * smallX - (cos * originX - sin * originY);
+        double ty = originY + factor * smallY - (sin * originX + cos * originY);
+        return new Homography2D_F64(cos, -sin, tx, sin, cos, ty, 0, 0, 1);
+    }
+
+    // average of every factor x factor block of the square at (x0, y0)
+    private void shrink(GrayF32 image, int x0, int y0, int factor, GrayF32 output) {
+        float norm = 1.0f / (factor * factor);
+        float[] row = warped.data;
+        for (int y = 0; y < size; y++) {
+            Arrays.fill(row, 0, size, 0);
+            for (int dy = 0; dy < factor; dy++) {
+                int in = image.startIndex + (y0 + y * factor + dy) * image.stride + x0;
+                for (int x = 0; x < size; x++) {
+                    float sum = 0;
+                    for (int dx = 0; dx < factor; dx++) {
+                        sum += image.data[in++];
+                    }
+                    row[x] += sum;
+                }
+            }
+            int out = output.startIndex + y * output.stride;
+            for (int x = 0; x < size; x++) {
+                output.data[out + x] = row[x] * norm;
+            }
+        }
+    }
+
+    // the image minus its mean, times the window
+    private void window(GrayF32 image, GrayF32 output) {
+        float mean = ImageStatistics.mean(image);
+        for (int y = 0; y < size; y++) {
+            int in = image.startIndex + y * image.stride;
+            int out = output.startIndex + y * output.stride;
+            float wy = window[y];
+            for (int x = 0; x < size; x++) {
+                output.data[out + x] = (image.data[in + x] - mean) * window[x] * wy;
+            }
+        }
+    }
+
+    private void logPolarMagnitude(InterleavedF32 spectrum, GrayF32 output) {
+        DiscreteFourierTransformOps.magnitude(spectrum, magnitude);
+        float[] m = magnitude.data;
+        float[] h = highPass.data;
+        for (int i = 0; i < m.length; i++) {
+            m[i] *= h[i];
+        }
+        int mask = size - 1;
+        for (int i = 0; i < polarU.length; i++) {
+            // the spectrum isn't shifted, negative frequencies wrap around to the end
+            float u = polarU[i];
+            float v = polarV[i];
+            int u0 = (int) Math.floor(u);
+            int v0 = (int) Math.floor(v);
+            float fu = u - u0;
+            float fv = v - v0;
+            int row0 = (v0 & mask) * size;
+            int row1 = ((v0 + 1) & mask) * size;
+            int col0 = u0 & mask;
+            int col1 = (u0 + 1) & mask;
+            float top = m[row0 + col0] * (1 - fu) + m[row0 + col1] * fu;
+            float bottom = m[row1 + col0] * (1 - fu) + m[row1 + col1] * fu;
+            output.data[i] = top * (1 - fv) + bottom * fv;
+        }
+    }
+
+    // turns and scales the image about its centre, points outside of it get its mean
+    private void warp(GrayF32 image, double angle, double scale, GrayF32 output) {
+        double c = (size - 1) / 2.0;
+        double cos = scale * Math.cos(angle);
+        double sin = scale * Math.sin(angle);
+        float mean = ImageStatistics.mean(image);
+        int last = size - 1;
+        for (int y = 0; y < size; y++) {
+            double dy = y - c;
+            int out = output.startIndex + y * output.stride;
+            // the source moves by (cos, sin) with every step along the row
+            double sx = c - cos * c - sin * dy;
+            double sy = c - sin * c + cos * dy;
+            for (int x = 0; x < size; x++, sx += cos, sy += sin) {
+                if (sx < 0 || sy < 0 || sx >= last || sy >= last) {
+                    output.data[out + x] = mean;
+                    continue;
+                }
+                int ix = (int) sx;
+                int iy = (int) sy;
+                float fx = (float) (sx - ix);
+                float fy = (float) (sy - iy);
+                int i = image.startIndex + iy * image.stride + ix;
+                float top = image.data[i] * (1 - fx) + image.data[i + 1] * fx;
+                float bottom = image.data[i + image.stride] * (1 - fx) + image.data[i + image.stride + 1] * fx;
+                output.data[out + x] = top * (1 - fy) + bottom * fy;
+            }
+        }
+    }
+
+    /**
+     * Normalized cross power spectrum of a and b, back in space. Sets the sub-pixel peak, as the shift that moves b
+     * onto a wrapped to [-size/2, size/2), and its height.
+     */
+    private void phaseCorrelate(InterleavedF32 a, InterleavedF32 b) {
+        float[] pa = a.data;
+        float[] pb = b.data;
+        float[] out = product.data;
+        for (int i = 0; i < size * size * 2; i += 2) {
+            // a times the conjugate of b, with only its phase kept
+            float re = pa[i] * pb[i] + pa[i + 1] * pb[i + 1];
+            float im = pa[i + 1] * pb[i] - pa[i] * pb[i + 1];
+            float norm = (float) Math.sqrt(re * re + im * im);
+            if (norm < 1e-12f) {
+                out[i] = 0;
+                out[i + 1] = 0;
+            } else {
+                out[i] = re / norm;
+                out[i + 1] = im / norm;
+            }
+        }
+        fft.inverse(product, correlation);
+
+        int bestX = 0;
+        int bestY = 0;
+        float best = -Float.MAX_VALUE;
+        for (int y = 0; y < size; y++) {
+            int row = correlation.startIndex + y * correlation.stride;
+            for (int x = 0; x < size; x++) {
+                if (correlation.data[row + x] > best) {
+                    best = correlation.data[row + x];
+                    bestX = x;
+                    bestY = y;
+                }
+            }
+        }
+        int mask = size - 1;
+        peakValue = best;
+        peakX = wrap(bestX + parabola(correlation.get((bestX - 1) & mask, bestY), best, correlation.get((bestX + 1) & mask, bestY)));
+        peakY = wrap(bestY + parabola(correlation.get(bestX, (bestY - 1) & mask), best, correlation.get(bestX, (bestY + 1) & mask)));
+    }
+
+    private double wrap(double index) {
+        return index >= size / 2.0 ? index - size : index;
+    }
+
+    // offset of the top of a parabola through three samples from the middle one
+    private static double parabola(float left, float middle, float right) {
+        double curvature = left - 2.0 * middle + right;
+        if (curvature >= 0) return 0;
+        double offset = 0.5 * (left - right) / curvature;
+        return Math.max(-0.5, Math.min(0.5, offset));
+    }
+}
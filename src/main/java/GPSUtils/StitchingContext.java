@@ -0,0 +1,155 @@
+package GPSUtils;
+
+import boofcv.abst.feature.associate.AssociateDescription;
+import boofcv.abst.feature.associate.ScoreAssociation;
+import boofcv.abst.feature.detdesc.DetectDescribePoint;
+import boofcv.abst.feature.detect.interest.ConfigFastHessian;
+import boofcv.alg.descriptor.UtilFeature;
+import boofcv.factory.feature.associate.ConfigAssociateGreedy;
+import boofcv.factory.feature.associate.FactoryAssociation;
+import boofcv.factory.feature.detdesc.FactoryDetectDescribe;
+import boofcv.factory.geo.ConfigRansac;
+import boofcv.factory.geo.FactoryMultiViewRobust;
+import boofcv.struct.feature.AssociatedIndex;
+import boofcv.struct.feature.TupleDesc;
+import boofcv.struct.feature.TupleDesc_F64;
+import boofcv.struct.geo.AssociatedPair;
+import boofcv.struct.image.ImageGray;
+import georegression.struct.homography.Homography2D_F64;
+import georegression.struct.point.Point2D_F64;
+import org.ddogleg.fitting.modelset.ModelMatcher;
+import org.ddogleg.struct.DogArray;
+import org.ddogleg.struct.FastAccess;
+
+/**
+ * Long lived state for stitching a video frame by frame. The detector, associator and model matcher are
+ * created once, and the features of the last frame are kept so that when the next frame arrives only the new
+ * frame is described. Every frame is described exactly once, except by {@link #process(ImageGray, ImageGray)}
+ * which is for frames that weren't seen one after the other.
+ */
+public class StitchingContext<T extends ImageGray<T>, TD extends TupleDesc<TD>> {
+    private final DetectDescribePoint<T, TD> detDesc;
+    private final AssociateDescription<TD> associate;
+    private final ModelMatcher<Homography2D_F64, AssociatedPair> modelMatcher;
+
+    // features of the last two frames, swapped after every frame
+    private FrameFeatures<TD> previous;
+    private FrameFeatures<TD> current;
+    private boolean hasPrevious;
+
+    private final DogArray<AssociatedPair> pairs = new DogArray<>(AssociatedPair::new);
+    private int framesDescribed;
+
+    public StitchingContext(DetectDescribePoint<T, TD> detDesc, AssociateDescription<TD> associate,
+                            ModelMatcher<Homography2D_F64, AssociatedPair> modelMatcher) {
+        this.detDesc = detDesc;
+        this.associate = associate;
+        this.modelMatcher = modelMatcher;
+        previous = new FrameFeatures<>(detDesc);
+        current = new FrameFeatures<>(detDesc);
+    }
+
+    /**
+     * Context with the same SURF, greedy association and RANSAC homography settings GPSVideoTest has always used.
+     */
+    public static <T extends ImageGray<T>> StitchingContext<T, TupleDesc_F64> surf(Class<T> imageType) {
+        // Detect using the standard SURF feature descriptor and describer
+        DetectDescribePoint<T, TupleDesc_F64> detDesc = FactoryDetectDescribe.surfStable(
+                new ConfigFastHessian(1, 2, 200, 1, 9, 4, 4), null, null, imageType);
+        ScoreAssociation<TupleDesc_F64> scorer = FactoryAssociation.scoreEuclidean(TupleDesc_F64.class, true);
+        AssociateDescription<TupleDesc_F64> associate = FactoryAssociation.greedy(new ConfigAssociateGreedy(true, 2), scorer);
+
+        // fit the images using a homography. This works well for rotations and distant objects.
+        ModelMatcher<Homography2D_F64, AssociatedPair> modelMatcher =
+                FactoryMultiViewRobust.homographyRansac(null, new ConfigRansac(60, 3));
+        return new StitchingContext<>(detDesc, associate, modelMatcher);
+    }
+
+    /**
+     * Describes the image and makes it the current frame.
+     *
+     * @return transform from the previous frame to this one, or null if this is the first frame
+     */
+    public Homography2D_F64 process(T image) {
+        // the old current frame becomes the previous one, its features are kept as they are
+        FrameFeatures<TD> tmp = previous;
+        previous = current;
+        current = tmp;
+        current.describe(image, detDesc);
+        framesDescribed++;
+
+        boolean first = !hasPrevious;
+        hasPrevious = true;
+        if (first) return null;
+        return fit(previous, current);
+    }
+
+    /**
+     * Transform between two frames that weren't given to process one after the other, e.g. when a cheaper estimator
+     * couldn't match them. Both are described, and the image becomes the current frame.
+     *
+     * @return transform from the previous image to the image
+     */
+    public Homography2D_F64 process(T previousImage, T image) {
+        previous.describe(previousImage, detDesc);
+        current.describe(image, detDesc);
+        framesDescribed += 2;
+        hasPrevious = true;
+        return fit(previous, current);
+    }
+
+    /**
+     * Forgets the last frame, the next call to process starts a new sequence.
+     */
+    public void reset() {
+        hasPrevious = false;
+    }
+
+    private Homography2D_F64 fit(FrameFeatures<TD> a, FrameFeatures<TD> b) {
+        // Associate features between the two images
+        associate.setSource(a.descriptions);
+        associate.setDestination(b.descriptions);
+        associate.associate();
+
+        // create a list of AssociatedPairs that tell the model matcher how a feature moved
+        FastAccess<AssociatedIndex> matches = associate.getMatches();
+        pairs.reset();
+        for (int i = 0; i < matches.size(); i++) {
+            AssociatedIndex match = matches.get(i);
+            pairs.grow().setTo(a.points.get(match.src), b.points.get(match.dst));
+        }
+
+        // find the best fit model to describe the change between these images
+        if (!modelMatcher.process(pairs.toList())) throw new RuntimeException("Model Matcher failed!");
+
+        // return the found image transform
+        return modelMatcher.getModelParameters().copy();
+    }
+
+    public int getFramesDescribed() {
+        return framesDescribed;
+    }
+
+    /**
+     * Keypoints and descriptions of a single frame. Storage is reused between frames.
+     */
+    private static class FrameFeatures<TD extends TupleDesc<TD>> {
+        final DogArray<Point2D_F64> points = new DogArray<>(Point2D_F64::new);
+        final DogArray<TD> descriptions;
+
+        FrameFeatures(DetectDescribePoint<?, TD> detDesc) {
+            descriptions = UtilFeature.createArray(detDesc, 100);
+        }
+
+        <T extends ImageGray<T>> void describe(T image, DetectDescribePoint<T, TD> detDesc) {
+            detDesc.detect(image);
+
+            points.reset();
+            descriptions.reset();
+            for (int i = 0; i < detDesc.getNumberOfFeatures(); i++) {
+                points.grow().setTo(detDesc.getLocation(i));
+                descriptions.grow().setTo(detDesc.getDescription(i));
+            }
+        }
+    }
+}
@@ -0,0 +1,445 @@
+package GPSUtils;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.invoke.VarHandle;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * An append only track of positions, stored column by column in a memory mapped file.
+ * Every row has a time, a position (x, y, z, see CoordinateConverter), a heading in degrees and a confidence.
+ * Rows go straight into the mapped file, so a track costs 40 bytes a row outside the heap. The rows written
+ * so far are in the file even if the process crashes, and other readers (threads or processes) see them as
+ * they are appended. {@link #flush()} also makes them survive a crash of the machine.
+ *
+ * Layout (little endian):
+ * <pre>
+ *     header   magic, version, rows per block, 0, number of rows (long), padded to HEADER_BYTES
+ *     blocks   per block: time[rows per block] (double), x[], y[], z[] (double), heading[], confidence[] (float)
+ * </pre>
+ * The file grows a block at a time. The row count in the header is written after the row itself, so a reader
+ * never sees a row that is only partly written.
+ * One writer at a time, any number of readers. The file is unmapped on close, like TileStore, reading or appending
+ * after that throws IllegalStateException.
+ */
+public class TrajectoryStore implements Closeable {
+    private static final int MAGIC = 0x4B435254; // "TRCK" little endian
+    private static final int VERSION = 1;
+    // a page, so every block starts page aligned
+    private static final int HEADER_BYTES = 4096;
+    private static final int COUNT_OFFSET = 16;
+    public static final int DEFAULT_BLOCK_ROWS = 1 << 16;
+    static final int ROW_BYTES = 4 * 8 + 2 * 4;
+
+    public enum Column { TIME, X, Y, Z, HEADING, CONFIDENCE }
+
+    private final FileChannel channel;
+    private final boolean writable;
+    private final int blockRows;
+    private final long blockBytes;
+    // start of each column inside a block
+    private final int[] columnOffsets;
+    private final MappedByteBuffer header;
+    // only grows, read without locking
+    private final List<MappedByteBuffer> blocks = new CopyOnWriteArrayList<>();
+    // rows this writer appended, readers read the header instead
+    private volatile long size;
+    // everything that touches the mapping holds the read lock, so close can't unmap it from under them
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private boolean closed;
+
+    private TrajectoryStore(FileChannel channel, boolean writable, int blockRows, boolean create) throws IOException {
+        this.channel = channel;
+        this.writable = writable;
+        header = map(0, HEADER_BYTES);
+        if (create) {
+            header.putInt(0, MAGIC);
+            header.putInt(4, VERSION);
+            header.putInt(8, blockRows);
+            header.putLong(COUNT_OFFSET, 0);
+        } else {
+            if (header.getInt(0) != MAGIC) throw new IOException("not a trajectory store");
+            if (header.getInt(4) != VERSION) throw new IOException("unsupported trajectory store version " + header.getInt(4));
+            blockRows = header.getInt(8);
+            if (blockRows <= 0) throw new IOException("corrupt trajectory store header");
+        }
+        this.blockRows = blockRows;
+        blockBytes = (long) blockRows * ROW_BYTES;
+        int n = blockRows;
+        columnOffsets = new int[]{0, 8 * n, 16 * n, 24 * n, 32 * n, 36 * n};
+        // rows past the count were being written when the writer stopped, they are written over
+        size = header.getLong(COUNT_OFFSET);
+    }
+
+    /**
+     * New, empty store. An existing file at path is replaced.
+     */
+    public static TrajectoryStore create(Path path) throws IOException {
+        return create(path, DEFAULT_BLOCK_ROWS);
+    }
+
+    public static TrajectoryStore create(Path path, int blockRows) throws IOException {
+        if (blockRows <= 0) throw new IllegalArgumentException("blocks must hold at least one row");
+        if ((long) blockRows * ROW_BYTES > Integer.MAX_VALUE) throw new IllegalArgumentException("blocks are too big to map");
+        if (path.toAbsolutePath().getParent() != null) Files.createDirectories(path.toAbsolutePath().getParent());
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        return new TrajectoryStore(channel, true, blockRows, true);
+    }
+
+    /**
+     * Opens an existing store to append more rows to it, e.g. after a crash.
+     */
+    public static TrajectoryStore openForAppend(Path path) throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        return new TrajectoryStore(channel, true, 0, false);
+    }
+
+    /**
+     * Opens a store to read it, possibly while another process is still appending to it.
+     */
+    public static TrajectoryStore openReadOnly(Path path) throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+        return new TrajectoryStore(channel, false, 0, false);
+    }
+
+    private MappedByteBuffer map(long offset, long length) throws IOException {
+        MappedByteBuffer buffer = channel.map(writable ? FileChannel.MapMode.READ_WRITE : FileChannel.MapMode.READ_ONLY,
+                offset, length);
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        return buffer;
+    }
+
+    /**
+     * Adds a row at the end and returns its index.
+     */
+    public long append(double time, double x, double y, double z, float heading, float confidence) {
+        if (!writable) throw new IllegalStateException("trajectory store was opened read only");
+        lock.readLock().lock();
+        try {
+            checkOpen();
+            long row = size;
+            MappedByteBuffer block = block(row, true);
+            int i = (int) (row % blockRows);
+            block.putDouble(columnOffsets[0] + i * 8, time);
+            block.putDouble(columnOffsets[1] + i * 8, x);
+            block.putDouble(columnOffsets[2] + i * 8, y);
+            block.putDouble(columnOffsets[3] + i * 8, z);
+            block.putFloat(columnOffsets[4] + i * 4, heading);
+            block.putFloat(columnOffsets[5] + i * 4, confidence);
+            // the row is complete before anyone can count it
+            VarHandle.releaseFence();
+            header.putLong(COUNT_OFFSET, row + 1);
+            size = row + 1;
+            return row;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public long append(double time, Point point, float heading, float confidence) {
+        return append(time, point.x(), point.y(), point.z(), heading, confidence);
+    }
+
+    /**
+     * Number of rows. A reader sees the rows appended since it opened the store.
+     */
+    public long size() {
+        if (writable) return size;
+        lock.readLock().lock();
+        try {
+            checkOpen();
+            long count = header.getLong(COUNT_OFFSET);
+            VarHandle.acquireFence();
+            return count;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // call with the read lock held
+    private void checkOpen() {
+        if (closed) throw new IllegalStateException("trajectory store is closed");
+    }
+
+    private MappedByteBuffer block(long row, boolean grow) {
+        int index = (int) (row / blockRows);
+        if (index < blocks.size()) return blocks.get(index);
+        synchronized (blocks) {
+            try {
+                while (blocks.size() <= index) {
+                    long offset = HEADER_BYTES + blocks.size() * blockBytes;
+                    // a reader can only map what the writer already grew the file to
+                    if (!grow && offset + blockBytes > channel.size()) {
+                        throw new IllegalStateException("row " + row + " isn't in the file yet");
+                    }
+                    blocks.add(map(offset, blockBytes));
+                }
+            } catch (IOException e) {
+                throw new RuntimeException("failed to map trajectory block " + index, e);
+            }
+            return blocks.get(index);
+        }
+    }
+
+    private void checkRow(long row) {
+        if (row < 0 || row >= size()) throw new IndexOutOfBoundsException("row " + row + " of " + size());
+    }
+
+    public double getTime(long row) {
+        return getDouble(Column.TIME, row);
+    }
+
+    public double getX(long row) {
+        return getDouble(Column.X, row);
+    }
+
+    public double getY(long row) {
+        return getDouble(Column.Y, row);
+    }
+
+    public double getZ(long row) {
+        return getDouble(Column.Z, row);
+    }
+
+    public float getHeading(long row) {
+        return getFloat(Column.HEADING, row);
+    }
+
+    public float getConfidence(long row) {
+        return getFloat(Column.CONFIDENCE, row);
+    }
+
+    public Point getPoint(long row) {
+        return new Point(getX(row), getY(row), getZ(row));
+    }
+
+    private double getDouble(Column column, long row) {
+        lock.readLock().lock();
+        try {
+            checkOpen();
+            checkRow(row);
+            return block(row, false).getDouble(columnOffsets[column.ordinal()] + (int) (row % blockRows) * 8);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private float getFloat(Column column, long row) {
+        lock.readLock().lock();
+        try {
+            checkOpen();
+            checkRow(row);
+            return block(row, false).getFloat(columnOffsets[column.ordinal()] + (int) (row % blockRows) * 4);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Copies a column of rows [from, to) into dst starting at offset. heading and confidence are widened to double.
+     */
+    public void read(Column column, long from, long to, double[] dst, int offset) {
+        if (from < 0 || to > size() || from > to) throw new IndexOutOfBoundsException("rows " + from + " to " + to + " of " + size());
+        boolean isFloat = column == Column.HEADING || column == Column.CONFIDENCE;
+        int width = isFloat ? 4 : 8;
+        long row = from;
+        lock.readLock().lock();
+        try {
+            checkOpen();
+            while (row < to) {
+                MappedByteBuffer block = block(row, false);
+                int start = (int) (row % blockRows);
+                // the rest of the range or the rest of the block, whichever ends first
+                int n = (int) Math.min(to - row, blockRows - start);
+                int position = columnOffsets[column.ordinal()] + start * width;
+                if (isFloat) {
+                    for (int i = 0; i < n; i++) {
+                        dst[offset++] = block.getFloat(position + i * 4);
+                    }
+                } else {
+                    block.slice(position, n * 8).order(ByteOrder.LITTLE_ENDIAN).asDoubleBuffer().get(dst, offset, n);
+                    offset += n;
+                }
+                row += n;
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * First row at or after the time, size() if there is none. Rows have to be appended in time order.
+     */
+    public long rowAtTime(double time) {
+        long low = 0, high = size();
+        while (low < high) {
+            long middle = (low + high) >>> 1;
+            if (getTime(middle) < time) low = middle + 1;
+            else high = middle;
+        }
+        return low;
+    }
+
+    /**
+     * Rows [from, to) without copying them.
+     */
+    public View view(long from, long to) {
+        return view(from, to, 1);
+    }
+
+    /**
+     * Every step-th row of [from, to), for drawing a long track without all of its rows.
+     */
+    public View view(long from, long to, long step) {
+        if (from < 0 || to > size() || from > to) throw new IndexOutOfBoundsException("rows " + from + " to " + to + " of " + size());
+        if (step < 1) throw new IllegalArgumentException("step must be at least 1");
+        return new View(from, to, step);
+    }
+
+    /**
+     * The whole track, with about maxRows rows evenly spread over it. The last row is always included.
+     */
+    public View downsample(int maxRows) {
+        long n = size();
+        if (n == 0) return view(0, 0);
+        long step = Math.max(1, (n + maxRows - 1) / maxRows);
+        return view(n - 1 - (n - 1) / step * step, n, step);
+    }
+
+    /**
+     * Forces the rows to the disk, after this they survive a crash of the machine and not only of the process.
+     */
+    public void flush() {
+        if (!writable) return;
+        lock.readLock().lock();
+        try {
+            if (closed) return;
+            synchronized (blocks) {
+                for (MappedByteBuffer block : blocks) {
+                    block.force();
+                }
+            }
+            header.force();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public int getBlockRows() {
+        return blockRows;
+    }
+
+    /**
+     * Flushes the rows and unmaps the file. The store can't be used after this.
+     */
+    @Override
+    public void close() throws IOException {
+        flush();
+        lock.writeLock().lock();
+        try {
+            if (!closed) {
+                closed = true;
+                unmap(header);
+                for (MappedByteBuffer block : blocks) {
+                    unmap(block);
+                }
+                blocks.clear();
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+        channel.close();
+    }
+
+    /**
+     * Java 17 has no public way to unmap a buffer, Unsafe.invokeCleaner (jdk.unsupported) does it right away.
+     * Without it the mapping stays until the buffer is garbage collected.
+     */
+    private static void unmap(MappedByteBuffer buffer) {
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Field field = unsafeClass.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            invokeCleaner.invoke(field.get(null), buffer);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            System.err.println("couldn't unmap the trajectory store, it is released by the garbage collector: " + e);
+        }
+    }
+
+    /**
+     * Rows of the store picked by a range and a step. Index 0 is the first row of the range.
+     */
+    public class View {
+        private final long from;
+        private final long step;
+        private final int size;
+
+        private View(long from, long to, long step) {
+            this.from = from;
+            this.step = step;
+            long n = (to - from + step - 1) / step;
+            if (n > Integer.MAX_VALUE) throw new IllegalArgumentException("view is too long, use a bigger step");
+            size = (int) n;
+        }
+
+        public int size() {
+            return size;
+        }
+
+        // row in the store of the i-th row of the view
+        public long row(int i) {
+            if (i < 0 || i >= size) throw new IndexOutOfBoundsException("row " + i + " of a view of " + size);
+            return from + i * step;
+        }
+
+        public double getTime(int i) {
+            return TrajectoryStore.this.getTime(row(i));
+        }
+
+        public double getX(int i) {
+            return TrajectoryStore.this.getX(row(i));
+        }
+
+        public double getY(int i) {
+            return TrajectoryStore.this.getY(row(i));
+        }
+
+        public double getZ(int i) {
+            return TrajectoryStore.this.getZ(row(i));
+        }
+
+        public float getHeading(int i) {
+            return TrajectoryStore.this.getHeading(row(i));
+        }
+
+        public float getConfidence(int i) {
+            return TrajectoryStore.this.getConfidence(row(i));
+        }
+
+        public Point getPoint(int i) {
+            return TrajectoryStore.this.getPoint(row(i));
+        }
+
+        public Point[] toPoints() {
+            Point[] points = new Point[size];
+            for (int i = 0; i < size; i++) {
+                points[i] = getPoint(i);
+            }
+            return points;
+        }
+    }
+}
@@ -0,0 +1,170 @@
+package Navigation;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+Runs many recorded flights against the same map, for analysis after the flights.
+The quadtree of the map is loaded once, before any video starts, and shared by every video, as is the refiner of
+the fixes. The granularity models are only loaded if the quadtree can't be. The videos run at the same time on a bounded number of workers, each through its own
+pipeline (see DroneLocation.locate). Every video gets its own trajectory file.
+The models' query caches are turned off, they can't tell the videos apart and would answer a frame of one video
+with the matches of a similar frame of another.
+A video runs on a single pipeline whose stages mostly wait on each other, so more videos at once is what uses
+more cores. A video that fails is reported and the others go on.
+Usage: BatchProcessor video... or BatchProcessor list.txt with one video per line.
+-Dnavigation.batchWorkers sets how many videos run at once, one per core by default.
+@yoni
+ */
+public class BatchProcessor {
+    private final TileQuadtree<?> quadtree;
+    private final List<CompletableFuture<LocationFromMap>> models;
+    private final SubTileRefiner refiner;
+    private final int numWorkers;
+
+    // models are only used when quadtree is null, see DroneLocation.locate
+    public BatchProcessor(TileQuadtree<?> quadtree, List<CompletableFuture<LocationFromMap>> models,
+                          SubTileRefiner refiner, int numWorkers){
+        if(numWorkers < 1) throw new IllegalArgumentException("need at least one worker");
+        if(quadtree == null && models.isEmpty()) throw new IllegalArgumentException("nothing to localize with");
+        this.quadtree = quadtree;
+        this.models = models;
+        this.refiner = refiner;
+        this.numWorkers = numWorkers;
+    }
+
+    public static void main(String[] args) throws InterruptedException, IOException {
+        List<String> videos = videosFromArgs(args);
+        if(videos.isEmpty()){
+            System.err.println("usage: BatchProcessor video... | list.txt");
+            return;
+        }
+        int workers = Integer.getInteger("navigation.batchWorkers", Runtime.getRuntime().availableProcessors());
+
+        // offline there's no hurry to start, wait for what localizes so every video runs with the same from its first
+        // frame on, and its fixes don't depend on what happened to be loaded
+        TileQuadtree<?> quadtree = DroneLocation.awaitQuadtree();
+        List<CompletableFuture<LocationFromMap>> models = quadtree == null ?
+                LocationFromMap.loadAllAsync(DroneLocation.DATASETS) : List.of();
+        awaitLoaded(models);
+
+        BatchProcessor batch = new BatchProcessor(quadtree, models, DroneLocation.newRefiner(), workers);
+        batch.run(videos);
+        System.out.println(batch.refiner);
+        if(quadtree != null){
+            System.out.println(quadtree + ", " + quadtree.getWorkspacesCreated() + " query workspaces");
+        }
+        for(int i = 0; i < models.size(); i++){
+            LocationFromMap model = models.get(i).getNow(null);
+            if(model != null){
+                System.out.println("model " + i + " " + model.getQueryPool().getWorkspacesCreated() + " query workspaces");
+                model.closeTileStore();
+            }
+        }
+    }
+
+    /*
+    Runs every video and returns what came out of the ones that finished, in the order of videos.
+    Prints each video as it ends and the throughput once all of them did.
+     */
+    public List<DroneLocation.Flight> run(List<String> videos) throws InterruptedException {
+        long start = System.currentTimeMillis();
+        List<Path> trajectories = trajectoryPaths(videos);
+        for(CompletableFuture<LocationFromMap> model : models){
+            // models that are still loading get theirs turned off once they are loaded
+            model.thenAccept(loaded -> loaded.setQueryCache(null));
+        }
+        AtomicInteger threadCount = new AtomicInteger();
+        ExecutorService workers = Executors.newFixedThreadPool(Math.min(numWorkers, videos.size()), r -> {
+            Thread t = new Thread(r, "batch-" + threadCount.getAndIncrement());
+            t.setDaemon(true);
+            return t;
+        });
+        List<Future<DroneLocation.Flight>> running = new ArrayList<>();
+        for(int i = 0; i < videos.size(); i++){
+            String video = videos.get(i);
+            Path trajectory = trajectories.get(i);
+            running.add(workers.submit(() -> {
+                DroneLocation.Flight flight = DroneLocation.locate(video, quadtree, models, refiner,
+                        RenderConfig.headless(), trajectory);
+                System.out.println("finished " + flight);
+                return flight;
+            }));
+        }
+        workers.shutdown();
+
+        List<DroneLocation.Flight> flights = new ArrayList<>();
+        long frames = 0;
+        for(int i = 0; i < running.size(); i++){
+            try {
+                DroneLocation.Flight flight = running.get(i).get();
+                flights.add(flight);
+                frames += flight.framesRead;
+            } catch (ExecutionException e){
+                System.err.println("video " + videos.get(i) + " failed: " + e.getCause());
+            }
+        }
+        double hours = (System.currentTimeMillis() - start)/3_600_000.0;
+        System.out.printf("batch done: %d of %d videos, %d frames in %.1f s on %d workers, %.1f videos/hour%n",
+                flights.size(), videos.size(), frames, hours*3600, numWorkers, hours == 0 ? 0 : flights.size()/hours);
+        return flights;
+    }
+
+    /*
+    Trajectory file of every video, named after the video. Videos with the same name in different directories are
+    told apart by their directory, the same video twice is an error, both would write the same file.
+     */
+    static List<Path> trajectoryPaths(List<String> videos){
+        HashMap<String, Integer> names = new HashMap<>();
+        for(String video : videos){
+            names.merge(Path.of(video).getFileName().toString(), 1, Integer::sum);
+        }
+        List<Path> paths = new ArrayList<>();
+        HashSet<Path> taken = new HashSet<>();
+        for(String video : videos){
+            Path path = names.get(Path.of(video).getFileName().toString()) > 1 ?
+                    TrajectoryWriter.pathFor(video, true) : TrajectoryWriter.pathFor(video);
+            if(!taken.add(path)){
+                throw new IllegalArgumentException("two videos of the batch would both write " + path + ", " + video +
+                        " is listed twice or its directory has the same name as another one's");
+            }
+            paths.add(path);
+        }
+        return paths;
+    }
+
+    // a single argument ending in .txt is a list of videos, one per line, otherwise the arguments are the videos
+    static List<String> videosFromArgs(String[] args) throws IOException {
+        if(args.length == 1 && args[0].endsWith(".txt")){
+            List<String> videos = new ArrayList<>();
+            for(String line : Files.readAllLines(Path.of(args[0]))){
+                line = line.trim();
+                if(!line.isEmpty() && !line.startsWith("#")) videos.add(line);
+            }
+            return videos;
+        }
+        return List.of(args);
+    }
+
+    // waits until every model loaded or failed to, the failures were already printed by LocationFromMap.loadAsync
+    private static void awaitLoaded(List<CompletableFuture<LocationFromMap>> models) throws InterruptedException {
+        for(CompletableFuture<LocationFromMap> model : models){
+            try {
+                model.get();
+            } catch (ExecutionException e){
+                // the batch runs with the models that did load
+            }
+        }
+    }
+}
@@ -1,21 +1,27 @@
 package Navigation;
 
+import Navigation.PipelineStage.QueuePolicy;
+import boofcv.abst.scene.SceneRecognition;
 import boofcv.io.MediaManager;
 import boofcv.io.image.ConvertBufferedImage;
-import boofcv.io.image.SimpleImageSequence;
 import boofcv.io.wrapper.DefaultMediaManager;
 import boofcv.struct.image.GrayF32;
-import boofcv.struct.image.ImageType;
+import boofcv.struct.image.GrayU8;
 import boofcv.struct.image.Planar;
 import org.bridj.util.Pair;
+import org.ddogleg.struct.DogArray;
 
 
 import java.awt.*;
-import java.util.ArrayList;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static Navigation.FinalVariables.MAP_LOCATION;
-import static Navigation.ImageUtils.shrinkImage;
-import static Navigation.ImageUtils.squareImage;
+import static Navigation.ImageUtils.squareAndShrinkImage;
 
 /*
 Takes video footage, height and direction.
@@ -23,83 +29,389 @@ Uses mosiacing and scene recognition algorithms to estimate GPS location.
 @yoni
  */
 public class DroneLocation {
-    private static final int SKIPPED_FRAMES = 1;
     private static final int SAVE_EVERY_NUM_STITCHES = 50;
 
-    private static final int LOCATE_ON_MAP_EVERY_NUM_FRAMES = 90;
-    private static final int LOCATION_LOG_FREQ = 25;
+    // localization runs when the position got too uncertain (see PositionFilter), all in map pixels
+    private static final Pair<Integer,Integer> START_LOCATION = new Pair<>(349, 446);// use mspaint to get point
+    private static final double START_STD = 1000;// unknown until the first fix
+    private static final double MAX_POSITION_STD = 80;
+    private static final double ODOMETRY_STD = 1;
+    private static final double ODOMETRY_RELATIVE_STD = 0.05;
+    // without odometry the drone can be anywhere it flies to, this makes a fix about every 90 frames
+    private static final double NO_ODOMETRY_STD = 8;
+    // how often fixes may run and how many frames may be skipped depends on the frame budget, see LatencyScheduler
+    private static final int MIN_FRAMES_BETWEEN_FIXES = 10;
+    private static final int MAX_FRAMES_BETWEEN_FIXES = 300;
+    private static final int MAX_SKIP = 4;
+    private static final int STATS_EVERY_NUM_FRAMES = 300;
+
+    // pipeline queues. frames wait here when a stage is slower than the one before it
+    private static final int FRAME_QUEUE_SIZE = 8;
+    // localization is slow and only needs a recent frame, so don't let old frames pile up
+    private static final int LOCALIZATION_QUEUE_SIZE = 1;
+    private static final QueuePolicy LOCALIZATION_QUEUE_POLICY = QueuePolicy.DROP_OLDEST;
+    // reusable frame buffers, full resolution and after preprocessing
+    private static final int DECODE_POOL_SIZE = 4;
+    private static final int FRAME_POOL_SIZE = 12;
+    // a model that takes longer than this is left out of that localization
+    private static final long LOCALIZATION_DEADLINE_MS = 1500;
+    private static final boolean USE_ODOMETRY = false;
+    private static final int PREPROCESS_SHRINK = 2;
+    private static final Color[] MATCH_COLORS = {Color.BLUE, Color.RED, Color.GREEN, Color.YELLOW};
+    // the fix is refined with the best tile (see SubTileRefiner), map pixels around the tile searched for small frames
+    private static final int REFINE_MARGIN = 30;
+    // a refined fix is trusted if the frame and the map correlate at least this much, else the tile center is used
+    private static final double MIN_REFINE_SCORE = 0.8;
+    private static final double REFINED_FIX_STD = 4;
+    // the quadtree is searched this many position stds around the position, and at least SEARCH_MIN_RADIUS map pixels
+    private static final double SEARCH_STDS = 3;
+    private static final int SEARCH_MIN_RADIUS = 200;
+    private static final int QUADTREE_MATCHES = 1;
+
+    // granularities of the map, in tiles per side
+    static final int[] DATASETS = {5, 6, 8, 11};
 
     // main class for testing
-    public static void main( String[] args ) {
+    public static void main( String[] args ) throws InterruptedException, IOException {
+        // every fix comes from the quadtree of the map, it's loaded before the video starts so the first fixes
+        // don't depend on how fast it loads. Only if it can't be loaded the granularities are used instead
+        TileQuadtree<?> quadtree = awaitQuadtree();
+        List<CompletableFuture<LocationFromMap>> locationObjects = quadtree == null ?
+                LocationFromMap.loadAllAsync(DATASETS) : List.of();
+        SubTileRefiner refiner = newRefiner();
+
+        String fileName = "resources/ariel.mp4";
+        // -Dnavigation.headless=true runs without the gui windows and
+        // -Dnavigation.displayFps caps how often they are redrawn
+        Flight flight = locate(fileName, quadtree, locationObjects, refiner, RenderConfig.fromSystemProperties(), null);
+        for(int i = 0; i < locationObjects.size(); i++){
+            LocationFromMap model = locationObjects.get(i).getNow(null);
+            if(model != null && model.getQueryCache() != null){
+                System.out.println("model " + i + " " + model.getQueryCache());
+            }
+            if(model != null){
+                model.closeTileStore();
+            }
+        }
+        System.out.println(flight);
+        System.out.println(refiner);
+    }
+
+    /*
+    The quadtree of the map, waited for. null if it couldn't be loaded, the failure is printed.
+     */
+    public static TileQuadtree<?> awaitQuadtree() throws InterruptedException {
+        try {
+            return TileQuadtree.ofMapAsync().get();
+        } catch (ExecutionException e){
+            System.err.println("no quadtree, localizing with the granularities: " + e.getCause());
+            return null;
+        }
+    }
+
+    /*
+    Refines the fixes on the map, see SubTileRefiner. It reads the map and keeps the regions it already searched,
+    so one is made per run and shared by every video.
+     */
+    public static SubTileRefiner newRefiner(){
+        // the map is a frame of the video before it was shrunk, so a frame pixel is PREPROCESS_SHRINK map pixels
+        return new SubTileRefiner(MapToData.loadMapGray(), PREPROCESS_SHRINK, REFINE_MARGIN);
+    }
+
+    /*
+    Runs one video through the pipeline and returns once every frame was handled. Every fix comes from the quadtree,
+    models are only the fallback when it is null and can still be loading. They and the refiner are shared and can be
+    used by several videos at once (see BatchProcessor). The position on every processed frame is written to
+    trajectoryPath, unless it is null.
+     */
+    public static Flight locate(String fileName, TileQuadtree<?> quadtree, List<CompletableFuture<LocationFromMap>> models,
+                                SubTileRefiner refiner, RenderConfig render, Path trajectoryPath)
+            throws InterruptedException, IOException {
+        long start = System.currentTimeMillis();
         // Load an image sequence
         MediaManager media = DefaultMediaManager.INSTANCE;
+        // frames stay as decoded bytes until a stage converts what it needs, frames that aren't needed are skipped
+        FrameIngest ingest = FrameIngest.open(media, fileName, DECODE_POOL_SIZE);
+        TrajectoryWriter trajectory = trajectoryPath == null ? null : new TrajectoryWriter(trajectoryPath);
+        try(ingest; trajectory){
+            IngestFrame first = ingest.next();
+            if(first == null) throw new IllegalArgumentException("video " + fileName + " has no frames");
+            Planar<GrayF32> firstframe = squareAndShrinkImage(first.getRaw(), PREPROCESS_SHRINK,
+                    new Planar<>(GrayF32.class, 1, 1, 3));
+            first.release();
+            // create our location detection objects
+            MotionFromMosiac motionFromMosiac = USE_ODOMETRY ? new MotionFromMosiac(firstframe, render) : null; // init on first frame
+            // without the quadtree, queries the granularities in parallel instead of one after another, each one once
+            // it is loaded
+            LocalizationCoordinator coordinator = quadtree != null ? null :
+                    LocalizationCoordinator.whenLoaded(models, LOCALIZATION_DEADLINE_MS);
+            PositionFilter position = new PositionFilter(START_LOCATION.getFirst(), START_LOCATION.getSecond(), START_STD,
+                    ODOMETRY_STD, ODOMETRY_RELATIVE_STD, NO_ODOMETRY_STD, MAX_POSITION_STD, MIN_FRAMES_BETWEEN_FIXES);
+            // the map is a frame of the same video, so a map pixel is a pixel of the video before preprocessing
+            double odometryToMap = motionFromMosiac == null ? 0 : PREPROCESS_SHRINK*motionFromMosiac.getPixelScale();
+            // display gui windows
+            MapGui mapGui = new MapGui(render);// gui for displaying map with red square for match
+            VideoGui videoGui = new VideoGui(firstframe, render);
+            videoGui.display();
+            mapGui.display();
+            if(motionFromMosiac != null){
+                motionFromMosiac.displayGui();
+            }
 
-        String fileName = "resources/ariel.mp4";
-        SimpleImageSequence<Planar<GrayF32>> video =
-                media.openVideo(fileName, ImageType.pl(3, GrayF32.class));
-
-
-        Planar<GrayF32> firstframe = shrinkImage(squareImage(video.next()), 2);
-        // create our location detection objects
-//        MotionFromMosiac motionFromMosiac = new MotionFromMosiac(firstframe); // init on first frame
-        // loads a map with a database, make sure corresponds to video
-        // load several databases with different scales
-        ArrayList<LocationFromMap> locationObjects = new ArrayList<>();
-        locationObjects.add( new LocationFromMap(5));
-        locationObjects.add( new LocationFromMap(6));
-        locationObjects.add( new LocationFromMap(8));
-        locationObjects.add( new LocationFromMap(11));
-        // display gui windows
-        MapGui mapGui = new MapGui();// gui for displaying map with red square for match
-        VideoGui videoGui = new VideoGui(firstframe);
-        videoGui.display();
-        mapGui.display();
-//        motionFromMosiac.displayGui();
-
-        // traverse whole video
-        int num_frames = 0;
-        while(video.hasNext()){
-
-            Planar<GrayF32> frame = shrinkImage(squareImage(video.next()), 2);
-            videoGui.update(ConvertBufferedImage.convertTo(frame,null, true));
-            // update mosiac
-//            if(!motionFromMosiac.processFrame(frame)){
-//                throw new RuntimeException("failed to process frame "+ num_frames);
-//            }
-            if(num_frames%300 == 0){
-                System.out.println("frame"+num_frames);
+            // each stage runs on its own thread so a slow localization doesn't hold back reading the video.
+            // decode -> preprocess -> odometry -> output
+            //                     \-> localization -/
+            FramePipeline pipeline = new FramePipeline();
+            AtomicInteger lastProcessed = new AtomicInteger(-1);
+            // fits the work to -Dnavigation.frameBudgetMs of cpu per video frame, by skipping frames and spacing fixes
+            LatencyScheduler scheduler = new LatencyScheduler(LatencyScheduler.budgetFromSystemProperties(), MAX_SKIP,
+                    MIN_FRAMES_BETWEEN_FIXES, MAX_FRAMES_BETWEEN_FIXES, ingest);
+            // frames are written into pooled buffers instead of allocating new images for every frame.
+            // when all buffers are in use the producing stage waits, just like on a full queue
+            FramePool framePool = new FramePool(FRAME_POOL_SIZE, 3);
+            // the sequence recycles its image, so each kept frame is copied into its own buffer before leaving this thread
+            PipelineStage<Void, IngestFrame> decode = pipeline.add(PipelineStage.source("decode",
+                    () -> readNext(ingest, scheduler, pipeline)));
+            PipelineStage<IngestFrame, VideoFrame> preprocess = pipeline.add(PipelineStage.create("preprocess",
+                    FRAME_QUEUE_SIZE, QueuePolicy.BLOCK,
+                    frame -> {
+                        VideoFrame small = framePool.frame(frame.getIndex());
+                        squareAndShrinkImage(frame.getRaw(), PREPROCESS_SHRINK, small.image);
+                        return small;
+                    }));
+            PipelineStage<VideoFrame, Runnable> odometry = pipeline.add(PipelineStage.create("odometry",
+                    FRAME_QUEUE_SIZE, QueuePolicy.BLOCK,
+                    frame -> {
+                        // update mosiac, and the position by how far it moved
+                        int framesPassed = frame.index - lastProcessed.getAndSet(frame.index);
+                        if(motionFromMosiac == null){
+                            position.predictWithoutOdometry(framesPassed);
+                        }
+                        else if(motionFromMosiac.processFrame(frame.image)){
+                            position.predict(motionFromMosiac.getWorldLocation(), odometryToMap);
+                        }
+                        else {
+                            // the next fix puts the position back on track
+                            System.out.println("odometry failed on frame " + frame.index);
+                            position.odometryLost();
+                        }
+                        if(trajectory != null){
+                            trajectory.write(frame.index, position);
+                        }
+                        // keep the frame until it is drawn
+                        frame.retain();
+                        return () -> {
+                            try {
+                                videoGui.update(frame.image);
+                            } finally {
+                                frame.release();
+                            }
+                        };
+                    }));
+            PipelineStage<VideoFrame, Runnable> localization = pipeline.add(PipelineStage.create("localization",
+                    LOCALIZATION_QUEUE_SIZE, LOCALIZATION_QUEUE_POLICY,
+                    frame -> quadtree != null ? locateOnQuadtree(frame, quadtree, refiner, position, mapGui) :
+                            locateOnMap(frame, coordinator, refiner, position, mapGui)));
+            // all drawing happens here, in the order results arrive
+            PipelineStage<Runnable, Void> output = pipeline.add(PipelineStage.create("output",
+                    FRAME_QUEUE_SIZE, QueuePolicy.BLOCK,
+                    draw -> {
+                        draw.run();
+                        return null;
+                    }));
+
+            scheduler.watch(List.of(preprocess, odometry), localization);
+
+            decode.connect(preprocess);
+            preprocess.connect(odometry).connect(output);
+            // only as often as the position needs it, more often when odometry is lost, but not more than the budget allows
+            preprocess.connect(localization, frame -> position.requestFix(frame.index, scheduler.getRecognitionInterval()))
+                    .connect(output);
+
+            pipeline.start();
+            try {
+                pipeline.awaitCompletion();
+            } finally {
+                // the models aren't the coordinator's, only its workers are stopped
+                if(coordinator != null){
+                    coordinator.shutdown();
+                }
+                if(motionFromMosiac != null){
+                    motionFromMosiac.close();
+                }
+            }
+            System.out.println(fileName + " done " + ingest + " " + pipeline.statsString());
+            System.out.println(scheduler);
+            return new Flight(fileName, ingest.getFramesKept() + ingest.getFramesSkipped(), ingest.getFramesKept(),
+                    position, System.currentTimeMillis() - start);
+        }
+    }
+
+    // what came out of running one video
+    public static class Flight {
+        public final String fileName;
+        public final long framesRead, framesProcessed;
+        public final PositionFilter position;
+        public final long millis;
+
+        Flight(String fileName, long framesRead, long framesProcessed, PositionFilter position, long millis){
+            this.fileName = fileName;
+            this.framesRead = framesRead;
+            this.framesProcessed = framesProcessed;
+            this.position = position;
+            this.millis = millis;
+        }
+
+        @Override
+        public String toString(){
+            return String.format("%s: %d frames read, %d processed in %.1f s (%.1f fps), %s", fileName, framesRead,
+                    framesProcessed, millis/1000.0, millis == 0 ? 0 : framesRead*1000.0/millis, position);
+        }
+    }
+
+    /*
+    Next frame the scheduler wants processed, null at the end of the video. Frames in between are skipped
+    without being copied.
+     */
+    private static IngestFrame readNext(FrameIngest ingest, LatencyScheduler scheduler, FramePipeline pipeline){
+        try {
+            while(ingest.hasNext()){
+                int index = ingest.getIndex();
+                if(index % STATS_EVERY_NUM_FRAMES == 0){
+                    // queue depth, throughput and latency of every stage, and what the scheduler made of them
+                    System.out.println("frame" + index + " " + ingest + " " + pipeline.statsString());
+                    System.out.println(scheduler);
+                }
+                if(scheduler.shouldProcess(index)) return ingest.next();
+                ingest.skip();
+            }
+            return null;
+        } catch (InterruptedException e){
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
+
+    // runs every model on the frame, returns the drawing of the matches to be done by the output stage
+    private static Runnable locateOnMap(VideoFrame frame, LocalizationCoordinator coordinator, SubTileRefiner refiner,
+                                        PositionFilter position, MapGui mapGui) throws InterruptedException {
+        if(coordinator.getNumReady() == 0){
+            // odometry runs meanwhile, localization starts with the first model that is ready
+            System.out.println("no model loaded yet, not locating frame " + frame.index);
+            // not a recognition, the scheduler shouldn't count it as one
+            PipelineStage.skipItem();
+            return null;
+        }
+        System.out.println("locating frame "+frame.index + "on map");
+        // all granularities are queried at once, around where the filter thinks the drone is
+        // converted once, for every model and for the refinement
+        GrayU8 gray = frame.gray();
+        LocalizationCoordinator.Result result = coordinator.locate(gray, nearLocation(position, coordinator));
+        if(result.isPartial()){
+            System.out.println("only " + result.getNumAnswered() + " of " + result.perModel.size() +
+                    " models answered within " + LOCALIZATION_DEADLINE_MS + "ms, " + coordinator.getNumReady() +
+                    " are loaded");
+        }
+        // the best match over all granularities is the fix, as good as its tile is small
+        // then registering the frame against the map around that tile puts it on the right pixel
+        LocalizationCoordinator.RankedMatch best = result.best();
+        SubTileRefiner.Result refined = null;
+        if(best != null){
+            TileIndex tiles = coordinator.getModel(best.model).getTileIndex();
+            int tile = tiles.findTile(best.match.id);
+            refined = refine(refiner, gray, tiles.getMinX(tile), tiles.getMinY(tile), tiles.getMaxX(tile),
+                    tiles.getMaxY(tile));
+            boolean accepted;
+            if(refined != null){
+                accepted = position.update(refined.x, refined.y, REFINED_FIX_STD);
             }
-            if(num_frames%LOCATE_ON_MAP_EVERY_NUM_FRAMES == 0){
-                System.out.println("locating frame "+num_frames + "on map");
-                // get matches and draw rectange over first in map
-//                ArrayList<DogArray<SceneRecognition.Match>> matches = new ArrayList<>();
-                ArrayList<Color> colors = new ArrayList<>();
-                colors.add(Color.BLUE);
-                colors.add(Color.RED);
-                colors.add(Color.GREEN);
-                colors.add(Color.YELLOW);
-                mapGui.clearGui();
-
-                // get and draw match
-                for(int i = 0; i < locationObjects.size(); i++){
-//                    matches.add(l.getMatchesArray(frame));
-                    // use mspaint to get point
-                    mapGui.updateGui(locationObjects.get(i).getMatchesArray(frame, new Pair<Integer,Integer>(349,446)).get(0), colors.get(i));
+            else {
+                accepted = position.update((tiles.getMinX(tile) + tiles.getMaxX(tile))/2.0,
+                        (tiles.getMinY(tile) + tiles.getMaxY(tile))/2.0, tiles.getTileWidth()/Math.sqrt(12));
+            }
+            System.out.println((accepted ? "fix " : "rejected fix ") + best.match.id +
+                    (refined == null ? "" : " refined to " + refined) + ", " + position);
+        }
+        SubTileRefiner.Result marker = refined;
+        return () -> {
+            // get matches and draw rectange over first in map
+            mapGui.clearGui();
+            // draw best match of each model that answered in time
+            for(int i = 0; i < result.perModel.size(); i++){
+                DogArray<SceneRecognition.Match> matches = result.perModel.get(i);
+                if(matches != null && matches.size > 0){
+                    mapGui.updateGui(coordinator.getModel(i).getTileIndex(), matches.get(0),
+                            MATCH_COLORS[i % MATCH_COLORS.length]);
                 }
             }
-//            if(num_frames % SKIPPED_FRAMES != 0){
-//                video.next();
-//                num_frames ++;
-//                continue;
-//            }
-//
-//            if(num_frames %SKIPPED_FRAMES*LOCATION_LOG_FREQ == 0) {
-//                //TODO get location
-//            }
-
-            num_frames ++;
+            if(marker != null){
+                mapGui.drawMarker(marker.x, marker.y, Color.MAGENTA);
+            }
+        };
+    }
+
+    /*
+    Searches the quadtree around where the filter thinks the drone is, as far as it could have gone. The best tile is
+    the fix, refined like the tiles of the granularities.
+     */
+    private static Runnable locateOnQuadtree(VideoFrame frame, TileQuadtree<?> quadtree, SubTileRefiner refiner,
+                                             PositionFilter position, MapGui mapGui){
+        System.out.println("locating frame "+frame.index + " on the quadtree");
+        GrayU8 gray = frame.gray();
+        Pair<Integer,Integer> near = position.getMapLocation();
+        int radius = (int)Math.max(SEARCH_MIN_RADIUS, SEARCH_STDS*position.getStd());
+        List<TileQuadtree.Match> matches = quadtree.query(gray, near.getFirst() - radius, near.getSecond() - radius,
+                near.getFirst() + radius, near.getSecond() + radius, QUADTREE_MATCHES);
+        if(matches.isEmpty()){
+            System.out.println("nothing found for frame " + frame.index + " within " + radius + " of " + near);
+            return () -> mapGui.clearGui();
+        }
+        TileQuadtree.Match best = matches.get(0);
+        // tiles on the map's edge often can't be refined, their center is the fix then
+        SubTileRefiner.Result refined = refine(refiner, gray, best.minX, best.minY, best.maxX, best.maxY);
+        boolean accepted;
+        if(refined != null){
+            accepted = position.update(refined.x, refined.y, REFINED_FIX_STD);
         }
+        else {
+            accepted = position.update((best.minX + best.maxX)/2.0, (best.minY + best.maxY)/2.0,
+                    (best.maxX - best.minX)/Math.sqrt(12));
+        }
+        System.out.println((accepted ? "fix " : "rejected fix ") + best +
+                (refined == null ? "" : " refined to " + refined) + ", " + position);
+        SubTileRefiner.Result marker = refined;
+        return () -> {
+            mapGui.clearGui();
+            mapGui.drawRectangle(best.minX, best.minY, best.maxX, best.maxY, MATCH_COLORS[best.level % MATCH_COLORS.length]);
+            if(marker != null){
+                mapGui.drawMarker(marker.x, marker.y, Color.MAGENTA);
+            }
+        };
+    }
 
+    // the frame's position inside the tile, null if it can't be refined or the match is too weak, then the tile is the fix
+    private static SubTileRefiner.Result refine(SubTileRefiner refiner, GrayU8 gray, int minX, int minY, int maxX, int maxY){
+        SubTileRefiner.Result refined;
+        try {
+            refined = refiner.refine(gray, minX, minY, maxX, maxY);
+        } catch (IllegalArgumentException e){
+            System.out.println("couldn't refine the fix in (" + minX + "," + minY + ")-(" + maxX + "," + maxY + "): " +
+                    e.getMessage());
+            return null;
+        }
+        return refined == null || refined.score < MIN_REFINE_SCORE ? null : refined;
+    }
 
+    // the filter's position, moved inside the tiles of every loaded model so they can all search around it
+    private static Pair<Integer,Integer> nearLocation(PositionFilter position, LocalizationCoordinator coordinator){
+        Pair<Integer,Integer> near = position.getMapLocation();
+        int x = near.getFirst(), y = near.getSecond();
+        for(int i = 0; i < coordinator.getNumModels(); i++){
+            LocationFromMap model = coordinator.getModel(i);
+            if(model == null) continue;
+            x = model.getTileIndex().clampX(x);
+            y = model.getTileIndex().clampY(y);
+        }
+        return new Pair<>(x, y);
     }
 }
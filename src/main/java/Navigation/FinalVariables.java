@@ -1,8 +1,16 @@
 package Navigation;
 
 public class FinalVariables {
-    final static String MODEL_SAVE_DIRECTORY_GENERIC = "resources/for_scene/pretrained";// should append corresponding number
+    final static String VOCABULARY_PATH = "resources/for_scene/vocabulary.bin";// shared by every granularity
+    final static int VOCABULARY_NUM_TILES = 8;// granularity the vocabulary is learned from
+    final static String INDEX_PATH_GENERIC = "resources/for_scene/index";// append number, then TYPE_INDEX
+    final static String TYPE_INDEX = ".bin";
     final static String IMAGE_TRAIN_PATH_GENERIC = "resources/for_scene/trainingImages";
+    final static String TILE_STORE_PATH_GENERIC = "resources/for_scene/tiles";// append number, then TYPE_TILE_STORE
+    final static String TYPE_TILE_STORE = ".tiles";
+    final static String QUADTREE_PATH = "resources/for_scene/quadtree.bin";// overlapping tiles of every size, see TileQuadtree
+    final static String TRAJECTORY_PATH_GENERIC = "resources/trajectories/";// append the video name, then TYPE_TRAJECTORY
+    final static String TYPE_TRAJECTORY = ".csv";
 
     final static String MAP_LOCATION =  "resources/for_scene/frame_5104.jpg";
     final static String TYPE_IMAGE_TRAIN = ".png";
@@ -0,0 +1,138 @@
+package Navigation;
+
+import boofcv.io.MediaManager;
+import boofcv.io.image.SimpleImageSequence;
+import boofcv.struct.image.ImageType;
+import boofcv.struct.image.InterleavedU8;
+
+import java.io.Closeable;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/*
+Reads a video for the pipeline. Frames are kept the way the decoder gives them, 3 bytes a pixel instead of the
+12 of a float color image, and only converted once they are shrunk (see IngestFrame).
+A frame nobody needs is skipped: the decoder still has to go through it, video frames depend on the ones before
+them, but it isn't copied or converted and takes no buffer.
+Buffers are pooled like FramePool, when all maxFrames are in use next waits for one to be released.
+Not thread safe, one thread reads the video.
+@yoni
+ */
+public class FrameIngest implements Closeable {
+    // weight of the newest frame in the moving average of the read time
+    private static final double READ_SMOOTHING = 0.1;
+
+    private final SimpleImageSequence<InterleavedU8> sequence;
+    private final BlockingQueue<IngestFrame> free;
+    private final int maxFrames;
+    private int created;
+
+    private int nextIndex;
+    private long framesSkipped, framesKept;
+    private volatile double averageReadNanos;
+    private volatile long startTime, lastReadTime;
+
+    public FrameIngest(SimpleImageSequence<InterleavedU8> sequence, int maxFrames){
+        if(maxFrames < 1) throw new IllegalArgumentException("ingest needs at least one frame buffer");
+        this.sequence = sequence;
+        this.maxFrames = maxFrames;
+        free = new ArrayBlockingQueue<>(maxFrames);
+    }
+
+    public static FrameIngest open(MediaManager media, String fileName, int maxFrames){
+        SimpleImageSequence<InterleavedU8> sequence = media.openVideo(fileName, ImageType.il(3, InterleavedU8.class));
+        if(sequence == null) throw new IllegalArgumentException("can't open video " + fileName);
+        return new FrameIngest(sequence, maxFrames);
+    }
+
+    public boolean hasNext(){
+        return sequence.hasNext();
+    }
+
+    // index in the video of the frame next or skip would read
+    public int getIndex(){
+        return nextIndex;
+    }
+
+    // goes past the next frame without keeping it, false at the end of the video
+    public boolean skip(){
+        if(!sequence.hasNext()) return false;
+        long start = System.nanoTime();
+        sequence.next();
+        recordRead(start);
+        nextIndex++;
+        framesSkipped++;
+        return true;
+    }
+
+    // the next frame in a pooled buffer, null at the end of the video. Release it when done
+    public IngestFrame next() throws InterruptedException {
+        if(!sequence.hasNext()) return null;
+        IngestFrame frame = acquire();
+        long start = System.nanoTime();
+        frame.raw.setTo(sequence.next());
+        recordRead(start);
+        frame.reset(nextIndex++);
+        framesKept++;
+        return frame;
+    }
+
+    private IngestFrame acquire() throws InterruptedException {
+        IngestFrame frame = free.poll();
+        if(frame != null) return frame;
+        if(created < maxFrames){
+            created++;
+            return new IngestFrame(this);
+        }
+        return free.take();
+    }
+
+    void recycle(IngestFrame frame){
+        if(!free.offer(frame)){
+            throw new IllegalStateException("released more frames than the ingest holds");
+        }
+    }
+
+    private void recordRead(long start){
+        long now = System.nanoTime();
+        if(startTime == 0) startTime = start;
+        lastReadTime = now;
+        double average = averageReadNanos;
+        averageReadNanos = framesSkipped + framesKept == 0 ? now - start : average + READ_SMOOTHING*(now - start - average);
+    }
+
+    // moving average of the time to read a video frame, kept or skipped
+    public double getAverageReadMillis(){
+        return averageReadNanos/1e6;
+    }
+
+    // video frames read per second, kept or skipped
+    public double getReadFps(){
+        long start = startTime;
+        double seconds = (lastReadTime - start)/1e9;
+        return start == 0 || seconds <= 0 ? 0 : (framesSkipped + framesKept)/seconds;
+    }
+
+    public long getFramesSkipped(){
+        return framesSkipped;
+    }
+
+    public long getFramesKept(){
+        return framesKept;
+    }
+
+    public int getBuffersCreated(){
+        return created;
+    }
+
+    @Override
+    public String toString(){
+        return String.format("ingest[kept %d, skipped %d, buffers %d, %.1f ms/frame, %.1f fps]",
+                framesKept, framesSkipped, created, getAverageReadMillis(), getReadFps());
+    }
+
+    @Override
+    public void close(){
+        sequence.close();
+    }
+}
@@ -0,0 +1,51 @@
+package Navigation;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+Holds the stages of a frame pipeline, starts them together and reports their queue depth and throughput.
+Stages are wired to each other with PipelineStage.connect before start is called.
+@yoni
+ */
+public class FramePipeline {
+    private final List<PipelineStage<?, ?>> stages = new ArrayList<>();
+
+    public <I, O> PipelineStage<I, O> add(PipelineStage<I, O> stage){
+        stages.add(stage);
+        return stage;
+    }
+
+    public void start(){
+        // start from the end so every consumer is waiting before its producer starts
+        for(int i = stages.size() - 1; i >= 0; i--){
+            stages.get(i).start();
+        }
+    }
+
+    // waits until the source ran out and every stage drained its queue
+    public void awaitCompletion() throws InterruptedException {
+        for(PipelineStage<?, ?> stage : stages){
+            stage.join();
+        }
+    }
+
+    public void stop(){
+        for(PipelineStage<?, ?> stage : stages){
+            stage.interrupt();
+        }
+    }
+
+    public List<PipelineStage<?, ?>> getStages(){
+        return stages;
+    }
+
+    public String statsString(){
+        StringBuilder sb = new StringBuilder();
+        for(PipelineStage<?, ?> stage : stages){
+            if(sb.length() > 0) sb.append(' ');
+            sb.append(stage);
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,75 @@
+package Navigation;
+
+import boofcv.struct.image.GrayF32;
+import boofcv.struct.image.GrayU8;
+import boofcv.struct.image.Planar;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/*
+A small pool of frame buffers that are reused instead of allocating a new image for every frame.
+At most maxFrames buffers ever exist, when all are in use acquire waits until one is released,
+which also keeps a fast producer from running too far ahead of the consumers.
+The gray views of the frames are reused the same way, there's never more of them than frames.
+@yoni
+ */
+public class FramePool {
+    private final BlockingQueue<Planar<GrayF32>> free;
+    private final ConcurrentLinkedQueue<GrayU8> freeGray = new ConcurrentLinkedQueue<>();
+    private final int numBands;
+    private final int maxFrames;
+    private int created;
+
+    public FramePool(int maxFrames, int numBands){
+        if(maxFrames < 1) throw new IllegalArgumentException("pool needs at least one frame");
+        this.maxFrames = maxFrames;
+        this.numBands = numBands;
+        free = new ArrayBlockingQueue<>(maxFrames);
+    }
+
+    // a buffer to write into. its size is whatever it had last, the writer reshapes it
+    public Planar<GrayF32> acquire() throws InterruptedException {
+        Planar<GrayF32> image = free.poll();
+        if(image != null) return image;
+        synchronized (this){
+            if(created < maxFrames){
+                created++;
+                return new Planar<>(GrayF32.class, 1, 1, numBands);
+            }
+        }
+        return free.take();
+    }
+
+    public void release(Planar<GrayF32> image){
+        if(!free.offer(image)){
+            throw new IllegalStateException("released more frames than the pool holds");
+        }
+    }
+
+    // a buffer for a frame's gray view, see VideoFrame.gray. the writer reshapes it
+    GrayU8 acquireGray(){
+        GrayU8 gray = freeGray.poll();
+        return gray != null ? gray : new GrayU8(1, 1);
+    }
+
+    void releaseGray(GrayU8 gray){
+        freeGray.offer(gray);
+    }
+
+    // wraps a buffer from this pool as a frame that returns it here once released by everyone
+    public VideoFrame frame(int index) throws InterruptedException {
+        return new VideoFrame(index, acquire(), this);
+    }
+
+    public int getCreated(){
+        synchronized (this){
+            return created;
+        }
+    }
+
+    public int getFree(){
+        return free.size();
+    }
+}
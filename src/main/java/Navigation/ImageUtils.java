@@ -1,14 +1,18 @@
 package Navigation;
 
 import boofcv.alg.filter.misc.AverageDownSampleOps;
+import boofcv.core.image.ConvertImage;
 import boofcv.io.image.ConvertBufferedImage;
 import boofcv.struct.image.GrayF32;
+import boofcv.struct.image.GrayU8;
+import boofcv.struct.image.InterleavedU8;
 import boofcv.struct.image.Planar;
 
 import javax.imageio.ImageIO;
 import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
+import java.util.Arrays;
 
 public class ImageUtils {
 
@@ -18,8 +22,15 @@ public class ImageUtils {
         return shrunkImage;
     }
     public static Planar<GrayF32> squareImage(Planar<GrayF32> image){
+        int[] square = squareRegion(image.width, image.height);
+        return image.subimage(square[0], square[1], square[2], square[3], null);
+    }
+
+    /*
+    Square part of a width x height image that squareImage keeps, as startX, startY, endX, endY.
+     */
+    public static int[] squareRegion(int width, int height){
         // take smallest of height/width
-        int height = image.height; int width = image.width;
         // coordinates of two points that represent square
         int startX = 0; int startY = 0;
         int endX = 0; int endY = 0;
@@ -38,7 +49,117 @@ public class ImageUtils {
             startX += width / 2;
             endX += width / 2;
         }
-        return image.subimage(startX, startY, endX, endY, null);
+        return new int[]{startX, startY, endX, endY};
+    }
+
+    /*
+    Same as shrinkImage but writes into output, which is reshaped to fit. Nothing is allocated once output
+    has the right size, so the same buffer can be used for every frame.
+     */
+    public static Planar<GrayF32> shrinkImage(Planar<GrayF32> image, int shrinkFactor, Planar<GrayF32> output){
+        downSampleRegion(image, 0, 0, image.width, image.height, shrinkFactor, output);
+        return output;
+    }
+
+    /*
+    squareImage and shrinkImage in one pass. Each output pixel is the average of a block of the square
+    region read straight from the full frame, so the full resolution square is never copied.
+     */
+    public static Planar<GrayF32> squareAndShrinkImage(Planar<GrayF32> image, int shrinkFactor, Planar<GrayF32> output){
+        int height = image.height; int width = image.width;
+        int startX, startY, size;
+        // same region as squareRegion, without allocating it
+        if(height>width){
+            size = width; startX = 0; startY = width/2;
+        }
+        else {
+            size = height; startX = width/2; startY = 0;
+        }
+        downSampleRegion(image, startX, startY, startX + size, startY + size, shrinkFactor, output);
+        return output;
+    }
+
+    /*
+    Same as above for a frame straight from the decoder, bytes with the bands interleaved. The full frame is never
+    converted to floats, only the shrunk square is.
+     */
+    public static Planar<GrayF32> squareAndShrinkImage(InterleavedU8 image, int shrinkFactor, Planar<GrayF32> output){
+        if(shrinkFactor < 1) throw new IllegalArgumentException("shrink factor must be positive");
+        int[] square = squareRegion(image.width, image.height);
+        int x0 = square[0], y0 = square[1];
+        if(square[2] > image.width || square[3] > image.height)
+            throw new IllegalArgumentException("region is outside the image");
+        int outWidth = (square[2] - x0)/shrinkFactor;
+        int outHeight = (square[3] - y0)/shrinkFactor;
+        int bands = image.numBands;
+        if(output.getNumBands() != bands){
+            output.setNumberOfBands(bands);
+        }
+        output.reshape(outWidth, outHeight);
+        float area = shrinkFactor*shrinkFactor;
+        int[] sums = new int[bands];
+
+        for(int y = 0; y < outHeight; y++){
+            int rowIn = image.startIndex + (y0 + y*shrinkFactor)*image.stride + x0*bands;
+            for(int x = 0; x < outWidth; x++){
+                Arrays.fill(sums, 0);
+                int blockStart = rowIn + x*shrinkFactor*bands;
+                for(int dy = 0; dy < shrinkFactor; dy++){
+                    int indexIn = blockStart + dy*image.stride;
+                    for(int dx = 0; dx < shrinkFactor; dx++){
+                        for(int band = 0; band < bands; band++){
+                            sums[band] += image.data[indexIn++] & 0xFF;
+                        }
+                    }
+                }
+                for(int band = 0; band < bands; band++){
+                    GrayF32 out = output.getBand(band);
+                    out.data[out.startIndex + y*out.stride + x] = sums[band]/area;
+                }
+            }
+        }
+        return output;
+    }
+
+    // average of every shrinkFactor x shrinkFactor block inside the region, band by band
+    private static void downSampleRegion(Planar<GrayF32> image, int x0, int y0, int x1, int y1,
+                                         int shrinkFactor, Planar<GrayF32> output){
+        if(shrinkFactor < 1) throw new IllegalArgumentException("shrink factor must be positive");
+        if(x0 < 0 || y0 < 0 || x1 > image.width || y1 > image.height)
+            throw new IllegalArgumentException("region is outside the image");
+        int outWidth = (x1 - x0)/shrinkFactor;
+        int outHeight = (y1 - y0)/shrinkFactor;
+        if(output.getNumBands() != image.getNumBands()){
+            output.setNumberOfBands(image.getNumBands());
+        }
+        output.reshape(outWidth, outHeight);
+        float area = shrinkFactor*shrinkFactor;
+
+        for(int band = 0; band < image.getNumBands(); band++){
+            GrayF32 in = image.getBand(band);
+            GrayF32 out = output.getBand(band);
+            for(int y = 0; y < outHeight; y++){
+                int indexOut = out.startIndex + y*out.stride;
+                int rowIn = in.startIndex + (y0 + y*shrinkFactor)*in.stride + x0;
+                for(int x = 0; x < outWidth; x++, indexOut++){
+                    float sum = 0;
+                    int blockStart = rowIn + x*shrinkFactor;
+                    for(int dy = 0; dy < shrinkFactor; dy++){
+                        int indexIn = blockStart + dy*in.stride;
+                        for(int dx = 0; dx < shrinkFactor; dx++){
+                            sum += in.data[indexIn + dx];
+                        }
+                    }
+                    out.data[indexOut] = sum/area;
+                }
+            }
+        }
+    }
+
+    // gray version of a color frame, same as going through a BufferedImage but without the copy
+    public static GrayU8 toGrayU8(Planar<GrayF32> image, GrayU8 output){
+        GrayF32 average = ConvertImage.average(image, null);
+        return ConvertImage.convert(average, output);
     }
     public static void savePlanar_F32(Planar<GrayF32> image, String name){
         try {
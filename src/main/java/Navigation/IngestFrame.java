@@ -0,0 +1,56 @@
+package Navigation;
+
+import boofcv.struct.image.InterleavedU8;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+A video frame as it came out of the decoder (bytes, bands interleaved), tagged with its index in the video.
+Preprocessing squares and shrinks the raw bytes straight into its own buffer (see ImageUtils.squareAndShrinkImage),
+the frame is never converted at full resolution. The pixels stay with the frame, so a recycled frame doesn't allocate.
+Goes back to its FrameIngest once the last holder releases it.
+@yoni
+ */
+public class IngestFrame implements Releasable {
+    private final FrameIngest owner;
+    private final AtomicInteger references = new AtomicInteger();
+    private int index;
+    final InterleavedU8 raw = new InterleavedU8(1, 1, 3);
+
+    IngestFrame(FrameIngest owner){
+        this.owner = owner;
+    }
+
+    // called by the owner when the frame is handed out again
+    synchronized void reset(int index){
+        this.index = index;
+        references.set(1);
+    }
+
+    public int getIndex(){
+        return index;
+    }
+
+    // the decoded pixels, don't modify them
+    public InterleavedU8 getRaw(){
+        return raw;
+    }
+
+    @Override
+    public void retain(){
+        if(references.getAndIncrement() <= 0){
+            throw new IllegalStateException("frame " + index + " was already released");
+        }
+    }
+
+    @Override
+    public void release(){
+        int left = references.decrementAndGet();
+        if(left == 0){
+            owner.recycle(this);
+        }
+        else if(left < 0){
+            throw new IllegalStateException("frame " + index + " released too many times");
+        }
+    }
+}
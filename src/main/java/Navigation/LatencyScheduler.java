@@ -0,0 +1,128 @@
+package Navigation;
+
+import java.util.List;
+
+/*
+Decides how much of the video the pipeline can afford, from how long its stages actually take on this machine.
+Every video frame is read, then one of every `skip` frames is processed (preprocess and odometry), and map
+recognition runs at most once every `interval` frames. With d the time to read a frame, p the time to process one
+and r the time of a recognition, a video frame costs about
+    d + p/skip + r/interval
+which is kept within the budget. Recognition gets what's left once every frame is processed. If even its longest
+interval doesn't fit, frames are skipped instead, and recognition gets what's left after that.
+Reading is timed by FrameIngest and the other stages by PipelineStage, both as moving averages. A recognition is only
+timed when a query ran, frames it skips while nothing is loaded yet don't count (see PipelineStage.skipItem). The choice
+is made again every UPDATE_EVERY_NUM_FRAMES.
+@yoni
+ */
+public class LatencyScheduler {
+    private static final int UPDATE_EVERY_NUM_FRAMES = 30;
+
+    private final double budgetMillis;
+    private final int maxSkip;
+    private final int minInterval, maxInterval;
+
+    private final FrameIngest ingest;
+    private List<PipelineStage<?, ?>> perFrame = List.of();
+    private PipelineStage<?, ?> recognition;
+
+    private volatile int skip = 1;
+    private volatile int interval;
+    private volatile double estimatedMillis;
+
+    /*
+    ingest reads every frame, budgetMillis is the cpu time a video frame may take.
+    The stages are given with watch, they usually need the scheduler to be created.
+     */
+    public LatencyScheduler(double budgetMillis, int maxSkip, int minInterval, int maxInterval, FrameIngest ingest){
+        if(budgetMillis <= 0) throw new IllegalArgumentException("budget must be positive");
+        if(maxSkip < 1 || minInterval < 1 || maxInterval < minInterval)
+            throw new IllegalArgumentException("skip and interval must be at least 1, and the interval range not empty");
+        this.budgetMillis = budgetMillis;
+        this.maxSkip = maxSkip;
+        this.minInterval = minInterval;
+        this.maxInterval = maxInterval;
+        this.ingest = ingest;
+        interval = minInterval;
+    }
+
+    // perFrame stages run on every processed frame and recognition on the frames chosen for it. Call before start
+    public void watch(List<PipelineStage<?, ?>> perFrame, PipelineStage<?, ?> recognition){
+        this.perFrame = perFrame;
+        this.recognition = recognition;
+    }
+
+    // -Dnavigation.frameBudgetMs sets the budget, a frame of 30 fps video by default
+    public static double budgetFromSystemProperties(){
+        return Double.parseDouble(System.getProperty("navigation.frameBudgetMs", "33"));
+    }
+
+    /*
+    True if the frame should be processed, false if it should be skipped. Called with every frame read,
+    from a single thread.
+     */
+    public boolean shouldProcess(int frameIndex){
+        if(frameIndex % UPDATE_EVERY_NUM_FRAMES == 0){
+            update();
+        }
+        return frameIndex % skip == 0;
+    }
+
+    // minimum number of frames between two recognitions
+    public int getRecognitionInterval(){
+        return interval;
+    }
+
+    public int getSkip(){
+        return skip;
+    }
+
+    public void update(){
+        double read = ingest.getAverageReadMillis();
+        double process = processMillis();
+        double recognize = recognizeMillis();
+
+        int newSkip = 1;
+        int newInterval;
+        double forRecognition = budgetMillis - read - process;
+        if(forRecognition > 0 && recognize <= forRecognition*maxInterval){
+            newInterval = Math.max(minInterval, (int)Math.ceil(recognize/forRecognition));
+        }
+        else {
+            // recognition as rarely as allowed, what's left is for processing frames
+            newInterval = maxInterval;
+            double forFrames = budgetMillis - read - recognize/maxInterval;
+            newSkip = forFrames > 0 ? (int)Math.ceil(process/forFrames) : maxSkip;
+            newSkip = Math.max(1, Math.min(maxSkip, newSkip));
+            // skipping whole frames may leave some time, recognition gets it back
+            double left = budgetMillis - read - process/newSkip;
+            if(left > 0 && recognize <= left*maxInterval){
+                newInterval = Math.max(minInterval, (int)Math.ceil(recognize/left));
+            }
+        }
+        skip = newSkip;
+        interval = newInterval;
+        estimatedMillis = read + process/newSkip + recognize/newInterval;
+    }
+
+    @Override
+    public String toString(){
+        double fps = ingest.getReadFps();
+        return String.format("budget %.1f ms/frame, estimated %.1f (read %.1f process %.1f recognize %.1f ms): " +
+                        "processing 1 of %d frames (%.1f of %.1f fps), recognition at most every %d frames (%.2f/s)",
+                budgetMillis, estimatedMillis, ingest.getAverageReadMillis(), processMillis(),
+                recognizeMillis(), skip, fps/skip, fps, interval, fps/interval);
+    }
+
+    private double processMillis(){
+        double process = 0;
+        for(PipelineStage<?, ?> stage : perFrame){
+            process += stage.getAverageLatencyMillis();
+        }
+        return process;
+    }
+
+    private double recognizeMillis(){
+        return recognition == null ? 0 : recognition.getAverageLatencyMillis();
+    }
+}
@@ -0,0 +1,175 @@
+package Navigation;
+
+import boofcv.abst.scene.SceneRecognition;
+import boofcv.io.image.ConvertBufferedImage;
+import boofcv.struct.image.GrayU8;
+import org.bridj.util.Pair;
+import org.ddogleg.struct.DogArray;
+
+import javax.imageio.ImageIO;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static Navigation.LocalizationServer.*;
+
+/*
+Gets map fixes from a LocalizationServer instead of loading the models. Models are chosen by their index on the
+server, getDataset tells which granularity each one is.
+query sends a request and returns right away, so several frames or models can be asked for at once and the server
+handles them as a batch. getMatchesArray waits for the answer like LocationFromMap.getMatchesArray.
+Safe to use from several threads.
+@yoni
+ */
+public class LocalizationClient implements Closeable {
+    private final Socket socket;
+    private final DataInputStream in;
+    private final DataOutputStream out;
+    private final int[] datasets;
+
+    private final Map<Integer, CompletableFuture<DogArray<SceneRecognition.Match>>> waiting = new ConcurrentHashMap<>();
+    private final AtomicInteger nextId = new AtomicInteger();
+    private final Thread reader;
+    private volatile IOException failure;
+
+    public LocalizationClient(int port) throws IOException {
+        socket = new Socket(InetAddress.getLoopbackAddress(), port);
+        socket.setTcpNoDelay(true);
+        in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.flush();
+        if(in.readInt() != MAGIC) throw new IOException("not a localization server");
+        int version = in.readInt();
+        if(version != VERSION) throw new IOException("unsupported protocol version " + version);
+        datasets = new int[in.readInt()];
+        for(int i = 0; i < datasets.length; i++){
+            datasets[i] = in.readInt();
+        }
+        reader = new Thread(this::readAnswers, "localization-client");
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    // queries the server on the default port with a map crop. Usage: LocalizationClient image x y [model] [port]
+    public static void main(String[] args) throws IOException, InterruptedException {
+        GrayU8 image = ConvertBufferedImage.convertFrom(ImageIO.read(new File(args[0])), (GrayU8)null);
+        Pair<Integer,Integer> near = new Pair<>(Integer.parseInt(args[1]), Integer.parseInt(args[2]));
+        int model = args.length > 3 ? Integer.parseInt(args[3]) : 0;
+        int port = args.length > 4 ? Integer.parseInt(args[4]) : DEFAULT_PORT;
+        try(LocalizationClient client = new LocalizationClient(port)){
+            long start = System.nanoTime();
+            DogArray<SceneRecognition.Match> matches = client.getMatchesArray(model, image, near);
+            System.out.printf("%d matches in %.1f ms%n", matches.size, (System.nanoTime() - start)/1e6);
+            for(int i = 0; i < matches.size; i++){
+                System.out.println(matches.get(i).id + " " + matches.get(i).error);
+            }
+        }
+    }
+
+    public int getNumModels(){
+        return datasets.length;
+    }
+
+    // the granularity of a model on the server, -1 if it wasn't made from the map
+    public int getDataset(int model){
+        return datasets[model];
+    }
+
+    /*
+    Asks for the matches of the image around nearLocation. Completes with the matches, or exceptionally with the
+    server's error or a lost connection.
+     */
+    public CompletableFuture<DogArray<SceneRecognition.Match>> query(int model, GrayU8 image, Pair<Integer,Integer> nearLocation){
+        CompletableFuture<DogArray<SceneRecognition.Match>> answer = new CompletableFuture<>();
+        if(failure != null){
+            answer.completeExceptionally(failure);
+            return answer;
+        }
+        int id = nextId.getAndIncrement();
+        waiting.put(id, answer);
+        if(failure != null && waiting.remove(id) != null){
+            // the connection was lost after the check above
+            answer.completeExceptionally(failure);
+            return answer;
+        }
+        try {
+            synchronized(out){
+                out.writeInt(id);
+                out.writeInt(model);
+                out.writeInt(nearLocation.getFirst());
+                out.writeInt(nearLocation.getSecond());
+                out.writeInt(image.width);
+                out.writeInt(image.height);
+                for(int y = 0; y < image.height; y++){
+                    out.write(image.data, image.startIndex + y*image.stride, image.width);
+                }
+                out.flush();
+            }
+        } catch (IOException e){
+            waiting.remove(id);
+            answer.completeExceptionally(e);
+        }
+        return answer;
+    }
+
+    // waits for the answer, errors are thrown the way LocationFromMap would
+    public DogArray<SceneRecognition.Match> getMatchesArray(int model, GrayU8 image, Pair<Integer,Integer> nearLocation)
+            throws InterruptedException {
+        try {
+            return query(model, image, nearLocation).get();
+        } catch (ExecutionException e){
+            if(e.getCause() instanceof IOException io) throw new UncheckedIOException(io);
+            if(e.getCause() instanceof RuntimeException runtime) throw runtime;
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    private void readAnswers(){
+        try {
+            while(true){
+                int id = in.readInt();
+                int status = in.readInt();
+                CompletableFuture<DogArray<SceneRecognition.Match>> answer = waiting.remove(id);
+                if(status != STATUS_OK){
+                    String message = in.readUTF();
+                    if(answer != null) answer.completeExceptionally(new IllegalArgumentException(message));
+                    continue;
+                }
+                DogArray<SceneRecognition.Match> matches = new DogArray<>(SceneRecognition.Match::new);
+                int n = in.readInt();
+                for(int i = 0; i < n; i++){
+                    SceneRecognition.Match match = matches.grow();
+                    match.id = in.readUTF();
+                    match.error = in.readDouble();
+                }
+                if(answer != null) answer.complete(matches);
+            }
+        } catch (IOException e){
+            failure = e;
+            // nothing more will be answered
+            for(Integer id : waiting.keySet()){
+                CompletableFuture<DogArray<SceneRecognition.Match>> answer = waiting.remove(id);
+                if(answer != null) answer.completeExceptionally(e);
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        socket.close();
+    }
+}
@@ -0,0 +1,201 @@
+package Navigation;
+
+import boofcv.abst.scene.SceneRecognition;
+import boofcv.struct.image.GrayF32;
+import boofcv.struct.image.GrayU8;
+import boofcv.struct.image.Planar;
+import org.bridj.util.Pair;
+import org.ddogleg.struct.DogArray;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static Navigation.ImageUtils.toGrayU8;
+
+/*
+Queries several LocationFromMap models (one per tile granularity) at the same time on a pool of workers.
+Waits for the answers up to a deadline and merges whatever arrived into a single list ranked by error.
+A model that misses the deadline is left out of the result and is skipped until it finishes its old query,
+so late queries don't pile up on a slow model.
+Models can still be loading when the coordinator is created, a model takes part in queries once it is ready.
+@yoni
+ */
+public class LocalizationCoordinator {
+    // a model is ready once its future completed normally
+    private final List<CompletableFuture<LocationFromMap>> models;
+    private final ExecutorService workers;
+    private final long deadlineMs;
+    // true while a model is still working on a query, possibly one that already timed out
+    private final AtomicBoolean[] busy;
+
+    public LocalizationCoordinator(List<LocationFromMap> models, long deadlineMs){
+        this(models, models.size(), deadlineMs);
+    }
+
+    public LocalizationCoordinator(List<LocationFromMap> models, int numThreads, long deadlineMs){
+        this(numThreads, deadlineMs, ready(models));
+    }
+
+    // for models that are still loading, see LocationFromMap.loadAsync
+    public static LocalizationCoordinator whenLoaded(List<CompletableFuture<LocationFromMap>> loading, long deadlineMs){
+        return new LocalizationCoordinator(loading.size(), deadlineMs, loading);
+    }
+
+    private LocalizationCoordinator(int numThreads, long deadlineMs, List<CompletableFuture<LocationFromMap>> models){
+        this.models = new ArrayList<>(models);
+        this.deadlineMs = deadlineMs;
+        busy = new AtomicBoolean[models.size()];
+        for(int i = 0; i < busy.length; i++){
+            busy[i] = new AtomicBoolean();
+        }
+        AtomicInteger threadCount = new AtomicInteger();
+        workers = Executors.newFixedThreadPool(numThreads, r -> {
+            Thread t = new Thread(r, "localization-" + threadCount.getAndIncrement());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    public Result locate(Planar<GrayF32> frame, Pair<Integer,Integer> nearLocation) throws InterruptedException {
+        // every model wants the same gray image, convert it once
+        return locate(toGrayU8(frame, null), nearLocation);
+    }
+
+    public Result locate(GrayU8 query, Pair<Integer,Integer> nearLocation) throws InterruptedException {
+        long start = System.nanoTime();
+        long deadline = start + TimeUnit.MILLISECONDS.toNanos(deadlineMs);
+
+        List<Future<DogArray<SceneRecognition.Match>>> futures = new ArrayList<>();
+        for(int i = 0; i < models.size(); i++){
+            futures.add(submit(i, query, nearLocation));
+        }
+
+        List<DogArray<SceneRecognition.Match>> perModel = new ArrayList<>();
+        for(Future<DogArray<SceneRecognition.Match>> future : futures){
+            perModel.add(await(future, deadline));
+        }
+        return new Result(perModel, (System.nanoTime() - start) / 1_000_000);
+    }
+
+    private static List<CompletableFuture<LocationFromMap>> ready(List<LocationFromMap> models){
+        List<CompletableFuture<LocationFromMap>> ready = new ArrayList<>();
+        for(LocationFromMap model : models){
+            ready.add(CompletableFuture.completedFuture(model));
+        }
+        return ready;
+    }
+
+    // returns null if the model isn't loaded yet or is still busy with an earlier query
+    private Future<DogArray<SceneRecognition.Match>> submit(int model, GrayU8 query, Pair<Integer,Integer> nearLocation){
+        LocationFromMap location = getModel(model);
+        if(location == null || !busy[model].compareAndSet(false, true)){
+            return null;
+        }
+        try {
+            return workers.submit(() -> {
+                try {
+                    return location.getMatchesArray(query, nearLocation);
+                } finally {
+                    busy[model].set(false);
+                }
+            });
+        } catch (RejectedExecutionException e){
+            busy[model].set(false);
+            throw e;
+        }
+    }
+
+    private DogArray<SceneRecognition.Match> await(Future<DogArray<SceneRecognition.Match>> future, long deadline)
+            throws InterruptedException {
+        if(future == null) return null;
+        try {
+            long remaining = Math.max(0, deadline - System.nanoTime());
+            // a late query keeps running, its answer is simply ignored
+            return future.get(remaining, TimeUnit.NANOSECONDS);
+        } catch (TimeoutException e){
+            return null;
+        } catch (ExecutionException e){
+            System.err.println("localization query failed: " + e.getCause());
+            return null;
+        }
+    }
+
+    public int getNumModels(){
+        return models.size();
+    }
+
+    // the model, or null if it isn't loaded yet or failed to load
+    public LocationFromMap getModel(int model){
+        CompletableFuture<LocationFromMap> future = models.get(model);
+        if(!future.isDone() || future.isCompletedExceptionally()) return null;
+        return future.join();
+    }
+
+    public int getNumReady(){
+        int count = 0;
+        for(int i = 0; i < models.size(); i++){
+            if(getModel(i) != null) count++;
+        }
+        return count;
+    }
+
+    public void shutdown(){
+        workers.shutdownNow();
+    }
+
+    /*
+    Answers of one localization query. perModel keeps the order of the models and holds null where a model
+    missed the deadline or wasn't loaded yet. ranked has the candidates of all models, best (lowest error) first.
+     */
+    public static class Result {
+        public final List<DogArray<SceneRecognition.Match>> perModel;
+        public final List<RankedMatch> ranked = new ArrayList<>();
+        public final long latencyMs;
+
+        Result(List<DogArray<SceneRecognition.Match>> perModel, long latencyMs){
+            this.perModel = Collections.unmodifiableList(perModel);
+            this.latencyMs = latencyMs;
+            for(int model = 0; model < perModel.size(); model++){
+                DogArray<SceneRecognition.Match> matches = perModel.get(model);
+                if(matches == null) continue;
+                for(int i = 0; i < matches.size; i++){
+                    ranked.add(new RankedMatch(model, matches.get(i)));
+                }
+            }
+            // stable sort, so on equal error the earlier model stays first
+            ranked.sort(Comparator.comparingDouble(m -> m.match.error));
+        }
+
+        public int getNumAnswered(){
+            int count = 0;
+            for(DogArray<SceneRecognition.Match> matches : perModel){
+                if(matches != null) count++;
+            }
+            return count;
+        }
+
+        // true if at least one model didn't answer in time
+        public boolean isPartial(){
+            return getNumAnswered() < perModel.size();
+        }
+
+        public RankedMatch best(){
+            return ranked.isEmpty() ? null : ranked.get(0);
+        }
+    }
+
+    public static class RankedMatch {
+        public final int model; // index of the model in the coordinator
+        public final SceneRecognition.Match match;
+
+        RankedMatch(int model, SceneRecognition.Match match){
+            this.model = model;
+            this.match = match;
+        }
+    }
+}
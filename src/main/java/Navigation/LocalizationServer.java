@@ -0,0 +1,349 @@
+package Navigation;
+
+import boofcv.abst.scene.SceneRecognition;
+import boofcv.struct.image.GrayU8;
+import org.bridj.util.Pair;
+import org.ddogleg.struct.DogArray;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+Serves map fixes to other processes on the same machine, so the models are loaded once instead of in every process.
+Listens on the loopback interface only. Clients connect with LocalizationClient.
+Requests that arrive together are handled as a batch: they are queried at the same time on a pool of workers
+(see SceneQueryPool), and the answers to each connection are sent with a single flush.
+
+Protocol (big endian, like DataOutputStream writes it):
+    client hello    magic, version
+    server hello    magic, version, number of models, then per model its dataset (-1 if not from the map)
+    request         request id, model, near x, near y, width, height, then width*height bytes of a GrayU8 row by row
+    answer          request id, status, then
+                        if ok: number of matches, per match its tile id (writeUTF) and error (double)
+                        else: the error message (writeUTF)
+A client may send any number of requests without waiting, answers carry the id of their request and may come
+back in any order.
+@yoni
+ */
+public class LocalizationServer implements Closeable {
+    static final int MAGIC = 0x4C4F4351; // "LOCQ"
+    static final int VERSION = 1;
+    static final int STATUS_OK = 0;
+    static final int STATUS_ERROR = 1;
+    // bigger frames are a broken client, its connection is closed
+    static final int MAX_FRAME_PIXELS = 4096*4096;
+    public static final int DEFAULT_PORT = 5105;
+
+    // a batch is whatever is waiting, plus what arrives in the next BATCH_WINDOW_MICROS, up to MAX_BATCH requests
+    private static final int MAX_BATCH = 32;
+    private static final long BATCH_WINDOW_MICROS = 500;
+    // requests waiting for a batch. When it is full connections stop reading, so a client that sends faster than
+    // the models answer is held back by tcp instead of filling the heap with frames
+    private static final int MAX_PENDING = 2*MAX_BATCH;
+
+    private final List<LocationFromMap> models;
+    private final ServerSocket server;
+    private final ExecutorService workers;
+    private final BlockingQueue<Request> pending = new ArrayBlockingQueue<>(MAX_PENDING);
+    private final Set<Connection> connections = ConcurrentHashMap.newKeySet();
+    private final Thread acceptThread;
+    private final Thread batchThread;
+    private volatile boolean closed;
+
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong answered = new AtomicLong();
+
+    /*
+    Starts serving the models on the port, 0 for any free one (see getPort). Queries run on numThreads workers.
+     */
+    public LocalizationServer(List<LocationFromMap> models, int port, int numThreads) throws IOException {
+        if(models.isEmpty()) throw new IllegalArgumentException("nothing to serve without a model");
+        this.models = List.copyOf(models);
+        server = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+        AtomicInteger threadCount = new AtomicInteger();
+        workers = Executors.newFixedThreadPool(numThreads, r -> {
+            Thread t = new Thread(r, "localization-server-" + threadCount.getAndIncrement());
+            t.setDaemon(true);
+            return t;
+        });
+        acceptThread = new Thread(this::acceptLoop, "localization-accept");
+        acceptThread.setDaemon(true);
+        batchThread = new Thread(this::batchLoop, "localization-batch");
+        batchThread.setDaemon(true);
+        batchThread.start();
+        acceptThread.start();
+    }
+
+    // serves the models of the map. Usage: LocalizationServer [port]
+    public static void main(String[] args) throws IOException, InterruptedException {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_PORT;
+        List<LocationFromMap> models = new ArrayList<>();
+        for(CompletableFuture<LocationFromMap> loading : LocationFromMap.loadAllAsync(DroneLocation.DATASETS)){
+            try {
+                models.add(loading.get());
+            } catch (ExecutionException e){
+                // already printed by LocationFromMap.loadAsync, the others are served
+            }
+        }
+        LocalizationServer server = new LocalizationServer(models, port, Runtime.getRuntime().availableProcessors());
+        System.out.println("serving " + models.size() + " models on port " + server.getPort());
+        server.acceptThread.join();
+    }
+
+    public int getPort(){
+        return server.getLocalPort();
+    }
+
+    private void acceptLoop(){
+        while(!closed){
+            try {
+                Socket socket = server.accept();
+                Connection connection = new Connection(socket);
+                connections.add(connection);
+                connection.start();
+            } catch (IOException e){
+                if(!closed) System.err.println("localization server failed to accept: " + e);
+            }
+        }
+    }
+
+    private void batchLoop(){
+        List<Request> batch = new ArrayList<>();
+        try {
+            while(!closed){
+                batch.add(pending.take());
+                long deadline = System.nanoTime() + TimeUnit.MICROSECONDS.toNanos(BATCH_WINDOW_MICROS);
+                while(batch.size() < MAX_BATCH){
+                    pending.drainTo(batch, MAX_BATCH - batch.size());
+                    long remaining = deadline - System.nanoTime();
+                    if(batch.size() >= MAX_BATCH || remaining <= 0) break;
+                    Request next = pending.poll(remaining, TimeUnit.NANOSECONDS);
+                    if(next == null) break;
+                    batch.add(next);
+                }
+                runBatch(batch);
+                batch.clear();
+            }
+        } catch (InterruptedException e){
+            // closed
+        }
+    }
+
+    private void runBatch(List<Request> batch) throws InterruptedException {
+        List<Future<?>> running = new ArrayList<>(batch.size());
+        for(Request request : batch){
+            running.add(workers.submit(request::answer));
+        }
+        for(int i = 0; i < running.size(); i++){
+            try {
+                running.get(i).get();
+            } catch (ExecutionException e){
+                // answer catches what a query throws, only an Error gets here. The client is told and the server
+                // goes on with the next batch
+                System.err.println("localization worker failed: " + e.getCause());
+                batch.get(i).error = "server failed: " + e.getCause();
+            }
+        }
+        // counted before they go out, so a client that got its answer sees it in the stats
+        batches.incrementAndGet();
+        answered.addAndGet(batch.size());
+        // answers to the same connection go out together
+        Set<Connection> answeredTo = new LinkedHashSet<>();
+        for(Request request : batch){
+            if(request.connection.send(request)) answeredTo.add(request.connection);
+        }
+        for(Connection connection : answeredTo){
+            connection.flush();
+        }
+    }
+
+    public long getBatches(){
+        return batches.get();
+    }
+
+    public long getAnswered(){
+        return answered.get();
+    }
+
+    // average number of requests handled together
+    public double getAverageBatchSize(){
+        long n = batches.get();
+        return n == 0 ? 0 : answered.get()/(double)n;
+    }
+
+    @Override
+    public String toString(){
+        return String.format("localization server[port %d, models %d, connections %d, answered %d in %d batches (%.1f per batch)]",
+                getPort(), models.size(), connections.size(), getAnswered(), getBatches(), getAverageBatchSize());
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        server.close();
+        batchThread.interrupt();
+        workers.shutdownNow();
+        for(Connection connection : connections){
+            // wakes a connection that waits for room in the queue
+            connection.interrupt();
+            connection.close();
+        }
+    }
+
+    private class Request {
+        final Connection connection;
+        final int id, model;
+        final Pair<Integer,Integer> near;
+        final GrayU8 image;
+
+        DogArray<SceneRecognition.Match> matches;
+        String error;
+
+        Request(Connection connection, int id, int model, Pair<Integer,Integer> near, GrayU8 image){
+            this.connection = connection;
+            this.id = id;
+            this.model = model;
+            this.near = near;
+            this.image = image;
+        }
+
+        void answer(){
+            if(model < 0 || model >= models.size()){
+                error = "no model " + model + ", the server has " + models.size();
+                return;
+            }
+            try {
+                matches = models.get(model).getMatchesArray(image, near);
+            } catch (RuntimeException e){
+                error = String.valueOf(e.getMessage());
+            }
+        }
+    }
+
+    // one client, its requests are read on their own thread
+    private class Connection extends Thread {
+        private final Socket socket;
+        private final DataInputStream in;
+        private final DataOutputStream out;
+
+        Connection(Socket socket) throws IOException {
+            super("localization-connection-" + socket.getPort());
+            setDaemon(true);
+            this.socket = socket;
+            socket.setTcpNoDelay(true);
+            in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        }
+
+        @Override
+        public void run(){
+            try {
+                if(in.readInt() != MAGIC) throw new IOException("not a localization client");
+                int version = in.readInt();
+                if(version != VERSION) throw new IOException("unsupported protocol version " + version);
+                synchronized(out){
+                    out.writeInt(MAGIC);
+                    out.writeInt(VERSION);
+                    out.writeInt(models.size());
+                    for(LocationFromMap model : models){
+                        out.writeInt(model.getDataset());
+                    }
+                    out.flush();
+                }
+                while(!closed){
+                    // waits while the queue is full, the client's requests wait in the socket meanwhile
+                    pending.put(readRequest());
+                }
+            } catch (EOFException | SocketException e){
+                // client went away
+            } catch (InterruptedException e){
+                // the server is closing
+            } catch (IOException e){
+                System.err.println("localization connection closed: " + e.getMessage());
+            } finally {
+                close();
+            }
+        }
+
+        private Request readRequest() throws IOException {
+            int id = in.readInt();
+            int model = in.readInt();
+            int x = in.readInt();
+            int y = in.readInt();
+            int width = in.readInt();
+            int height = in.readInt();
+            if(width <= 0 || height <= 0 || (long)width*height > MAX_FRAME_PIXELS)
+                throw new IOException("bad frame size " + width + "x" + height);
+            GrayU8 image = new GrayU8(width, height);
+            in.readFully(image.data, 0, width*height);
+            return new Request(this, id, model, new Pair<>(x, y), image);
+        }
+
+        // false if the connection is gone
+        boolean send(Request request){
+            try {
+                synchronized(out){
+                    out.writeInt(request.id);
+                    if(request.error != null){
+                        out.writeInt(STATUS_ERROR);
+                        out.writeUTF(request.error);
+                        return true;
+                    }
+                    out.writeInt(STATUS_OK);
+                    out.writeInt(request.matches.size);
+                    for(int i = 0; i < request.matches.size; i++){
+                        out.writeUTF(request.matches.get(i).id);
+                        out.writeDouble(request.matches.get(i).error);
+                    }
+                }
+                return true;
+            } catch (IOException e){
+                close();
+                return false;
+            }
+        }
+
+        void flush(){
+            try {
+                synchronized(out){
+                    out.flush();
+                }
+            } catch (IOException e){
+                close();
+            }
+        }
+
+        void close(){
+            connections.remove(this);
+            try {
+                socket.close();
+            } catch (IOException e){
+                // closing anyway
+            }
+        }
+    }
+}
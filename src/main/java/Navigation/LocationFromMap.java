@@ -20,6 +20,7 @@ package Navigation;
 
 import boofcv.BoofVerbose;
 import boofcv.abst.scene.ConfigFeatureToSceneRecognition;
+import boofcv.abst.scene.FeatureSceneRecognition;
 import boofcv.abst.scene.SceneRecognition;
 import boofcv.abst.scene.WrapFeatureToSceneRecognition;
 import boofcv.factory.scene.FactorySceneRecognition;
@@ -28,10 +29,10 @@ import boofcv.gui.image.ScaleOptions;
 import boofcv.gui.image.ShowImages;
 import boofcv.io.UtilIO;
 import boofcv.io.image.ConvertBufferedImage;
-import boofcv.io.image.ImageFileListIterator;
 import boofcv.io.image.UtilImageIO;
 import boofcv.io.recognition.RecognitionIO;
 import boofcv.misc.BoofMiscOps;
+import boofcv.struct.feature.TupleDesc;
 import boofcv.struct.image.GrayF32;
 import boofcv.struct.image.GrayU8;
 import boofcv.struct.image.ImageType;
@@ -43,17 +44,19 @@ import org.ddogleg.struct.DogArray;
 import javax.imageio.ImageIO;
 import java.awt.*;
 import java.awt.image.BufferedImage;
-import java.io.File;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.*;
 import java.util.List;
-import java.util.stream.Collectors;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import static Navigation.FinalVariables.*;
-import static Navigation.MapToData.splitMapAndSave;
 
 /**
  * In BoofCV, scene recognition [1] refers to the problem of trying to identify photos of the same scene (not a single
@@ -70,91 +73,189 @@ public class LocationFromMap {
 	private ImageType<GrayU8> imageType = ImageType.SB_U8;
 
 	SceneRecognition<GrayU8> recognizer;// the scene recognition object
+	private SceneQueryPool<?> queries;// queries the recognizer from several threads, made once it's complete
+	TileIndex tileIndex;// location of every tile in the database, built once after loading
 	BufferedImage lastQueryImage;
+	private int dataset = -1;// number of tiles the map was split to, -1 if the model didn't come from the map
+	private TileStore tileStore;// pixels of the tiles, opened when first needed
+	// answers to recent queries, so hovering over the same spot doesn't run the same query again. null disables it
+	private volatile QueryCache queryCache = new QueryCache(QUERY_CACHE_SIZE, QUERY_CACHE_MAX_DISTANCE, QUERY_CACHE_TTL_MS);
 
+	static final int QUERY_CACHE_SIZE = 64;
+	static final int QUERY_CACHE_MAX_DISTANCE = 5;// bits the perceptual hashes of two queries may differ in
+	static final long QUERY_CACHE_TTL_MS = 3000;
 
 
-	private void trainAndLoadNewModel(int numSquares){
 
+	private void indexAndSaveNewModel(int numSquares, SharedVocabulary<?> vocabulary){
+		Path indexPath = indexPath(numSquares);
 
-		// check if we have a database to train from
-		Path saveDirModel = Paths.get(MODEL_SAVE_DIRECTORY_GENERIC + numSquares);
-		Path saveDirImages = Paths.get(IMAGE_TRAIN_PATH_GENERIC + numSquares);
-		if (!Files.exists(saveDirImages)) {
-			// if not, use map to generate new one
-			splitMapAndSave(numSquares);
-		}
+		// index the tile store, cutting the map into one if there isn't one yet
+		TileStore tiles = getTileStore();
 
-		// datasets differentiated by number of squares
-		List<String> imagesTrain = UtilIO.listByPrefix(saveDirImages.toString(), null, TYPE_IMAGE_TRAIN);
-		Collections.sort(imagesTrain);
-
-		// Tell it to process gray U8 images
-		ImageType<GrayU8> imageType = ImageType.SB_U8;
-
-		// Used to look up images one at a time from various sources. In this case a list of images.
-		var imageTrainIterator =
-				new ImageFileListIterator<>(imagesTrain, imageType);
-		if(false){
-			// Set the line above to true and it will download a pre-built model. Useful when you have a lot of images
-			// or simply want to skip the learning step
-			// make sure to delete saved model from disc before!
-			System.out.println("Downloading pre-built model");
-			recognizer = RecognitionIO.downloadDefaultSceneRecognition(new File("downloaded_models"), imageType);
-			recognizer.setVerbose(System.out, BoofMiscOps.hashSet(BoofVerbose.RECURSIVE));
-		}
-		else {
-			// If many applications, learning a new model is a small fraction of the compute time and since its
-			// fit to the images it will be more accurate than a generic pre-built model
-			System.out.println("Creating a new model");
-			var config = new ConfigFeatureToSceneRecognition();
-			// Use a hierarchical vocabulary tree, which is very fast and also one of the more accurate approaches
-			config.typeRecognize = ConfigFeatureToSceneRecognition.Type.NISTER_2006;
-			config.recognizeNister2006.learningMinimumPointsForChildren.setFixed(20);
-
-			recognizer = FactorySceneRecognition.createFeatureToScene(config, imageType);
-			// This will print out a lot of debugging information to stdout
-			recognizer.setVerbose(System.out, BoofMiscOps.hashSet(BoofVerbose.RECURSIVE));
-
-			// Learn the model from the initial set of images
-			recognizer.learnModel(imageTrainIterator);
-		}
+		// The vocabulary is shared with every other granularity, so only the tiles have to be added to a database.
+		// (RecognitionIO.downloadDefaultSceneRecognition gets a pre-built model instead)
+		System.out.println("Indexing a new model");
+		long start = System.currentTimeMillis();
+		recognizer = vocabulary.index(tiles.getIds(), tiles.readAll(), Runtime.getRuntime().availableProcessors());
+		System.out.println("Indexed model " + numSquares + " from " + tiles.size() + " tiles in " +
+				(System.currentTimeMillis() - start) + " ms");
+		// the pixels were only needed for indexing, the store is opened again if the matches are displayed
+		closeTileStore();
+
+		// This saves the image database to disk, the vocabulary is saved once by SharedVocabulary
+		System.out.println("Saving index");
+		BoofMiscOps.profile(() -> vocabulary.saveIndex(recognizer, indexPath), "");
+	}
+
+	static Path indexPath(int numSquares){
+		return Paths.get(INDEX_PATH_GENERIC + numSquares + TYPE_INDEX);
+	}
+
+	// an empty recognizer configured the way every model of the map is trained
+	static SceneRecognition<GrayU8> createRecognizer(){
+		var config = new ConfigFeatureToSceneRecognition();
+		// Use a hierarchical vocabulary tree, which is very fast and also one of the more accurate approaches
+		config.typeRecognize = ConfigFeatureToSceneRecognition.Type.NISTER_2006;
+		config.recognizeNister2006.learningMinimumPointsForChildren.setFixed(20);
+
+		SceneRecognition<GrayU8> recognizer = FactorySceneRecognition.createFeatureToScene(config, ImageType.SB_U8);
+		// This will print out a lot of debugging information to stdout
+		recognizer.setVerbose(System.out, BoofMiscOps.hashSet(BoofVerbose.RECURSIVE));
+		return recognizer;
+	}
+
+	/*
+	Learns a model from tiles that are already in memory and adds them to its database in the given order.
+	names are the tile ids, as produced by MapToData.tileCoordinatesToName without the extension.
+	Features are detected on all cores, learning and adding use the detected features so every tile is described
+	once. The model is the same as adding the tiles one by one.
+	 */
+	static SceneRecognition<GrayU8> buildModel(List<String> names, List<GrayU8> tiles){
+		return buildModel(names, tiles, Runtime.getRuntime().availableProcessors());
+	}
+
+	static SceneRecognition<GrayU8> buildModel(List<String> names, List<GrayU8> tiles, int threads){
+		if (names.size() != tiles.size()) throw new IllegalArgumentException("need one name per tile");
+		var recognizer = (WrapFeatureToSceneRecognition<GrayU8, ?>)createRecognizer();
+		learnAndAdd(recognizer, names, tiles, threads);
+		return recognizer;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static <TD extends TupleDesc<TD>> void learnAndAdd(WrapFeatureToSceneRecognition<GrayU8, TD> recognizer,
+															   List<String> names, List<GrayU8> tiles, int threads){
+		// every worker needs its own detector, configured like the model's
+		List<FeatureSceneRecognition.Features<TD>> features = TileFeatures.describeAll(tiles, threads,
+				() -> ((WrapFeatureToSceneRecognition<GrayU8, TD>)createRecognizer()).getDetector());
+
+		FeatureSceneRecognition<TD> model = recognizer.getRecognizer();
+		// Learn the model from the initial set of images
+		model.learnModel(features.iterator());
 		// the model also requires images to be in the database to match against them
+		for (int i = 0; i < features.size(); i++) {
+			model.addImage(names.get(i), features.get(i));
+		}
+	}
+
+	/*
+	Loads (or trains, if it isn't on disk yet) the model in the background. The future completes once the model
+	can be queried. How long it took is printed, so slow models show up at startup.
+	 */
+	public static CompletableFuture<LocationFromMap> loadAsync(int dataset, Executor executor){
+		return CompletableFuture.supplyAsync(() -> {
+			long start = System.currentTimeMillis();
+			LocationFromMap model = new LocationFromMap(dataset);
+			System.out.println("Model " + dataset + " ready in " + (System.currentTimeMillis() - start) + " ms");
+			return model;
+		}, executor).whenComplete((model, e) -> {
+			if (e != null) System.err.println("Model " + dataset + " failed to load: " + e.getCause());
+		});
+	}
 
-		// Add images to the database
-		// new model should be empty
-		if(!recognizer.getImageIds(null).isEmpty()) throw new RuntimeException("expected new model to be empty");
-		System.out.println("Adding images to the database");
-		imageTrainIterator.reset();
-		while (imageTrainIterator.hasNext()) {
-			GrayU8 image = imageTrainIterator.next();
-			String imgName = FilenameUtils.getBaseName(new File(imagesTrain.get(imageTrainIterator.getIndex())).getName());
-			recognizer.addImage(imgName, image);
+	/*
+	Starts loading the models of several granularities at once, each on its own background thread.
+	The futures are in the order of datasets.
+	 */
+	public static List<CompletableFuture<LocationFromMap>> loadAllAsync(int... datasets){
+		ExecutorService pool = Executors.newFixedThreadPool(datasets.length, r -> {
+			Thread t = new Thread(r, "load-model");
+			t.setDaemon(true);
+			return t;
+		});
+		List<CompletableFuture<LocationFromMap>> loading = new ArrayList<>();
+		for (int dataset : datasets) {
+			loading.add(loadAsync(dataset, pool));
 		}
+		// lets the threads end once every model is loaded
+		pool.shutdown();
+		return loading;
+	}
 
-		// This saves the model with the image database to disk
-		System.out.println("Saving model");
-		BoofMiscOps.profile(() -> RecognitionIO.saveFeatureToScene(
-				(WrapFeatureToSceneRecognition<GrayU8, ?>)recognizer, new File( saveDirModel.toString())), "");
+	// wraps a model that was built or loaded elsewhere, e.g. by buildModel
+	LocationFromMap(SceneRecognition<GrayU8> recognizer){
+		this.recognizer = recognizer;
+		tileIndex = TileIndex.build(recognizer.getImageIds(null));
+		queries = SceneQueryPool.of(recognizer);
 	}
 
 	public LocationFromMap(int dataset){
-		// Except for real-time applications or when there are more than a few hundred images, you might want to
-		// just learn the dictionary from scratch
-		var modelSaveDirectory = new File(MODEL_SAVE_DIRECTORY_GENERIC + dataset);
-
-		// load pre-trained model if exists
-		if (modelSaveDirectory.exists()) {
-			System.out.println("Loading previously generated model");
-			recognizer = RecognitionIO.loadFeatureToScene(modelSaveDirectory, imageType);
-			recognizer.setVerbose(System.out, BoofMiscOps.hashSet(BoofVerbose.RECURSIVE));
+		this.dataset = dataset;
+		// every granularity uses the same vocabulary, learned from the map the first time any model needs it
+		SharedVocabulary<?> vocabulary = SharedVocabulary.ofMap();
+		Path indexPath = indexPath(dataset);
+
+		// load the granularity's database if it was indexed before
+		if (Files.exists(indexPath)) {
+			System.out.println("Loading previously generated index");
+			recognizer = vocabulary.loadIndex(indexPath);
 		}
-		// then train a new model based on map
+		// then index the tiles of the map
 		else {
-			trainAndLoadNewModel(dataset);
+			indexAndSaveNewModel(dataset, vocabulary);
 		}
+		tileIndex = TileIndex.build(recognizer.getImageIds(null));
+		queries = SceneQueryPool.of(recognizer);
+	}
+
+	// number of tiles the map was split to, -1 if the model didn't come from the map
+	public int getDataset(){
+		return dataset;
+	}
 
+	public TileIndex getTileIndex(){
+		return tileIndex;
+	}
+
+	/*
+	The tiles this model was trained on. Opened on first use, if the store doesn't exist yet it is made from the map.
+	 */
+	public synchronized TileStore getTileStore(){
+		if (tileStore != null) return tileStore;
+		if (dataset < 0) throw new IllegalStateException("model wasn't made from the map, it has no tile store");
+		Path storePath = MapToData.tileStorePath(dataset);
+		if (!Files.exists(storePath)) {
+			MapToData.splitMapAndSave(dataset);
+		}
+		try {
+			tileStore = TileStore.open(storePath);
+		} catch (IOException e) {
+			throw new RuntimeException("failed to open tile store " + storePath, e);
+		}
+		return tileStore;
+	}
 
+	/*
+	Unmaps the tile store if it is open. The model still answers queries, the store is opened again when needed.
+	 */
+	public synchronized void closeTileStore(){
+		if (tileStore == null) return;
+		try {
+			tileStore.close();
+		} catch (IOException e) {
+			System.err.println("failed to close tile store of model " + dataset + ": " + e);
+		}
+		tileStore = null;
 	}
 
 	public DogArray<SceneRecognition.Match> getMatchesArray(Planar<GrayF32> queryF32, Pair<Integer,Integer> nearLocation){
@@ -165,21 +266,49 @@ public class LocationFromMap {
 	public DogArray<SceneRecognition.Match> getMatchesArray(BufferedImage queryBufferedImage, Pair<Integer,Integer> nearLocation){
 		lastQueryImage = queryBufferedImage;
 		GrayU8 queryImage = ConvertBufferedImage.convertFrom(queryBufferedImage, (GrayU8) null);
+		return getMatchesArray(queryImage, nearLocation);
+	}
 
-		// find name of square that contains given location
-		String containingSquareName = recognizer.getImageIds(null).stream().
-				filter((name) -> MapToData.tileContainsPoint(name, nearLocation)).collect(Collectors.toList()).get(0);
+	// query with an image that is already gray, so callers querying several models convert only once
+	public DogArray<SceneRecognition.Match> getMatchesArray(GrayU8 queryImage, Pair<Integer,Integer> nearLocation){
+		// find square that contains given location
+		int containingSquare = tileIndex.tileContainingPoint(nearLocation.getFirst(), nearLocation.getSecond());
+		if (containingSquare < 0)
+			throw new IllegalArgumentException("location " + nearLocation + " is not inside any tile of the map");
+		// a query like a recent one gets the same answer
+		QueryCache queryCache = this.queryCache;
+		long hash = 0;
+		if (queryCache != null) {
+			hash = QueryCache.hash(queryImage);
+			DogArray<SceneRecognition.Match> cached = queryCache.get(hash, containingSquare);
+			if (cached != null) return cached;
+		}
 		// Look up images
 		DogArray<SceneRecognition.Match> matches = new DogArray<>(SceneRecognition.Match::new);
 
 //		recognizer.query(imageTestIterator.loadImage(queryInd),/* filter */ ( id ) -> true,/* limit */ 5, matches);
 
-		// query only on the squares that are near containingSquare
-		recognizer.query(queryImage, /* filter */
-				( name ) -> MapToData.tileIsEqualOrNear(containingSquareName, name),/* limit */ 5, matches);
+		// query only on the squares that are near containingSquare.
+		// any number of threads can query at once, each with its own workspace over the same model
+		queries.query(queryImage, /* filter */
+				( name ) -> tileIndex.isEqualOrNear(containingSquare, name),/* limit */ 5, matches);
 
+		if (queryCache != null) queryCache.put(hash, containingSquare, matches);
 		return  matches;
 	}
+
+	public QueryCache getQueryCache(){
+		return queryCache;
+	}
+
+	// replaces the query cache, e.g. with one of a different size. null turns caching off
+	public void setQueryCache(QueryCache queryCache){
+		this.queryCache = queryCache;
+	}
+
+	public SceneQueryPool<?> getQueryPool(){
+		return queries;
+	}
 	/*
 	Displays GUI window. Should be run once.
 	 */
@@ -196,11 +325,14 @@ public class LocationFromMap {
 		// Add the target which the other images are being matched against
 		gui.addImage(lastQueryImage, "Query "+ queryName, ScaleOptions.ALL);
 
+		// matched tiles are read from the tile store
+		TileStore tiles = getTileStore();
 		for (int i = 0; i < matches.size; i++) {
-			String file = matches.get(i).id;
+			String name = matches.get(i).id;
 			double error = matches.get(i).error;
-			BufferedImage image = UtilImageIO.loadImageNotNull(file);
-			String name = FilenameUtils.getBaseName(new File(file).getName());
+			int tile = tiles.findTile(name);
+			if (tile < 0) throw new IllegalArgumentException("tile " + name + " is not in the tile store");
+			BufferedImage image = tiles.readBufferedImage(tile);
 			gui.addImage(image, String.format("%20s Error %6.3f", name, error), ScaleOptions.ALL);
 		}
 
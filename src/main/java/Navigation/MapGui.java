@@ -16,58 +16,158 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import Navigation.MapToData;
 
 import javax.imageio.ImageIO;
+import javax.swing.*;
 
 import static Navigation.FinalVariables.*;
 
 /*
-A class that shows a map, and draws rectangles on it
-
+A class that shows a map, and draws rectangles and markers on it.
+The processing thread only records the rectangles, the map is redrawn with them on the Swing EDT,
+so clearing and drawing never copy the map raster on the caller's thread. Headless mode draws nothing.
  */
 public class MapGui {
 
     ImageGridPanel gui;// gui for displaying map with red square for match
     BufferedImage mapImage;
+    BufferedImage display;// map with the rectangles on it, only touched on the EDT
+    private final RenderConfig render;
+    // rectangles drawn since the last clear
+    private final Overlay drawing = new Overlay();
+    private TripleBuffer<Overlay> overlays;
+    private final AtomicBoolean repaintQueued = new AtomicBoolean();
+    private final Runnable showLatest = this::showLatest;
+    // half the size of a marker, in map pixels
+    private static final int MARKER_SIZE = 6;
 
     public MapGui(){
+        this(RenderConfig.unlimited());
+    }
+
+    public MapGui(RenderConfig render){
+        this.render = render;
+        if(render.headless) return;
         // create gui to display map and later squares of matches on it
         gui = new ImageGridPanel(1, 1);
         mapImage = UtilImageIO.loadImageNotNull(MAP_LOCATION);
-        gui.setImage(0, 0, mapImage);
+        display = new BufferedImage(mapImage.getWidth(), mapImage.getHeight(), BufferedImage.TYPE_INT_RGB);
+        Graphics2D g2 = display.createGraphics();
+        g2.drawImage(mapImage, 0, 0, null);
+        g2.dispose();
+        gui.setImage(0, 0, display);
         gui.setPreferredSize(new Dimension(mapImage.getWidth(), mapImage.getHeight()));
+        overlays = new TripleBuffer<>(Overlay::new);
     }
 
     public void clearGui(){
-        // clear map from previous drawings by replacing image with drawings with fresh image
-        gui.setImage(0,0, new BufferedImage(mapImage.getColorModel(), mapImage.copyData(null),
-                mapImage.isAlphaPremultiplied(), null));
+        // clear map from previous drawings
+        if(render.headless) return;
+        drawing.clear();
+        publish();
+    }
+    public void updateGui(TileIndex tiles, SceneRecognition.Match match, Color color){
+        // get map pixel coordinates of the matched tile
+        int tile = tiles.findTile(match.id);
+        if(tile < 0) throw new IllegalArgumentException("unknown tile " + match.id);
+        drawRectangle(tiles.getMinX(tile), tiles.getMinY(tile), tiles.getMaxX(tile), tiles.getMaxY(tile), color);
+    }
+
+    // draw square over map
+    public void drawRectangle(int tlx, int tly, int brx, int bry, Color color){
+        if(render.headless) return;
+        drawing.add(tlx, tly, brx, bry, color, Overlay.RECTANGLE);
+        publish();
+    }
+
+    // draw a cross over a point of the map, e.g. a fix that is more exact than its tile
+    public void drawMarker(double x, double y, Color color){
+        if(render.headless) return;
+        int cx = (int)Math.round(x), cy = (int)Math.round(y);
+        drawing.add(cx - MARKER_SIZE, cy - MARKER_SIZE, cx + MARKER_SIZE, cy + MARKER_SIZE, color, Overlay.MARKER);
+        publish();
     }
-    public void updateGui(SceneRecognition.Match match, Color color){
-        // get map pixel coordinates from filename of match
-        String bestMatchDir = match.id;
-        String name = FilenameUtils.getBaseName(new File(bestMatchDir).getName());
-        var pointPair = MapToData.tileNameToCoordinate(name);
-//        System.out.println("got pixel coordinates: " +Arrays.toString(coordinates));
-        int tlx = pointPair.getFirst().getFirst(); int tly = pointPair.getFirst().getSecond();
-        int brx = pointPair.getSecond().getFirst(); int bry = pointPair.getSecond().getSecond();
-
-        // draw square over map
-        // draw a red quadrilateral around the current frame in the mosaic
-        Graphics2D g2 = gui.getImage(0, 0).createGraphics();
-        g2.setColor(color);
-        g2.drawLine(tlx, tly, brx, tly); // top line
-        g2.drawLine(tlx,bry,brx,bry); // bottom line
-        g2.drawLine(tlx,tly, tlx, bry); // left line
-        g2.drawLine(brx,tly,brx,bry); // right line
-        gui.repaint();
 
+    private void publish(){
+        overlays.getBack().setTo(drawing);
+        overlays.publish();
+        if(repaintQueued.compareAndSet(false, true)){
+            SwingUtilities.invokeLater(showLatest);
+        }
     }
+
+    // runs on the EDT
+    private void showLatest(){
+        repaintQueued.set(false);
+        Graphics2D g2 = display.createGraphics();
+        g2.drawImage(mapImage, 0, 0, null);
+        overlays.acquireFront().draw(g2);
+        g2.dispose();
+        gui.repaint();
+    }
+
     public void display(){
+        if(render.headless) return;
         ShowImages.showWindow(gui, "match on map", true);
     }
 
+    /*
+    Rectangles and markers to draw on the map, kept in primitive arrays that are reused between drawings.
+     */
+    static class Overlay {
+        static final byte RECTANGLE = 0;
+        static final byte MARKER = 1;// a cross from corner to corner
+
+        int size;
+        int[] corners = new int[4*8]; // tlx, tly, brx, bry of each shape
+        Color[] colors = new Color[8];
+        byte[] shapes = new byte[8];
 
+        void clear(){
+            size = 0;
+        }
+
+        void add(int tlx, int tly, int brx, int bry, Color color, byte shape){
+            if(size == colors.length){
+                corners = Arrays.copyOf(corners, corners.length*2);
+                colors = Arrays.copyOf(colors, colors.length*2);
+                shapes = Arrays.copyOf(shapes, shapes.length*2);
+            }
+            corners[4*size] = tlx; corners[4*size+1] = tly;
+            corners[4*size+2] = brx; corners[4*size+3] = bry;
+            shapes[size] = shape;
+            colors[size++] = color;
+        }
+
+        void setTo(Overlay other){
+            if(colors.length < other.size){
+                corners = new int[other.corners.length];
+                colors = new Color[other.colors.length];
+                shapes = new byte[other.shapes.length];
+            }
+            System.arraycopy(other.corners, 0, corners, 0, 4*other.size);
+            System.arraycopy(other.colors, 0, colors, 0, other.size);
+            System.arraycopy(other.shapes, 0, shapes, 0, other.size);
+            size = other.size;
+        }
+
+        void draw(Graphics2D g2){
+            for(int i = 0; i < size; i++){
+                int tlx = corners[4*i], tly = corners[4*i+1], brx = corners[4*i+2], bry = corners[4*i+3];
+                g2.setColor(colors[i]);
+                if(shapes[i] == MARKER){
+                    g2.drawLine(tlx, tly, brx, bry);
+                    g2.drawLine(tlx, bry, brx, tly);
+                    continue;
+                }
+                g2.drawLine(tlx, tly, brx, tly); // top line
+                g2.drawLine(tlx,bry,brx,bry); // bottom line
+                g2.drawLine(tlx,tly, tlx, bry); // left line
+                g2.drawLine(brx,tly,brx,bry); // right line
+            }
+        }
+    }
 }
@@ -0,0 +1,226 @@
+package Navigation;
+
+import boofcv.struct.image.GrayF32;
+import boofcv.struct.image.Planar;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.stream.Stream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/*
+Parts of the mosaic that are outside the window kept in memory by MotionFromMosiac.
+The mosaic is split into a grid of equal tiles, a tile is addressed by its column and row on that grid.
+Tiles are stored compressed, pixels rounded to bytes, which is what the video had to begin with.
+Up to memoryBudget bytes of compressed tiles stay in memory, the least recently used ones go to disk
+and are read back when the window returns to them. Tiles that are all zero (nothing drawn yet) aren't stored.
+@yoni
+ */
+public class MosaicTileCache implements Closeable {
+    private final int tileWidth, tileHeight, numBands;
+    private final long memoryBudget;
+    private final Path directory;
+
+    // compressed tiles in memory, least recently used first
+    private final LinkedHashMap<Long, byte[]> memory = new LinkedHashMap<>(16, 0.75f, true);
+    private long memoryBytes;
+    private final HashSet<Long> onDisk = new HashSet<>();
+
+    // reused for every tile
+    private final byte[] raw;
+    private byte[] compressed;
+    private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+    private final Inflater inflater = new Inflater();
+
+    private long tilesWritten, tilesRead, diskWrites, diskReads;
+
+    public MosaicTileCache(int tileWidth, int tileHeight, int numBands, long memoryBudget) throws IOException {
+        if(tileWidth <= 0 || tileHeight <= 0) throw new IllegalArgumentException("tile size must be positive");
+        this.tileWidth = tileWidth;
+        this.tileHeight = tileHeight;
+        this.numBands = numBands;
+        this.memoryBudget = memoryBudget;
+        directory = Files.createTempDirectory("mosaic-tiles");
+        raw = new byte[tileWidth*tileHeight*numBands];
+        compressed = new byte[raw.length/4 + 64];
+    }
+
+    private static long key(int col, int row){
+        return ((long)col << 32) | (row & 0xFFFFFFFFL);
+    }
+
+    /*
+    Stores the tile at (col,row) of the mosaic, its pixels are read from image starting at (x0,y0).
+     */
+    public void put(int col, int row, Planar<GrayF32> image, int x0, int y0){
+        long key = key(col, row);
+        boolean empty = true;
+        int index = 0;
+        for(int band = 0; band < numBands; band++){
+            GrayF32 b = image.getBand(band);
+            for(int y = 0; y < tileHeight; y++){
+                int pixel = b.startIndex + (y0 + y)*b.stride + x0;
+                for(int x = 0; x < tileWidth; x++){
+                    int value = Math.round(b.data[pixel++]);
+                    value = value < 0 ? 0 : Math.min(value, 255);
+                    empty &= value == 0;
+                    raw[index++] = (byte)value;
+                }
+            }
+        }
+        // nothing drawn there, forget any older version of the tile
+        if(empty){
+            remove(key);
+            return;
+        }
+
+        deflater.reset();
+        deflater.setInput(raw);
+        deflater.finish();
+        int length = 0;
+        while(!deflater.finished()){
+            if(length == compressed.length) compressed = Arrays.copyOf(compressed, compressed.length*2);
+            length += deflater.deflate(compressed, length, compressed.length - length);
+        }
+        remove(key);
+        byte[] tile = Arrays.copyOf(compressed, length);
+        memory.put(key, tile);
+        memoryBytes += tile.length;
+        tilesWritten++;
+        spillToBudget();
+    }
+
+    /*
+    Writes the tile at (col,row) into image starting at (x0,y0). Returns false, leaving image untouched,
+    if the tile was never stored.
+     */
+    public boolean get(int col, int row, Planar<GrayF32> image, int x0, int y0){
+        long key = key(col, row);
+        byte[] tile = memory.get(key);
+        if(tile == null){
+            if(!onDisk.contains(key)) return false;
+            try {
+                tile = Files.readAllBytes(file(key));
+            } catch (IOException e){
+                throw new UncheckedIOException("failed to read mosaic tile " + col + "," + row, e);
+            }
+            diskReads++;
+        }
+
+        inflater.reset();
+        inflater.setInput(tile);
+        try {
+            int length = 0;
+            while(length < raw.length && !inflater.finished()){
+                length += inflater.inflate(raw, length, raw.length - length);
+            }
+            if(length != raw.length) throw new IllegalStateException("mosaic tile " + col + "," + row + " is truncated");
+        } catch (DataFormatException e){
+            throw new IllegalStateException("mosaic tile " + col + "," + row + " is corrupted", e);
+        }
+
+        int index = 0;
+        for(int band = 0; band < numBands; band++){
+            GrayF32 b = image.getBand(band);
+            for(int y = 0; y < tileHeight; y++){
+                int pixel = b.startIndex + (y0 + y)*b.stride + x0;
+                for(int x = 0; x < tileWidth; x++){
+                    b.data[pixel++] = raw[index++] & 0xFF;
+                }
+            }
+        }
+        tilesRead++;
+        return true;
+    }
+
+    // forgets every tile, e.g. when the mosaic's coordinates change and the stored tiles no longer line up
+    public void clear(){
+        for(Long key : onDisk){
+            try {
+                Files.deleteIfExists(file(key));
+            } catch (IOException e){
+                throw new UncheckedIOException(e);
+            }
+        }
+        onDisk.clear();
+        memory.clear();
+        memoryBytes = 0;
+    }
+
+    private void remove(long key){
+        byte[] old = memory.remove(key);
+        if(old != null) memoryBytes -= old.length;
+        if(onDisk.remove(key)){
+            try {
+                Files.deleteIfExists(file(key));
+            } catch (IOException e){
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    // moves least recently used tiles to disk until the ones in memory fit the budget
+    private void spillToBudget(){
+        Iterator<Map.Entry<Long, byte[]>> oldest = memory.entrySet().iterator();
+        while(memoryBytes > memoryBudget && oldest.hasNext()){
+            Map.Entry<Long, byte[]> entry = oldest.next();
+            try {
+                Files.write(file(entry.getKey()), entry.getValue());
+            } catch (IOException e){
+                throw new UncheckedIOException("failed to spill mosaic tile to disk", e);
+            }
+            onDisk.add(entry.getKey());
+            memoryBytes -= entry.getValue().length;
+            oldest.remove();
+            diskWrites++;
+        }
+    }
+
+    private Path file(long key){
+        return directory.resolve((int)(key >> 32) + "_" + (int)key + ".tile");
+    }
+
+    public int getTilesInMemory(){
+        return memory.size();
+    }
+
+    public int getTilesOnDisk(){
+        return onDisk.size();
+    }
+
+    public long getMemoryBytes(){
+        return memoryBytes;
+    }
+
+    @Override
+    public String toString(){
+        return String.format("tiles memory=%d (%d KB) disk=%d written=%d read=%d diskWrites=%d diskReads=%d",
+                memory.size(), memoryBytes/1024, onDisk.size(), tilesWritten, tilesRead, diskWrites, diskReads);
+    }
+
+    // deletes the tiles on disk
+    @Override
+    public void close() throws IOException {
+        memory.clear();
+        memoryBytes = 0;
+        onDisk.clear();
+        deflater.end();
+        inflater.end();
+        try(Stream<Path> files = Files.list(directory)){
+            for(Path file : (Iterable<Path>)files::iterator){
+                Files.deleteIfExists(file);
+            }
+        }
+        Files.deleteIfExists(directory);
+    }
+}
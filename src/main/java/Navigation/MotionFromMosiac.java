@@ -36,6 +36,7 @@ import boofcv.io.wrapper.DefaultMediaManager;
 import boofcv.struct.image.GrayF32;
 import boofcv.struct.image.ImageType;
 import boofcv.struct.image.Planar;
+import georegression.metric.Area2D_F64;
 import georegression.struct.homography.Homography2D_F64;
 import georegression.struct.point.Point2D_F64;
 import georegression.struct.shapes.Quadrilateral_F64;
@@ -45,6 +46,7 @@ import java.awt.*;
 import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.util.ArrayList;
 import java.util.logging.Logger;
 
@@ -63,6 +65,12 @@ import static Navigation.ImageUtils.shrinkImage;
 public class MotionFromMosiac {
 	private static final Logger logger = Logger.getLogger(MotionFromMosiac.class.getName());
 	private static final int SHRINK_VIDEO_FACTOR = 6;
+	// the mosaic in memory is a window of WINDOW_TILES x WINDOW_TILES tiles, each half a frame wide and high
+	private static final int WINDOW_TILES = 4;
+	// compressed tiles outside the window kept in memory, the rest go to disk
+	private static final long TILE_CACHE_MEMORY_BYTES = 16*1024*1024;
+	// if the frame in the mosaic grew or shrank more than this the mosaic is re-anchored on it
+	private static final double MAX_AREA_CHANGE = 2;
 
 	PointTracker<GrayF32> tracker;
 	ImageMotion2D<GrayF32, Homography2D_F64> motion2D;
@@ -71,11 +79,26 @@ public class MotionFromMosiac {
 	ArrayList<Point2D_F64> pathLocations;
 	ImageGridPanel gui;// for debugging
 	Planar<GrayF32> lastFrame;
+	Planar<GrayF32> shrunkFrame = new Planar<>(GrayF32.class, 1, 1, 3);
 	private int numFrames;
+	// drawing the whole mosaic every frame is expensive, so it is skipped when headless or over the fps cap
+	private final RenderConfig render;
+	private long lastDrawn;
+	// the window slides over the mosaic instead of growing, so memory stays the same however long the flight
+	private final MosaicTileCache tileCache;
+	private final int tileWidth, tileHeight;
+	private int windowCol, windowRow;// mosaic tile at the top left of the window
+	// where the mosaic was before it was last re-anchored, keeps getWorldLocation continuous
+	private double anchorX, anchorY;
 
 	// instantiates algorithms and some parameters.
 	// accepts first frame as input
 	public MotionFromMosiac(Planar<GrayF32> frame){
+		this(frame, RenderConfig.unlimited());
+	}
+
+	public MotionFromMosiac(Planar<GrayF32> frame, RenderConfig render){
+		this.render = render;
 		frame = shrinkImage(frame, SHRINK_VIDEO_FACTOR);
 
 		lastFrame = frame;
@@ -99,12 +122,23 @@ public class MotionFromMosiac {
 		// This fuses the images together
 		stitch = FactoryMotion2D.createVideoStitch(0.5, motion2DColor, ImageType.pl(3, GrayF32.class));
 
+		tileWidth = (frame.width + 1)/2;
+		tileHeight = (frame.height + 1)/2;
+		int windowWidth = WINDOW_TILES*tileWidth;
+		int windowHeight = WINDOW_TILES*tileHeight;
+		try {
+			tileCache = new MosaicTileCache(tileWidth, tileHeight, frame.getNumBands(), TILE_CACHE_MEMORY_BYTES);
+		} catch (IOException e) {
+			throw new UncheckedIOException("failed to create mosaic tile cache", e);
+		}
+
 		// shrink the input image and center it
-		Homography2D_F64 shrink = new Homography2D_F64(0.5, 0, frame.width/4, 0, 0.5, frame.height/4, 0, 0, 1);
+		Homography2D_F64 shrink = new Homography2D_F64(0.5, 0, (windowWidth - frame.width/2.0)/2,
+				0, 0.5, (windowHeight - frame.height/2.0)/2, 0, 0, 1);
 		shrink = shrink.invert(null);
 		// The mosaic will be larger in terms of pixels but the image will be scaled down.
 		// To change this into stabilization just make it the same size as the input with no shrink.
-		stitch.configure(frame.width, frame.height, shrink);
+		stitch.configure(windowWidth, windowHeight, shrink);
 
 		// process the first frame
 		stitch.process(frame);
@@ -117,11 +151,12 @@ public class MotionFromMosiac {
 		pathLocations.add(location);
 //		logLocation(location);
 
+		if(render.headless) return;
 		// Create the GUI for displaying the results + input image
 		gui = new ImageGridPanel(1, 2);
 		// (0,0) for input, (0,1) for mosiac
 		gui.setImage(0, 0, new BufferedImage(frame.width, frame.height, BufferedImage.TYPE_INT_RGB));
-		gui.setImage(0, 1, new BufferedImage(frame.width, frame.height, BufferedImage.TYPE_INT_RGB));
+		gui.setImage(0, 1, new BufferedImage(windowWidth, windowHeight, BufferedImage.TYPE_INT_RGB));
 		gui.setPreferredSize(new Dimension(3*frame.width, frame.height*2));
 
 	}
@@ -131,11 +166,25 @@ public class MotionFromMosiac {
 
 	}
 
+	// location of the last frame on the whole mosaic, unlike getLastLocation it doesn't jump when the window slides
+	public Point2D_F64 getWorldLocation(){
+		Point2D_F64 location = getLastLocation();
+		location.x += anchorX + (double)windowCol*tileWidth;
+		location.y += anchorY + (double)windowRow*tileHeight;
+		return location;
+	}
+
+	// pixels of the frames given to processFrame per pixel of the mosaic. they are shrunk, then drawn at half size
+	public double getPixelScale(){
+		return SHRINK_VIDEO_FACTOR*2.0;
+	}
+
 	// stitch next frame to mosiac
 	// returns true upon processing successfuly
 	public boolean processFrame(Planar<GrayF32> frame){
 		// yoni: change input size druing runtime
-		frame = shrinkImage(frame, SHRINK_VIDEO_FACTOR);
+		// shrink into the same buffer every frame, the stitcher copies what it needs
+		frame = shrinkImage(frame, SHRINK_VIDEO_FACTOR, shrunkFrame);
 
 		if (!stitch.process(frame)) {
 			return false;
@@ -145,47 +194,107 @@ public class MotionFromMosiac {
 		Quadrilateral_F64 corners = stitch.getImageCorners(frame.width, frame.height, null);
 		if (nearBorder(corners.a, stitch) || nearBorder(corners.b, stitch) ||
 				nearBorder(corners.c, stitch) || nearBorder(corners.d, stitch)) {
-			stitch.setOriginToCurrent();
-
-			// yoni: must clear points when change of perspective
-			// ideally, transform points to new coordinate system
-			pathLocations.clear();
-
-			// Yoni: enlarge as much as needed
-			// only enlarge the image once
-			//if (!enlarged) {
-//			enlarged = true;
-
-			// double the image size and shift it over to keep it centered
-			int widthOld = stitch.getStitchedImage().width;
-			int heightOld = stitch.getStitchedImage().height;
+			// Yoni: used to double the mosaic here, which ran out of memory on long flights
+			Point2D_F64 center = getCenterFromCorners(corners);
+			double area = Area2D_F64.quadrilateral(corners);
+			double initialArea = frame.width*frame.height/4.0;// first frame is drawn at half size
+			if (area > MAX_AREA_CHANGE*initialArea || area*MAX_AREA_CHANGE < initialArea) {
+				reanchor(center);
+			}
+			else {
+				slideWindow(center);
+			}
+		}
 
-			int widthNew = widthOld*2;
-			int heightNew = heightOld*2;
+		updateGui();
 
-			int tranX = (widthNew - widthOld)/2;
-			int tranY = (heightNew - heightOld)/2;
+		return true;
+	}
 
-			// Yoni: just translates image?
-			Homography2D_F64 newToOldStitch = new Homography2D_F64(1, 0, -tranX, 0, 1, -tranY, 0, 0, 1);
+	/*
+	Moves the window by whole tiles so the frame is near its center again. Tiles leaving the window go to the
+	tile cache, tiles entering it are read back from the cache if the mosaic was drawn there before.
+	The stitched image is only translated so the mosaic keeps its coordinates, they are just offset by the window.
+	 */
+	private void slideWindow(Point2D_F64 frameCenter){
+		Planar<GrayF32> window = stitch.getStitchedImage();
+		int shiftX = (int)Math.round((frameCenter.x - window.width/2.0)/tileWidth);
+		int shiftY = (int)Math.round((frameCenter.y - window.height/2.0)/tileHeight);
+		// frame is as centered as it gets, it's just large compared to the window
+		if (shiftX == 0 && shiftY == 0) return;
+
+		for (int row = 0; row < WINDOW_TILES; row++) {
+			for (int col = 0; col < WINDOW_TILES; col++) {
+				if (!insideWindow(col - shiftX, row - shiftY)) {
+					tileCache.put(windowCol + col, windowRow + row, window, col*tileWidth, row*tileHeight);
+				}
+			}
+		}
 
-			stitch.resizeStitchImage(widthNew, heightNew, newToOldStitch);
-			gui.setImage(0, 1, new BufferedImage(widthNew, heightNew, BufferedImage.TYPE_INT_RGB));
+		// new stitch pixel (x,y) is the old pixel (x+dx,y+dy)
+		Homography2D_F64 newToOldStitch = new Homography2D_F64(1, 0, shiftX*tileWidth, 0, 1, shiftY*tileHeight, 0, 0, 1);
+		stitch.resizeStitchImage(window.width, window.height, newToOldStitch);
+		windowCol += shiftX;
+		windowRow += shiftY;
+
+		window = stitch.getStitchedImage();
+		for (int row = 0; row < WINDOW_TILES; row++) {
+			for (int col = 0; col < WINDOW_TILES; col++) {
+				if (!insideWindow(col + shiftX, row + shiftY)) {
+					tileCache.get(windowCol + col, windowRow + row, window, col*tileWidth, row*tileHeight);
+				}
+			}
+		}
 
-			//} // end of enlarging image
+		// the path moves along with the mosaic
+		for (Point2D_F64 p : pathLocations) {
+			p.x -= shiftX*tileWidth;
+			p.y -= shiftY*tileHeight;
+		}
+	}
 
-			// Yoni: save after enalrge
-//			savePlanar_F32(stitch.getStitchedImage(),"mosiacVideo " + numFrames + "AfterReset.png" );
+	/*
+	Sliding only translates the mosaic, so the estimated motion keeps piling up on the first frame. Once the frame's
+	scale has drifted too far the mosaic is started again from the current frame, like it always was on recentering.
+	The stored tiles don't line up with the new mosaic anymore so they are dropped.
+	 */
+	private void reanchor(Point2D_F64 frameCenter){
+		Point2D_F64 before = new Point2D_F64(frameCenter.x + anchorX + (double)windowCol*tileWidth,
+				frameCenter.y + anchorY + (double)windowRow*tileHeight);
+		stitch.setOriginToCurrent();
+		tileCache.clear();
+		windowCol = 0;
+		windowRow = 0;
+		// yoni: must clear points when change of perspective
+		pathLocations.clear();
+		// the frame is back where the first one was, carry its world location over
+		Point2D_F64 after = getLastLocation();
+		anchorX = before.x - after.x;
+		anchorY = before.y - after.y;
+	}
 
-			return true;
-		}//end of recentering mosiac
+	private static boolean insideWindow(int col, int row){
+		return col >= 0 && row >= 0 && col < WINDOW_TILES && row < WINDOW_TILES;
+	}
 
-		updateGui();
+	public MosaicTileCache getTileCache(){
+		return tileCache;
+	}
 
-		return true;
+	// deletes the parts of the mosaic that were moved to disk
+	public void close(){
+		try {
+			tileCache.close();
+		} catch (IOException e) {
+			logger.warning("failed to delete mosaic tiles: " + e.getMessage());
+		}
 	}
 
 	private void updateGui(){
+		if(render.headless) return;
+		long now = System.nanoTime();
+		if(lastDrawn != 0 && now - lastDrawn < render.minIntervalNanos()) return;
+		lastDrawn = now;
 		Quadrilateral_F64 corners = stitch.getImageCorners(lastFrame.width, lastFrame.height, null);
 		// display the mosaic
 		ConvertBufferedImage.convertTo(lastFrame, gui.getImage(0, 0), true);
@@ -215,6 +324,7 @@ public class MotionFromMosiac {
 
 
 	public void displayGui(){
+		if(render.headless) return;
 		ShowImages.showWindow(gui, "Example Mosaic", true);
 	}
 
@@ -241,7 +351,7 @@ public class MotionFromMosiac {
 			}
 			num_frames ++;
 			if(num_frames%300 == 0){
-				System.out.println("frame"+num_frames);
+				System.out.println("frame"+num_frames + " " + motionFromMosiac.getTileCache());
 			}
 //            if(num_frames % SKIPPED_FRAMES != 0){
 //                video.next();
@@ -253,6 +363,7 @@ public class MotionFromMosiac {
 //                //TODO get location
 //            }
 		}
+		motionFromMosiac.close();
 
 	}
 
@@ -0,0 +1,281 @@
+package Navigation;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+
+/*
+One stage of the frame pipeline. Runs on its own thread, takes items from a bounded input queue,
+processes them and hands the result to every connected downstream stage.
+A source stage has no input queue and pulls its items from a supplier until it returns null.
+Items that are Releasable are retained once for every queue they enter and released when the stage is done
+with them or drops them, so pooled buffers go back to their pool.
+@yoni
+ */
+public class PipelineStage<I, O> {
+    // what to do when the input queue is full
+    public enum QueuePolicy {
+        BLOCK,      // wait for room, slowing down upstream stages (backpressure)
+        DROP_OLDEST // throw away the oldest waiting item, upstream never waits
+    }
+
+    public interface Processor<I, O> {
+        // return null to not pass anything downstream, see also skipItem
+        O process(I input) throws Exception;
+    }
+
+    // marks end of stream inside the queues
+    private static final Object END = new Object();
+    // the stage whose thread is running, for skipItem
+    private static final ThreadLocal<PipelineStage<?, ?>> CURRENT = new ThreadLocal<>();
+    // weight of the newest item in the moving average of the latency
+    private static final double LATENCY_SMOOTHING = 0.1;
+
+    private final String name;
+    private final Processor<I, O> processor;
+    private final Supplier<O> source;
+    private final BlockingQueue<Object> queue;
+    private final QueuePolicy policy;
+    private final List<Downstream<O>> downstream = new ArrayList<>();
+    private final Thread thread;
+    private int upstreams; // number of stages feeding this one, each sends its own end marker
+
+    private final AtomicLong processed = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong skipped = new AtomicLong();
+    private boolean skipping; // only the stage's own thread touches it
+    // moving average of the time spent processing an item, waiting in the queue not included
+    private volatile double averageLatencyNanos;
+    private volatile long startTime;
+    private volatile long endTime;
+
+    private PipelineStage(String name, Processor<I, O> processor, Supplier<O> source, int capacity, QueuePolicy policy){
+        this.name = name;
+        this.processor = processor;
+        this.source = source;
+        this.policy = policy;
+        queue = source == null ? new ArrayBlockingQueue<>(capacity) : null;
+        thread = new Thread(this::run, "pipeline-" + name);
+        thread.setDaemon(true);
+    }
+
+    public static <I, O> PipelineStage<I, O> create(String name, int capacity, QueuePolicy policy, Processor<I, O> processor){
+        if(capacity < 1) throw new IllegalArgumentException("queue capacity must be positive");
+        return new PipelineStage<>(name, processor, null, capacity, policy);
+    }
+
+    public static <O> PipelineStage<Void, O> source(String name, Supplier<O> source){
+        return new PipelineStage<>(name, null, source, 0, QueuePolicy.BLOCK);
+    }
+
+    /*
+    Called by a processor about the item it is processing when it had nothing to do with it. Whatever it returns
+    isn't passed downstream and the item isn't counted as processed, so its time doesn't pull down the latency
+    that LatencyScheduler plans with.
+     */
+    public static void skipItem(){
+        PipelineStage<?, ?> stage = CURRENT.get();
+        if(stage == null) throw new IllegalStateException("not called from a pipeline stage");
+        stage.skipping = true;
+    }
+
+    public <N> PipelineStage<O, N> connect(PipelineStage<O, N> next){
+        return connect(next, null);
+    }
+
+    // only items passing filter are handed to next
+    public <N> PipelineStage<O, N> connect(PipelineStage<O, N> next, Predicate<O> filter){
+        if(next.source != null) throw new IllegalArgumentException("can't connect into a source stage");
+        downstream.add(new Downstream<>(next, filter));
+        next.upstreams++;
+        return next;
+    }
+
+    public void start(){
+        startTime = System.nanoTime();
+        thread.start();
+    }
+
+    public void join() throws InterruptedException {
+        thread.join();
+    }
+
+    public void interrupt(){
+        thread.interrupt();
+    }
+
+    // add an item to the input queue according to the policy of this stage.
+    // a Releasable item hands the caller's reference over to the queue
+    public void submit(I item) throws InterruptedException {
+        if(source != null) throw new IllegalStateException("source stage " + name + " has no input queue");
+        offer(item);
+    }
+
+    private void offer(Object item) throws InterruptedException {
+        if(policy == QueuePolicy.BLOCK || item == END){
+            queue.put(item);
+            return;
+        }
+        while(!queue.offer(item)){
+            Object old = queue.poll();
+            if(old == END){
+                // never lose the end marker, the new item is the one that goes
+                queue.put(END);
+                dropped.incrementAndGet();
+                release(item);
+                return;
+            }
+            if(old != null){
+                dropped.incrementAndGet();
+                release(old);
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void run(){
+        CURRENT.set(this);
+        int endsSeen = 0;
+        try {
+            while(true){
+                O result;
+                Object item = null;
+                long itemStart = System.nanoTime();
+                if(source != null){
+                    result = source.get();
+                    if(result == null) break;
+                }
+                else {
+                    item = queue.take();
+                    if(item == END){
+                        if(++endsSeen >= upstreams) break;
+                        continue;
+                    }
+                    itemStart = System.nanoTime();
+                    skipping = false;
+                    try {
+                        result = processor.process((I) item);
+                    } catch (InterruptedException e){
+                        release(item);
+                        throw e;
+                    } catch (Exception e){
+                        // a bad item shouldn't stall the stages around this one
+                        System.err.println("stage " + name + " failed on item: " + e);
+                        e.printStackTrace();
+                        release(item);
+                        continue;
+                    }
+                    if(skipping){
+                        skipped.incrementAndGet();
+                        release(item);
+                        if(result != item) release(result);
+                        continue;
+                    }
+                }
+                recordLatency(System.nanoTime() - itemStart);
+                processed.incrementAndGet();
+                if(result != null){
+                    forward(result);
+                }
+                // done with the input, and with the result unless it is the input passed along
+                release(item);
+                if(result != item){
+                    release(result);
+                }
+            }
+        } catch (InterruptedException e){
+            Thread.currentThread().interrupt();
+        }
+        endTime = System.nanoTime();
+        // let the downstream stages drain and stop as well
+        try {
+            for(Downstream<O> d : downstream){
+                d.stage.offer(END);
+            }
+        } catch (InterruptedException e){
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // only the stage's own thread writes it
+    private void recordLatency(long nanos){
+        double average = averageLatencyNanos;
+        averageLatencyNanos = processed.get() == 0 ? nanos : average + LATENCY_SMOOTHING*(nanos - average);
+    }
+
+    private void forward(O result) throws InterruptedException {
+        for(Downstream<O> d : downstream){
+            if(d.filter == null || d.filter.test(result)){
+                // the queue holds its own reference
+                if(result instanceof Releasable){
+                    ((Releasable) result).retain();
+                }
+                d.stage.offer(result);
+            }
+        }
+    }
+
+    private static void release(Object item){
+        if(item instanceof Releasable){
+            ((Releasable) item).release();
+        }
+    }
+
+    public String getName(){
+        return name;
+    }
+
+    public int getQueueDepth(){
+        return queue == null ? 0 : queue.size();
+    }
+
+    public int getQueueCapacity(){
+        return queue == null ? 0 : queue.size() + queue.remainingCapacity();
+    }
+
+    public long getProcessed(){
+        return processed.get();
+    }
+
+    public long getDropped(){
+        return dropped.get();
+    }
+
+    public long getSkipped(){
+        return skipped.get();
+    }
+
+    // moving average of how long an item takes to process, 0 before the first one
+    public double getAverageLatencyMillis(){
+        return averageLatencyNanos/1e6;
+    }
+
+    // items processed per second since the stage started
+    public double getThroughput(){
+        if(startTime == 0) return 0;
+        long end = endTime == 0 ? System.nanoTime() : endTime;
+        double seconds = (end - startTime) / 1e9;
+        return seconds <= 0 ? 0 : processed.get() / seconds;
+    }
+
+    @Override
+    public String toString(){
+        return String.format("%s[queue %d/%d, processed %d, dropped %d, skipped %d, %.1f/s, %.1f ms]", name,
+                getQueueDepth(), getQueueCapacity(), getProcessed(), getDropped(), getSkipped(), getThroughput(),
+                getAverageLatencyMillis());
+    }
+
+    private static class Downstream<O> {
+        final PipelineStage<O, ?> stage;
+        final Predicate<O> filter;
+
+        Downstream(PipelineStage<O, ?> stage, Predicate<O> filter){
+            this.stage = stage;
+            this.filter = filter;
+        }
+    }
+}
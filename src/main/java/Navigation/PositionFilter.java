@@ -0,0 +1,179 @@
+package Navigation;
+
+import georegression.struct.point.Point2D_F64;
+import org.bridj.util.Pair;
+
+/*
+Where the drone is on the map, from odometry (MotionFromMosiac) between fixes and the map (LocationFromMap) at fixes.
+A Kalman filter on the position in map pixels. The covariance grows with every frame of odometry, faster without it,
+and shrinks when a fix is accepted. A fix is only needed when the position got too uncertain, see requestFix.
+Fixes much further from the estimate than the covariance allows are rejected as wrong matches. If several fixes
+in a row are rejected it's the estimate that is off, so it restarts from the last fix.
+Odometry and fixes come from different pipeline stages, so every method is synchronized.
+@yoni
+ */
+public class PositionFilter {
+    // squared mahalanobis distance of a fix beyond which it is rejected, 99% for 2 degrees of freedom
+    private static final double FIX_GATE = 9.21;
+    private static final int MAX_REJECTED_FIXES = 3;
+
+    private final double odometryStd;// error of the odometry each frame, in map pixels
+    private final double odometryRelativeStd;// and the part of it that grows with the motion
+    private final double noOdometryStd;// how far the drone may move unseen in a frame, when there is no odometry
+    private final double maxStd;// a fix is needed once the position is less certain than this
+    private final int minFramesBetweenFixes;
+
+    private double x, y;
+    // covariance
+    private double pxx, pxy, pyy;
+
+    // last odometry location, motion is measured from it. not valid after odometry was lost
+    private double lastOdometryX, lastOdometryY;
+    private boolean hasOdometry;
+    private int lastFixFrame = Integer.MIN_VALUE/2;
+    private int rejectedInRow;
+
+    private long fixesRequested, fixesAccepted, fixesRejected, restarts;
+
+    public PositionFilter(double startX, double startY, double startStd, double odometryStd, double odometryRelativeStd,
+                          double noOdometryStd, double maxStd, int minFramesBetweenFixes){
+        x = startX;
+        y = startY;
+        pxx = pyy = startStd*startStd;
+        this.odometryStd = odometryStd;
+        this.odometryRelativeStd = odometryRelativeStd;
+        this.noOdometryStd = noOdometryStd;
+        this.maxStd = maxStd;
+        this.minFramesBetweenFixes = minFramesBetweenFixes;
+    }
+
+    /*
+    Moves the estimate by the odometry since the last frame. location is where the odometry puts the drone, e.g.
+    MotionFromMosiac.getWorldLocation, scale turns its units to map pixels.
+     */
+    public synchronized void predict(Point2D_F64 location, double scale){
+        if(!hasOdometry){
+            // first odometry after a start or a loss, nothing to measure the motion from yet
+            lastOdometryX = location.x;
+            lastOdometryY = location.y;
+            hasOdometry = true;
+            grow(noOdometryStd);
+            return;
+        }
+        double dx = (location.x - lastOdometryX)*scale;
+        double dy = (location.y - lastOdometryY)*scale;
+        lastOdometryX = location.x;
+        lastOdometryY = location.y;
+        x += dx;
+        y += dy;
+        grow(odometryStd + odometryRelativeStd*Math.sqrt(dx*dx + dy*dy));
+    }
+
+    // a frame went by without odometry
+    public synchronized void predictWithoutOdometry(){
+        predictWithoutOdometry(1);
+    }
+
+    public synchronized void predictWithoutOdometry(int numFrames){
+        grow(noOdometryStd*Math.sqrt(numFrames));
+    }
+
+    // odometry failed on a frame, the position can't be trusted until the next fix
+    public synchronized void odometryLost(){
+        hasOdometry = false;
+        grow(noOdometryStd);
+        double floor = maxStd*maxStd;
+        pxx = Math.max(pxx, floor);
+        pyy = Math.max(pyy, floor);
+    }
+
+    private void grow(double std){
+        pxx += std*std;
+        pyy += std*std;
+    }
+
+    /*
+    A fix from the map, the drone is around (fixX,fixY) give or take std pixels.
+    Returns false if the fix was rejected for being too far from the estimate.
+     */
+    public synchronized boolean update(double fixX, double fixY, double std){
+        double r = std*std;
+        double sxx = pxx + r, sxy = pxy, syy = pyy + r;
+        double det = sxx*syy - sxy*sxy;
+        // inverse of the innovation covariance
+        double ixx = syy/det, ixy = -sxy/det, iyy = sxx/det;
+        double vx = fixX - x, vy = fixY - y;
+        if(vx*(ixx*vx + ixy*vy) + vy*(ixy*vx + iyy*vy) > FIX_GATE){
+            if(++rejectedInRow < MAX_REJECTED_FIXES){
+                fixesRejected++;
+                return false;
+            }
+            // the fixes agree with each other more than with the estimate
+            x = fixX;
+            y = fixY;
+            pxx = pyy = r;
+            pxy = 0;
+            rejectedInRow = 0;
+            restarts++;
+            fixesAccepted++;
+            return true;
+        }
+        rejectedInRow = 0;
+
+        // gain
+        double kxx = pxx*ixx + pxy*ixy, kxy = pxx*ixy + pxy*iyy;
+        double kyx = pxy*ixx + pyy*ixy, kyy = pxy*ixy + pyy*iyy;
+        x += kxx*vx + kxy*vy;
+        y += kyx*vx + kyy*vy;
+        double nxx = pxx - (kxx*pxx + kxy*pxy);
+        double nxy = pxy - (kxx*pxy + kxy*pyy);
+        double nyy = pyy - (kyx*pxy + kyy*pyy);
+        pxx = nxx;
+        pxy = nxy;
+        pyy = nyy;
+        fixesAccepted++;
+        return true;
+    }
+
+    // standard deviation of the position along its least certain direction
+    public synchronized double getStd(){
+        double mean = (pxx + pyy)/2;
+        double half = (pxx - pyy)/2;
+        return Math.sqrt(mean + Math.sqrt(half*half + pxy*pxy));
+    }
+
+    public synchronized boolean needsFix(){
+        return getStd() > maxStd;
+    }
+
+    /*
+    True if a fix should be made on this frame: the position is too uncertain and no fix was requested in the
+    last minFramesBetweenFixes frames. Records the request.
+     */
+    public synchronized boolean requestFix(int frameIndex){
+        return requestFix(frameIndex, minFramesBetweenFixes);
+    }
+
+    // same with a different spacing, e.g. from LatencyScheduler
+    public synchronized boolean requestFix(int frameIndex, int minFramesBetweenFixes){
+        if(!needsFix() || frameIndex - lastFixFrame < minFramesBetweenFixes) return false;
+        lastFixFrame = frameIndex;
+        fixesRequested++;
+        return true;
+    }
+
+    public synchronized Point2D_F64 getLocation(){
+        return new Point2D_F64(x, y);
+    }
+
+    // the estimate in whole pixels, the way locations on the map are given to LocationFromMap
+    public synchronized Pair<Integer,Integer> getMapLocation(){
+        return new Pair<>((int)Math.round(x), (int)Math.round(y));
+    }
+
+    @Override
+    public synchronized String toString(){
+        return String.format("position (%.0f,%.0f) std %.1f fixes requested=%d accepted=%d rejected=%d restarts=%d",
+                x, y, getStd(), fixesRequested, fixesAccepted, fixesRejected, restarts);
+    }
+}
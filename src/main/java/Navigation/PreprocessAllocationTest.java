@@ -0,0 +1,98 @@
+package Navigation;
+
+import boofcv.alg.misc.GImageMiscOps;
+import boofcv.struct.image.GrayF32;
+import boofcv.struct.image.Planar;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.Random;
+
+import static Navigation.ImageUtils.shrinkImage;
+import static Navigation.ImageUtils.squareAndShrinkImage;
+import static Navigation.ImageUtils.squareImage;
+
+/*
+Measures allocation rate and GC pauses of the per frame preprocessing, the old allocating path against
+the pooled fused one. Uses synthetic frames so no video is needed.
+Run with a fixed heap, e.g. -Xmx512m, so the GC numbers are comparable between runs.
+@yoni
+ */
+public class PreprocessAllocationTest {
+    private static final int WIDTH = 1080;
+    private static final int HEIGHT = 1920;
+    private static final int SHRINK = 2;
+    private static final int NUM_FRAMES = 900; // 30 seconds of 30 fps video
+
+    public static void main(String[] args) throws InterruptedException {
+        Planar<GrayF32> frame = new Planar<>(GrayF32.class, WIDTH, HEIGHT, 3);
+        GImageMiscOps.fillUniform(frame, new Random(234), 0, 255);
+
+        // both paths have to give the same image
+        Planar<GrayF32> expected = shrinkImage(squareImage(frame), SHRINK);
+        Planar<GrayF32> found = squareAndShrinkImage(frame, SHRINK, new Planar<>(GrayF32.class, 1, 1, 3));
+        System.out.println("max difference between paths: " + maxDifference(expected, found));
+
+        // warm up both so the JIT doesn't end up in the numbers
+        runAllocating(frame, NUM_FRAMES/3);
+        runPooled(frame, NUM_FRAMES/3);
+
+        report("allocating (squareImage + shrinkImage)", () -> runAllocating(frame, NUM_FRAMES));
+        report("pooled (squareAndShrinkImage)", () -> runPooled(frame, NUM_FRAMES));
+    }
+
+    private static void runAllocating(Planar<GrayF32> frame, int frames){
+        for(int i = 0; i < frames; i++){
+            shrinkImage(squareImage(frame), SHRINK);
+        }
+    }
+
+    private static void runPooled(Planar<GrayF32> frame, int frames){
+        FramePool pool = new FramePool(2, 3);
+        try {
+            for(int i = 0; i < frames; i++){
+                VideoFrame small = pool.frame(i);
+                squareAndShrinkImage(frame, SHRINK, small.image);
+                small.release();
+            }
+        } catch (InterruptedException e){
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void report(String name, Runnable task){
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+        long gcCount = 0, gcTime = 0;
+        for(GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()){
+            gcCount -= gc.getCollectionCount();
+            gcTime -= gc.getCollectionTime();
+        }
+        long allocated = threads.getThreadAllocatedBytes(threadId);
+        long start = System.nanoTime();
+
+        task.run();
+
+        double seconds = (System.nanoTime() - start)/1e9;
+        allocated = threads.getThreadAllocatedBytes(threadId) - allocated;
+        for(GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()){
+            gcCount += gc.getCollectionCount();
+            gcTime += gc.getCollectionTime();
+        }
+        System.out.printf("%-40s %7.1f ms/frame  %9.1f KB/frame  %8.1f MB/s allocated  %4d GCs  %5d ms in GC%n",
+                name, 1000*seconds/NUM_FRAMES, allocated/1024.0/NUM_FRAMES, allocated/1e6/seconds, gcCount, gcTime);
+    }
+
+    private static float maxDifference(Planar<GrayF32> a, Planar<GrayF32> b){
+        if(a.width != b.width || a.height != b.height) return Float.POSITIVE_INFINITY;
+        float max = 0;
+        for(int band = 0; band < a.getNumBands(); band++){
+            for(int y = 0; y < a.height; y++){
+                for(int x = 0; x < a.width; x++){
+                    max = Math.max(max, Math.abs(a.getBand(band).get(x, y) - b.getBand(band).get(x, y)));
+                }
+            }
+        }
+        return max;
+    }
+}
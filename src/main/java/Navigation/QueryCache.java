@@ -0,0 +1,163 @@
+package Navigation;
+
+import boofcv.abst.scene.SceneRecognition;
+import boofcv.struct.image.GrayU8;
+import org.ddogleg.struct.DogArray;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/*
+Remembers the latest answers of a model, so a drone that hovers or circles doesn't run the same query again and again.
+A query is keyed by a 64 bit perceptual hash of the image and the tile it was searched around. Two queries are the
+same if they are around the same tile and their hashes differ in at most maxDistance bits.
+Answers are forgotten after ttlMillis, and the least recently used one goes when there are more than maxEntries.
+The hash is a difference hash: the image is shrunk to 9x8 cells by averaging a sample of its pixels, each bit says
+whether a cell is darker than the one to its right. It barely changes with brightness or with a shift of a few pixels.
+@yoni
+ */
+public class QueryCache {
+    private static final int HASH_WIDTH = 9;
+    private static final int HASH_HEIGHT = 8;
+    // pixels sampled along the smaller side of the image, enough to average each cell
+    private static final int HASH_SAMPLES = 72;
+
+    private final int maxEntries;
+    private final int maxDistance;
+    private final long ttlNanos;
+
+    private static class Answer {
+        long hash;
+        int tile;
+        long created;
+        DogArray<SceneRecognition.Match> matches;
+    }
+
+    // least recently used first
+    private final LinkedHashMap<Long, Answer> entries;
+    private long nextKey;
+
+    private long hits, misses, expired;
+
+    public QueryCache(int maxEntries, int maxDistance, long ttlMillis){
+        if(maxEntries <= 0) throw new IllegalArgumentException("cache needs room for at least one query");
+        if(maxDistance < 0 || maxDistance > 64) throw new IllegalArgumentException("distance must be between 0 and 64 bits");
+        this.maxEntries = maxEntries;
+        this.maxDistance = maxDistance;
+        this.ttlNanos = ttlMillis*1_000_000L;
+        entries = new LinkedHashMap<>(16, 0.75f, true){
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, Answer> eldest){
+                return size() > QueryCache.this.maxEntries;
+            }
+        };
+    }
+
+    public static long hash(GrayU8 image){
+        int step = Math.max(1, Math.min(image.width, image.height)/HASH_SAMPLES);
+        long[] sums = new long[HASH_WIDTH*HASH_HEIGHT];
+        int[] counts = new int[HASH_WIDTH*HASH_HEIGHT];
+        for(int y = 0; y < image.height; y += step){
+            int row = (y*HASH_HEIGHT/image.height)*HASH_WIDTH;
+            int pixel = image.startIndex + y*image.stride;
+            for(int x = 0; x < image.width; x += step){
+                int cell = row + x*HASH_WIDTH/image.width;
+                sums[cell] += image.data[pixel + x] & 0xFF;
+                counts[cell]++;
+            }
+        }
+        long hash = 0;
+        int bit = 0;
+        for(int y = 0; y < HASH_HEIGHT; y++){
+            for(int x = 0; x < HASH_WIDTH - 1; x++, bit++){
+                int left = y*HASH_WIDTH + x;
+                // compares averages without dividing, a cell with no samples counts as black
+                if(sums[left]*Math.max(1, counts[left + 1]) < sums[left + 1]*Math.max(1, counts[left])){
+                    hash |= 1L << bit;
+                }
+            }
+        }
+        return hash;
+    }
+
+    /*
+    The answer to a query like this one, or null if there is none. The answer is a copy that the caller can keep.
+     */
+    public synchronized DogArray<SceneRecognition.Match> get(long hash, int tile){
+        long now = System.nanoTime();
+        Answer best = null;
+        long bestKey = 0;
+        int bestDistance = maxDistance + 1;
+        Iterator<Map.Entry<Long, Answer>> it = entries.entrySet().iterator();
+        while(it.hasNext()){
+            var next = it.next();
+            Answer entry = next.getValue();
+            if(now - entry.created > ttlNanos){
+                it.remove();
+                expired++;
+                continue;
+            }
+            if(entry.tile != tile) continue;
+            int distance = Long.bitCount(entry.hash ^ hash);
+            if(distance < bestDistance){
+                best = entry;
+                bestKey = next.getKey();
+                bestDistance = distance;
+            }
+        }
+        if(best == null){
+            misses++;
+            return null;
+        }
+        // marks it as recently used
+        entries.get(bestKey);
+        hits++;
+        return copy(best.matches);
+    }
+
+    public synchronized void put(long hash, int tile, DogArray<SceneRecognition.Match> matches){
+        Answer entry = new Answer();
+        entry.hash = hash;
+        entry.tile = tile;
+        entry.created = System.nanoTime();
+        entry.matches = copy(matches);
+        entries.put(nextKey++, entry);
+    }
+
+    private static DogArray<SceneRecognition.Match> copy(DogArray<SceneRecognition.Match> matches){
+        DogArray<SceneRecognition.Match> copy = new DogArray<>(SceneRecognition.Match::new);
+        for(int i = 0; i < matches.size; i++){
+            SceneRecognition.Match match = copy.grow();
+            match.id = matches.get(i).id;
+            match.error = matches.get(i).error;
+        }
+        return copy;
+    }
+
+    public synchronized void clear(){
+        entries.clear();
+    }
+
+    public synchronized int size(){
+        return entries.size();
+    }
+
+    public synchronized long getHits(){
+        return hits;
+    }
+
+    public synchronized long getMisses(){
+        return misses;
+    }
+
+    public synchronized double getHitRate(){
+        return hits + misses == 0 ? 0 : hits/(double)(hits + misses);
+    }
+
+    @Override
+    public synchronized String toString(){
+        return String.format("query cache entries=%d hits=%d misses=%d expired=%d hit rate=%.2f",
+                entries.size(), hits, misses, expired, getHitRate());
+    }
+}
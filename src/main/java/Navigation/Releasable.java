@@ -0,0 +1,11 @@
+package Navigation;
+
+/*
+Something that goes back to a pool once everybody holding it is done.
+Pipeline stages retain an item for every queue it enters and release it once processed or dropped.
+ */
+public interface Releasable {
+    void retain();
+
+    void release();
+}
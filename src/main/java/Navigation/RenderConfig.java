@@ -0,0 +1,44 @@
+package Navigation;
+
+import java.awt.*;
+
+/*
+How the GUI windows are drawn. Headless draws nothing at all, otherwise drawing is capped at maxFps
+so displaying frames never takes time away from estimation.
+Can be set from the command line with -Dnavigation.headless=true and -Dnavigation.displayFps=10.
+@yoni
+ */
+public class RenderConfig {
+    public final boolean headless;
+    public final double maxFps; // 0 for no cap
+
+    private RenderConfig(boolean headless, double maxFps){
+        if(maxFps < 0) throw new IllegalArgumentException("display fps can't be negative");
+        this.headless = headless;
+        this.maxFps = maxFps;
+    }
+
+    public static RenderConfig headless(){
+        return new RenderConfig(true, 0);
+    }
+
+    public static RenderConfig capped(double maxFps){
+        return new RenderConfig(false, maxFps);
+    }
+
+    public static RenderConfig unlimited(){
+        return new RenderConfig(false, 0);
+    }
+
+    // headless if asked to or if there is no display at all, e.g. on a server
+    public static RenderConfig fromSystemProperties(){
+        boolean headless = Boolean.getBoolean("navigation.headless") || GraphicsEnvironment.isHeadless();
+        if(headless) return headless();
+        return capped(Double.parseDouble(System.getProperty("navigation.displayFps", "0")));
+    }
+
+    // shortest time between two drawn frames
+    public long minIntervalNanos(){
+        return maxFps == 0 ? 0 : (long)(1e9/maxFps);
+    }
+}
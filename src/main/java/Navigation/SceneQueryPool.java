@@ -0,0 +1,237 @@
+package Navigation;
+
+import boofcv.abst.feature.detdesc.DetectDescribePoint;
+import boofcv.abst.scene.SceneRecognition;
+import boofcv.abst.scene.WrapFeatureToSceneRecognition;
+import boofcv.abst.scene.nister2006.FeatureSceneRecognitionNister2006;
+import boofcv.alg.scene.bow.BowMatch;
+import boofcv.alg.scene.bow.BowUtils;
+import boofcv.alg.scene.bow.InvertedFile;
+import boofcv.alg.scene.nister2006.RecognitionVocabularyTreeNister2006;
+import boofcv.alg.scene.nister2006.TupleMapDistanceNorm;
+import boofcv.alg.scene.vocabtree.HierarchicalVocabularyTree;
+import boofcv.misc.BoofLambdas;
+import boofcv.struct.feature.TupleDesc;
+import boofcv.struct.image.GrayU8;
+import org.ddogleg.clustering.PointDistance;
+import org.ddogleg.struct.BigDogArray_I32;
+import org.ddogleg.struct.DogArray;
+import org.ddogleg.struct.DogArray_F32;
+import org.ddogleg.struct.DogArray_I32;
+
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/*
+Queries a model from any number of threads at once. A SceneRecognition keeps its working memory (feature detector,
+word histogram, match scores) in the same objects as the model, so it can only answer one query at a time.
+Here the model, the vocabulary tree, the inverted files and the tile ids, is only read and is shared by every query.
+Each query borrows a workspace with its own detector and score arrays, and gives it back when done. Workspaces are
+made when more threads query at once than there are idle ones, so there are as many as the most concurrent queries.
+The scoring is the one of RecognitionVocabularyTreeNister2006 and gives the same matches, it is done here because the
+library's query also writes into the tree (HierarchicalVocabularyTree.searchPathToLeaf uses a shared temporary).
+The model must not be changed (learnModel, addImage) once the pool is made.
+@yoni
+ */
+public class SceneQueryPool<TD extends TupleDesc<TD>> {
+    // shared, only read
+    private final HierarchicalVocabularyTree<TD> tree;
+    private final RecognitionVocabularyTreeNister2006<TD> database;
+    private final List<String> imageIds;
+
+    private final Supplier<DetectDescribePoint<GrayU8, TD>> detectors;
+    private final Queue<Workspace> idle = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger created = new AtomicInteger();
+
+    private SceneQueryPool(FeatureSceneRecognitionNister2006<TD> model, Supplier<DetectDescribePoint<GrayU8, TD>> detectors){
+        tree = model.getTree();
+        database = model.getDatabase();
+        imageIds = model.getImageIds();
+        this.detectors = detectors;
+    }
+
+    // a pool over a model made like the ones of the map, by LocationFromMap.createRecognizer or SharedVocabulary
+    public static SceneQueryPool<?> of(SceneRecognition<GrayU8> recognizer){
+        if(!(recognizer instanceof WrapFeatureToSceneRecognition<GrayU8, ?> wrapped) ||
+                !(wrapped.getRecognizer() instanceof FeatureSceneRecognitionNister2006)){
+            throw new IllegalArgumentException("only vocabulary tree models can be queried concurrently");
+        }
+        return create(wrapped);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <TD extends TupleDesc<TD>> SceneQueryPool<TD> create(WrapFeatureToSceneRecognition<GrayU8, TD> recognizer){
+        // every workspace needs its own detector, configured like the model's
+        return new SceneQueryPool<>(recognizer.getRecognizer(),
+                () -> ((WrapFeatureToSceneRecognition<GrayU8, TD>)LocationFromMap.createRecognizer()).getDetector());
+    }
+
+    /*
+    Same as SceneRecognition.query: the best matches of the image, lowest error first, among the tiles filter keeps
+    (null keeps all), at most limit of them (0 for all). Safe to call from several threads.
+     */
+    public boolean query(GrayU8 image, BoofLambdas.Filter<String> filter, int limit, DogArray<SceneRecognition.Match> matches){
+        Workspace workspace = idle.poll();
+        if(workspace == null){
+            workspace = new Workspace();
+            created.incrementAndGet();
+        }
+        boolean completed = false;
+        try {
+            boolean found = workspace.query(image, filter, limit <= 0 ? Integer.MAX_VALUE : limit, matches);
+            completed = true;
+            return found;
+        } finally {
+            // a query that threw may have left its lookup tables dirty, only a completed one gives its workspace back.
+            // the next query that finds no idle workspace makes a new one
+            if(completed) idle.offer(workspace);
+        }
+    }
+
+    // number of workspaces made so far, the most queries that ran at the same time
+    public int getWorkspacesCreated(){
+        return created.get();
+    }
+
+    /*
+    What a single query writes to. Follows RecognitionVocabularyTreeNister2006.describe and findAndScoreMatches,
+    the lookup tables are reset after each query instead of being refilled before it.
+     */
+    private class Workspace {
+        final DetectDescribePoint<GrayU8, TD> detector = detectors.get();
+        final PointDistance<TD> distance = tree.distanceFunction.newInstanceThread();
+        final TupleMapDistanceNorm norm = database.getDistanceFunction().newInstanceThread();
+        // description of the tree node being compared against
+        final TD nodeDescription;
+
+        // words of the query: tree node, how many features went through it, its normalized weight
+        final DogArray_I32 words = new DogArray_I32();
+        final DogArray_I32 counts = new DogArray_I32();
+        final DogArray_F32 weights = new DogArray_F32();
+        // word of each tree node, -1 if no feature went through it
+        final DogArray_I32 nodeToWord = new DogArray_I32();
+
+        final DogArray<BowMatch> scores = new DogArray<>(BowMatch::new, BowMatch::reset);
+        // score of each database entry, -1 if it has none
+        final DogArray_I32 entryToScore = new DogArray_I32();
+
+        Workspace(){
+            nodeDescription = detector.createDescription();
+        }
+
+        boolean query(GrayU8 image, BoofLambdas.Filter<String> filter, int limit, DogArray<SceneRecognition.Match> matches){
+            matches.reset();
+            scores.reset();
+            detector.detect(image);
+            if(detector.getNumberOfFeatures() == 0) return false;
+
+            describe();
+            score();
+            if(scores.isEmpty()) return false;
+
+            BigDogArray_I32 images = database.getImagesDB();
+            for(int i = 0; i < scores.size; i++){
+                BowMatch score = scores.get(i);
+                entryToScore.set(score.identification, -1);
+                score.identification = images.get(score.identification);
+            }
+            BowUtils.filterAndSortMatches(scores, filter == null ? null : entry -> filter.keep(imageIds.get(entry)), limit);
+
+            matches.resize(scores.size);
+            for(int i = 0; i < scores.size; i++){
+                matches.get(i).id = imageIds.get(scores.get(i).identification);
+                matches.get(i).error = scores.get(i).error;
+            }
+            return !matches.isEmpty();
+        }
+
+        // histogram of the nodes the features go through on their way to a leaf, weighted and normalized
+        private void describe(){
+            words.reset();
+            counts.reset();
+            weights.reset();
+            if(nodeToWord.size != tree.nodes.size) nodeToWord.resize(tree.nodes.size, -1);
+
+            for(int i = 0; i < detector.getNumberOfFeatures(); i++){
+                searchPathToLeaf(detector.getDescription(i));
+            }
+            for(int i = 0; i < words.size; i++){
+                nodeToWord.set(words.get(i), -1);
+            }
+            if(words.isEmpty()) return;
+
+            double numWords = words.size;
+            for(int i = 0; i < words.size; i++){
+                double frequency = counts.get(i)/numWords;
+                weights.add((float)(frequency*tree.nodes.get(words.get(i)).weight));
+            }
+            norm.normalize(weights);
+        }
+
+        // HierarchicalVocabularyTree.searchPathToLeaf, with this workspace's copy of the node descriptions
+        private void searchPathToLeaf(TD feature){
+            HierarchicalVocabularyTree.Node node = tree.nodes.get(0);
+            if(node.isLeaf()) return;
+            for(int level = 0; level <= tree.maximumLevel; level++){
+                int best = -1;
+                double bestDistance = Double.MAX_VALUE;
+                for(int i = 0; i < node.childrenIndexes.size; i++){
+                    int child = node.childrenIndexes.get(i);
+                    tree.descriptions.getCopy(tree.nodes.get(child).descIdx, nodeDescription);
+                    double d = distance.distance(feature, nodeDescription);
+                    if(d < bestDistance){
+                        best = child;
+                        bestDistance = d;
+                    }
+                }
+                node = tree.nodes.get(best);
+                countWord(level + 1, node);
+                if(node.isLeaf()) return;
+            }
+            throw new RuntimeException("Invalid tree. Max depth exceeded searching for leaf");
+        }
+
+        private void countWord(int depth, HierarchicalVocabularyTree.Node node){
+            if(depth < database.minimumDepthFromRoot || node.weight <= 0) return;
+            int word = nodeToWord.get(node.index);
+            if(word == -1){
+                word = words.size;
+                nodeToWord.set(node.index, word);
+                words.add(node.index);
+                counts.add(0);
+            }
+            counts.data[word]++;
+        }
+
+        // adds up the error of every database entry that shares a word with the query
+        private void score(){
+            BigDogArray_I32 images = database.getImagesDB();
+            int maxImagesInNode = database.maximumQueryImagesInNode.computeI(images.size);
+            if(entryToScore.size != images.size) entryToScore.resize(images.size, -1);
+
+            for(int i = 0; i < words.size; i++){
+                float weight = weights.get(i);
+                InvertedFile inverted = database.invertedFiles.get(words.get(i));
+                // a word seen in too many images doesn't tell them apart
+                if(inverted.size > maxImagesInNode) continue;
+                for(int j = 0; j < inverted.size; j++){
+                    int entry = inverted.get(j);
+                    BowMatch score;
+                    int index = entryToScore.get(entry);
+                    if(index == -1){
+                        entryToScore.set(entry, scores.size);
+                        score = scores.grow();
+                        score.identification = entry;
+                    }
+                    else {
+                        score = scores.get(index);
+                    }
+                    score.error += norm.distanceUpdate(weight, inverted.weights.get(j));
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,262 @@
+package Navigation;
+
+import boofcv.abst.feature.detdesc.DetectDescribePoint;
+import boofcv.abst.scene.FeatureSceneRecognition;
+import boofcv.abst.scene.SceneRecognition;
+import boofcv.abst.scene.WrapFeatureToSceneRecognition;
+import boofcv.abst.scene.nister2006.FeatureSceneRecognitionNister2006;
+import boofcv.alg.scene.bow.InvertedFile;
+import boofcv.alg.scene.nister2006.RecognitionVocabularyTreeNister2006;
+import boofcv.alg.scene.vocabtree.HierarchicalVocabularyTree;
+import boofcv.factory.struct.FactoryTupleDesc;
+import boofcv.io.recognition.RecognitionIO;
+import boofcv.struct.feature.TupleDesc;
+import boofcv.struct.image.GrayU8;
+import boofcv.struct.kmeans.FactoryTupleCluster;
+import org.ddogleg.struct.BigDogArray_I32;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+
+import static Navigation.FinalVariables.*;
+
+/*
+One vocabulary tree learned from the map, shared by the models of every granularity.
+All the tile grids are cut from the same map so they see the same features, there is no need to learn a tree per grid.
+The tree is learned once from the tiles of VOCABULARY_NUM_TILES, then each granularity only has its own database
+(which tile has which words) on top of it. Adding a granularity is an indexing pass over its tiles.
+The tree is only read once learned, so the models of all granularities can use it at the same time.
+
+Index file layout (big endian):
+    header          magic, version, number of tree nodes it was made for
+    ids             number of tiles, then each id (writeUTF) in the order they were added
+    images          number of values, then the values of the database's image table
+    inverted files  per tree node: number of images, then the image indexes, then their weights
+@yoni
+ */
+public class SharedVocabulary<TD extends TupleDesc<TD>> {
+    private static final int INDEX_MAGIC = 0x54494458; // "TIDX"
+    private static final int INDEX_VERSION = 1;
+
+    // the vocabulary of MAP_LOCATION, learned or loaded on first use
+    private static SharedVocabulary<?> ofMap;
+
+    private final HierarchicalVocabularyTree<TD> tree;
+    private final Class<TD> descriptorType;
+
+    private SharedVocabulary(HierarchicalVocabularyTree<TD> tree, Class<TD> descriptorType){
+        this.tree = tree;
+        this.descriptorType = descriptorType;
+    }
+
+    /*
+    The vocabulary every model of the map uses. Loaded from VOCABULARY_PATH, or learned from the map and saved there
+    if it doesn't exist yet. Models loading at the same time wait for the first one to get it, so it's learned once.
+     */
+    public static synchronized SharedVocabulary<?> ofMap(){
+        if(ofMap != null) return ofMap;
+        Path file = Paths.get(VOCABULARY_PATH);
+        long start = System.currentTimeMillis();
+        if(Files.exists(file)){
+            ofMap = load(file);
+            System.out.println("Loaded vocabulary in " + (System.currentTimeMillis() - start) + " ms");
+            return ofMap;
+        }
+
+        Path storePath = MapToData.tileStorePath(VOCABULARY_NUM_TILES);
+        if(!Files.exists(storePath)){
+            MapToData.splitMapAndSave(VOCABULARY_NUM_TILES);
+        }
+        try(TileStore tiles = TileStore.open(storePath)){
+            ofMap = learn(tiles.readAll(), Runtime.getRuntime().availableProcessors());
+        } catch (IOException e){
+            throw new RuntimeException("failed to read tile store " + storePath, e);
+        }
+        System.out.println("Learned vocabulary from " + VOCABULARY_NUM_TILES + " tiles in " +
+                (System.currentTimeMillis() - start) + " ms");
+        ofMap.save(file);
+        return ofMap;
+    }
+
+    // learns a vocabulary from the images, configured like every model of the map
+    @SuppressWarnings("unchecked")
+    public static SharedVocabulary<?> learn(List<GrayU8> images, int threads){
+        return learn((WrapFeatureToSceneRecognition<GrayU8, ?>)LocationFromMap.createRecognizer(), images, threads);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <TD extends TupleDesc<TD>> SharedVocabulary<TD> learn(
+            WrapFeatureToSceneRecognition<GrayU8, TD> recognizer, List<GrayU8> images, int threads){
+        List<FeatureSceneRecognition.Features<TD>> features = TileFeatures.describeAll(images, threads,
+                () -> ((WrapFeatureToSceneRecognition<GrayU8, TD>)LocationFromMap.createRecognizer()).getDetector());
+        FeatureSceneRecognitionNister2006<TD> model = recognizer.getRecognizer();
+        model.learnModel(features.iterator());
+        return new SharedVocabulary<>(model.getTree(), model.getDescriptorType());
+    }
+
+    public static SharedVocabulary<?> load(Path file){
+        return load((WrapFeatureToSceneRecognition<GrayU8, ?>)LocationFromMap.createRecognizer(), file);
+    }
+
+    private static <TD extends TupleDesc<TD>> SharedVocabulary<TD> load(
+            WrapFeatureToSceneRecognition<GrayU8, TD> recognizer, Path file){
+        DetectDescribePoint<GrayU8, TD> detector = recognizer.getDetector();
+        Class<TD> type = detector.getDescriptionType();
+        int dof = detector.createDescription().size();
+        var tree = new HierarchicalVocabularyTree<>(FactoryTupleCluster.createDistance(type),
+                FactoryTupleDesc.createPackedBig(dof, type));
+        RecognitionIO.loadTreeBin(file.toFile(), tree);
+        return new SharedVocabulary<>(tree, type);
+    }
+
+    public void save(Path file){
+        try {
+            Files.createDirectories(file.toAbsolutePath().getParent());
+        } catch (IOException e){
+            throw new RuntimeException("failed to create directory for " + file, e);
+        }
+        RecognitionIO.saveBin(tree, file.toFile());
+    }
+
+    public HierarchicalVocabularyTree<TD> getTree(){
+        return tree;
+    }
+
+    /*
+    A model with an empty database that uses this vocabulary. Tiles are added with addImage, the vocabulary
+    isn't learned again, so learnModel must not be called on it.
+     */
+    @SuppressWarnings("unchecked")
+    public WrapFeatureToSceneRecognition<GrayU8, TD> createModel(){
+        var recognizer = (WrapFeatureToSceneRecognition<GrayU8, TD>)LocationFromMap.createRecognizer();
+        FeatureSceneRecognitionNister2006<TD> model = recognizer.getRecognizer();
+        if(model.getDescriptorType() != descriptorType)
+            throw new IllegalStateException("vocabulary was learned from " + descriptorType.getSimpleName() +
+                    " but models describe tiles with " + model.getDescriptorType().getSimpleName());
+        // keeps the database the factory configured, only its tree is replaced
+        RecognitionVocabularyTreeNister2006<TD> database = model.getDatabase();
+        database.initializeTree(tree);
+        model.setDatabase(database);
+        return recognizer;
+    }
+
+    /*
+    A model of the given tiles on top of this vocabulary. Features are detected on all cores, then the tiles are
+    added in the given order. names are the tile ids, see LocationFromMap.buildModel.
+     */
+    @SuppressWarnings("unchecked")
+    public SceneRecognition<GrayU8> index(List<String> names, List<GrayU8> tiles, int threads){
+        if(names.size() != tiles.size()) throw new IllegalArgumentException("need one name per tile");
+        WrapFeatureToSceneRecognition<GrayU8, TD> recognizer = createModel();
+        List<FeatureSceneRecognition.Features<TD>> features = TileFeatures.describeAll(tiles, threads,
+                () -> ((WrapFeatureToSceneRecognition<GrayU8, TD>)LocationFromMap.createRecognizer()).getDetector());
+        FeatureSceneRecognition<TD> model = recognizer.getRecognizer();
+        for(int i = 0; i < features.size(); i++){
+            model.addImage(names.get(i), features.get(i));
+        }
+        return recognizer;
+    }
+
+    /*
+    Saves the database of a model made by createModel or index, without the vocabulary. Written next to the
+    target and moved in place, like TileStore.
+     */
+    public void saveIndex(SceneRecognition<GrayU8> recognizer, Path file){
+        FeatureSceneRecognitionNister2006<TD> model = nister(recognizer);
+        RecognitionVocabularyTreeNister2006<TD> database = model.getDatabase();
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try {
+            Files.createDirectories(file.toAbsolutePath().getParent());
+            try(var out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))){
+                out.writeInt(INDEX_MAGIC);
+                out.writeInt(INDEX_VERSION);
+                out.writeInt(tree.nodes.size);
+
+                List<String> ids = model.getImageIds();
+                out.writeInt(ids.size());
+                for(String id : ids){
+                    out.writeUTF(id);
+                }
+
+                BigDogArray_I32 images = database.getImagesDB();
+                out.writeInt(images.size);
+                for(int i = 0; i < images.size; i++){
+                    out.writeInt(images.get(i));
+                }
+
+                for(int node = 0; node < tree.nodes.size; node++){
+                    InvertedFile inverted = database.invertedFiles.get(node);
+                    out.writeInt(inverted.size);
+                    for(int i = 0; i < inverted.size; i++){
+                        out.writeInt(inverted.data[i]);
+                    }
+                    for(int i = 0; i < inverted.size; i++){
+                        out.writeFloat(inverted.weights.data[i]);
+                    }
+                }
+            }
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e){
+            throw new RuntimeException("failed to save index to " + file, e);
+        }
+    }
+
+    // a model with the database saved by saveIndex, on top of this vocabulary
+    public SceneRecognition<GrayU8> loadIndex(Path file){
+        WrapFeatureToSceneRecognition<GrayU8, TD> recognizer = createModel();
+        FeatureSceneRecognitionNister2006<TD> model = recognizer.getRecognizer();
+        RecognitionVocabularyTreeNister2006<TD> database = model.getDatabase();
+        try(var in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))){
+            if(in.readInt() != INDEX_MAGIC) throw new IOException("not an index");
+            int version = in.readInt();
+            if(version != INDEX_VERSION) throw new IOException("unsupported index version " + version);
+            if(in.readInt() != tree.nodes.size)
+                throw new IOException("index was made with a different vocabulary");
+
+            List<String> ids = model.getImageIds();
+            int numIds = in.readInt();
+            for(int i = 0; i < numIds; i++){
+                ids.add(in.readUTF());
+            }
+
+            BigDogArray_I32 images = database.getImagesDB();
+            int numImages = in.readInt();
+            images.reserve(numImages);
+            for(int i = 0; i < numImages; i++){
+                images.append(in.readInt());
+            }
+
+            for(int node = 0; node < tree.nodes.size; node++){
+                InvertedFile inverted = database.invertedFiles.get(node);
+                int size = in.readInt();
+                inverted.resize(size);
+                inverted.weights.resize(size);
+                for(int i = 0; i < size; i++){
+                    inverted.data[i] = in.readInt();
+                }
+                for(int i = 0; i < size; i++){
+                    inverted.weights.data[i] = in.readFloat();
+                }
+            }
+        } catch (IOException e){
+            throw new RuntimeException("failed to load index " + file, e);
+        }
+        return recognizer;
+    }
+
+    @SuppressWarnings("unchecked")
+    private FeatureSceneRecognitionNister2006<TD> nister(SceneRecognition<GrayU8> recognizer){
+        FeatureSceneRecognitionNister2006<TD> model =
+                ((WrapFeatureToSceneRecognition<GrayU8, TD>)recognizer).getRecognizer();
+        if(model.getTree() != tree) throw new IllegalArgumentException("model doesn't use this vocabulary");
+        return model;
+    }
+}
@@ -0,0 +1,334 @@
+package Navigation;
+
+import boofcv.abst.transform.fft.DiscreteFourierTransform;
+import boofcv.alg.filter.misc.AverageDownSampleOps;
+import boofcv.alg.template.TemplateMatchingIntensity;
+import boofcv.alg.transform.fft.DiscreteFourierTransformOps;
+import boofcv.core.image.ConvertImage;
+import boofcv.factory.template.FactoryTemplateMatching;
+import boofcv.factory.template.TemplateScoreType;
+import boofcv.struct.image.GrayF32;
+import boofcv.struct.image.GrayU8;
+import boofcv.struct.image.InterleavedF32;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+Finds where exactly on the map a frame is, once scene recognition said which tile it shows.
+A tile only places the frame to within the tile size. Here the frame and the map around the tile are registered with
+normalized cross correlation (NCC), which gives the position to a fraction of a pixel.
+Frames usually show much more ground than a tile, then the tile is searched for inside the frame. A frame less than
+twice the tile is searched for inside the tile, widened by half the frame and a margin so the frame fits wherever it is.
+The search is coarse to fine on image pyramids: on the coarsest level every placement is scored at once with an FFT
+(normalized with integral images, as in Lewis 1995 "Fast Normalized Cross-Correlation"), then each finer level only
+looks a few pixels around the placement of the level above, with FactoryTemplateMatching's NCC.
+NCC doesn't handle rotation, a frame turned against the map gets a low score and the tile is all there is.
+The map is only read, the pyramids of the regions are kept for the next time the same tile matches.
+mapScale is how many map pixels a frame pixel covers (the map is a frame of the same video, see
+DroneLocation.PREPROCESS_SHRINK). Safe to use from several threads.
+@yoni
+ */
+public class SubTileRefiner {
+    // the coarsest level still has this many pixels on the smaller side of the searched-for image
+    private static final int MIN_COARSE_SIZE = 16;
+    // pixels searched around the placement of the level above
+    private static final int REFINE_RADIUS = 2;
+    public static final int DEFAULT_CACHE_SIZE = 64;
+
+    private final GrayU8 map;
+    private final int mapScale;
+    private final int margin;
+    private final int cacheSize;
+
+    // pyramids of map regions at frame resolution, finest first. least recently used first
+    private final LinkedHashMap<Long, List<GrayF32>> regions;
+    private long hits, misses;
+
+    public SubTileRefiner(GrayU8 map, int mapScale, int margin){
+        this(map, mapScale, margin, DEFAULT_CACHE_SIZE);
+    }
+
+    public SubTileRefiner(GrayU8 map, int mapScale, int margin, int cacheSize){
+        if(mapScale < 1) throw new IllegalArgumentException("map scale must be at least 1");
+        if(margin < 0) throw new IllegalArgumentException("margin can't be negative");
+        if(cacheSize < 1) throw new IllegalArgumentException("cache needs room for at least one region");
+        // region bounds are packed in 16 bits each as the cache key
+        if(map.width > 0xFFFF || map.height > 0xFFFF) throw new IllegalArgumentException("map is too big");
+        this.map = map;
+        this.mapScale = mapScale;
+        this.margin = margin;
+        this.cacheSize = cacheSize;
+        regions = new LinkedHashMap<>(16, 0.75f, true){
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, List<GrayF32>> eldest){
+                return size() > SubTileRefiner.this.cacheSize;
+            }
+        };
+    }
+
+    // where the frame's center is on the map
+    public static class Result {
+        // map pixels
+        public double x, y;
+        // NCC of the frame and the map at that position, 1 is a perfect match
+        public double score;
+
+        @Override
+        public String toString(){
+            return String.format("(%.1f, %.1f) ncc %.2f", x, y, score);
+        }
+    }
+
+    public Result refine(GrayU8 frame, TileIndex tiles, int tile){
+        return refine(frame, tiles.getMinX(tile), tiles.getMinY(tile), tiles.getMaxX(tile), tiles.getMaxY(tile));
+    }
+
+    public Result refine(GrayU8 frame, int minX, int minY, int maxX, int maxY){
+        return refine(ConvertImage.convert(frame, (GrayF32)null), minX, minY, maxX, maxY);
+    }
+
+    /*
+    Registers the frame against the map around the tile (minX, minY) - (maxX, maxY), in map pixels.
+    Returns null if either has no texture to correlate, or if the map around the tile is cut by the map's edge so
+    that neither the frame nor the region fits inside the other.
+     */
+    public Result refine(GrayF32 frame, int minX, int minY, int maxX, int maxY){
+        // the tile was recognized in the frame, so it is in the frame somewhere. A frame at least twice the tile
+        // is searched for the tile, a smaller one is searched for over the tile and far enough around it to hold it
+        int centerX = (minX + maxX)/2, centerY = (minY + maxY)/2;
+        int halfWidth = (maxX - minX)/2, halfHeight = (maxY - minY)/2;
+        int coverWidth = frame.width*mapScale, coverHeight = frame.height*mapScale;
+        if(coverWidth < 4*halfWidth || coverHeight < 4*halfHeight){
+            halfWidth += coverWidth/2 + margin;
+            halfHeight += coverHeight/2 + margin;
+        }
+        int x0 = Math.max(0, centerX - halfWidth), y0 = Math.max(0, centerY - halfHeight);
+        int x1 = Math.min(map.width, centerX + halfWidth), y1 = Math.min(map.height, centerY + halfHeight);
+        if(x1 - x0 < mapScale || y1 - y0 < mapScale) throw new IllegalArgumentException("tile is outside the map");
+
+        List<GrayF32> region = regionPyramid(x0, y0, x1, y1);
+        List<GrayF32> query = new ArrayList<>();
+        query.add(frame);
+
+        // the smaller one is searched for inside the other one
+        boolean regionInFrame = region.get(0).width <= frame.width && region.get(0).height <= frame.height;
+        List<GrayF32> image = regionInFrame ? query : region;
+        List<GrayF32> template = regionInFrame ? region : query;
+        if(template.get(0).width > image.get(0).width || template.get(0).height > image.get(0).height){
+            // the frame is narrower than the region but taller, or the other way around. Happens when the region is
+            // cut by the edge of the map, the part of the frame past the edge isn't known so neither fits the other
+            return null;
+        }
+
+        int levels = 1;
+        while(levels < region.size()
+                && Math.min(template.get(0).width, template.get(0).height) >> levels >= MIN_COARSE_SIZE){
+            levels++;
+        }
+        while(query.size() < levels){
+            query.add(half(query.get(query.size() - 1)));
+        }
+
+        // every placement on the coarsest level, then around the best one on the finer levels
+        int coarsest = levels - 1;
+        double[] best = correlateFFT(image.get(coarsest), template.get(coarsest));
+        if(best == null) return null;
+        for(int level = coarsest - 1; level >= 0; level--){
+            best = correlateAround(image.get(level), template.get(level), 2*(int)best[0], 2*(int)best[1]);
+            if(best == null) return null;
+        }
+
+        Result result = new Result();
+        result.score = best[2];
+        // best is where the template's top left corner is inside the image, in frame pixels
+        if(regionInFrame){
+            result.x = x0 + (frame.width/2.0 - best[0])*mapScale;
+            result.y = y0 + (frame.height/2.0 - best[1])*mapScale;
+        }
+        else {
+            result.x = x0 + (best[0] + frame.width/2.0)*mapScale;
+            result.y = y0 + (best[1] + frame.height/2.0)*mapScale;
+        }
+        return result;
+    }
+
+    // the region of the map shrunk to frame resolution and halved down to MIN_COARSE_SIZE, made once per region
+    private List<GrayF32> regionPyramid(int x0, int y0, int x1, int y1){
+        long key = ((long)x0 << 48) | ((long)y0 << 32) | ((long)x1 << 16) | y1;
+        synchronized(regions){
+            List<GrayF32> pyramid = regions.get(key);
+            if(pyramid != null){
+                hits++;
+                return pyramid;
+            }
+        }
+        GrayF32 full = ConvertImage.convert(map.subimage(x0, y0, x1, y1, null), (GrayF32)null);
+        List<GrayF32> pyramid = new ArrayList<>();
+        if(mapScale == 1){
+            pyramid.add(full);
+        }
+        else {
+            GrayF32 level = new GrayF32(1, 1);
+            AverageDownSampleOps.reshapeDown(level, full.width, full.height, mapScale);
+            AverageDownSampleOps.down(full, mapScale, level);
+            pyramid.add(level);
+        }
+        while(Math.min(pyramid.get(pyramid.size() - 1).width, pyramid.get(pyramid.size() - 1).height) >= 2*MIN_COARSE_SIZE){
+            pyramid.add(half(pyramid.get(pyramid.size() - 1)));
+        }
+        synchronized(regions){
+            misses++;
+            regions.put(key, pyramid);
+        }
+        return pyramid;
+    }
+
+    private static GrayF32 half(GrayF32 image){
+        GrayF32 half = new GrayF32(1, 1);
+        AverageDownSampleOps.reshapeDown(half, image.width, image.height, 2);
+        AverageDownSampleOps.down(image, 2, half);
+        return half;
+    }
+
+    /*
+    NCC of the template at every placement inside the image, through the FFT. Returns the best placement as
+    {x, y, score}, null if the template is flat.
+    With the template's mean taken out its correlation with the image is the numerator of NCC, the window sums of
+    the image and its square give the rest. The image is padded to a power of two, placements that fit inside the
+    image never wrap around so the padding doesn't change them.
+     */
+    private static double[] correlateFFT(GrayF32 image, GrayF32 template){
+        int n = template.width*template.height;
+        double mean = 0;
+        for(int y = 0; y < template.height; y++){
+            for(int x = 0; x < template.width; x++){
+                mean += template.unsafe_get(x, y);
+            }
+        }
+        mean /= n;
+        double templateNorm = 0;
+        int width = DiscreteFourierTransformOps.nextPow2(image.width);
+        int height = DiscreteFourierTransformOps.nextPow2(image.height);
+        GrayF32 paddedTemplate = new GrayF32(width, height);
+        for(int y = 0; y < template.height; y++){
+            for(int x = 0; x < template.width; x++){
+                double value = template.unsafe_get(x, y) - mean;
+                templateNorm += value*value;
+                paddedTemplate.unsafe_set(x, y, (float)value);
+            }
+        }
+        if(templateNorm < 1e-6*n) return null;
+        templateNorm = Math.sqrt(templateNorm);
+
+        GrayF32 paddedImage = new GrayF32(width, height);
+        paddedImage.subimage(0, 0, image.width, image.height, null).setTo(image);
+
+        DiscreteFourierTransform<GrayF32, InterleavedF32> fft = DiscreteFourierTransformOps.createTransformF32();
+        InterleavedF32 imageSpectrum = new InterleavedF32(width, height, 2);
+        InterleavedF32 templateSpectrum = new InterleavedF32(width, height, 2);
+        fft.forward(paddedImage, imageSpectrum);
+        fft.forward(paddedTemplate, templateSpectrum);
+        // correlation is the product with the conjugate
+        for(int i = 1; i < templateSpectrum.data.length; i += 2){
+            templateSpectrum.data[i] = -templateSpectrum.data[i];
+        }
+        DiscreteFourierTransformOps.multiplyComplex(imageSpectrum, templateSpectrum, imageSpectrum);
+        GrayF32 correlation = paddedImage;
+        fft.inverse(imageSpectrum, correlation);
+
+        // integral images of the image and its square, one row and column bigger
+        int stride = image.width + 1;
+        double[] sum = new double[stride*(image.height + 1)];
+        double[] squares = new double[sum.length];
+        for(int y = 0; y < image.height; y++){
+            double rowSum = 0, rowSquares = 0;
+            for(int x = 0; x < image.width; x++){
+                double value = image.unsafe_get(x, y);
+                rowSum += value;
+                rowSquares += value*value;
+                sum[(y + 1)*stride + x + 1] = sum[y*stride + x + 1] + rowSum;
+                squares[(y + 1)*stride + x + 1] = squares[y*stride + x + 1] + rowSquares;
+            }
+        }
+
+        double[] best = null;
+        for(int y = 0; y <= image.height - template.height; y++){
+            for(int x = 0; x <= image.width - template.width; x++){
+                int a = y*stride + x, b = a + template.width;
+                int c = a + template.height*stride, d = c + template.width;
+                double windowSum = sum[d] - sum[b] - sum[c] + sum[a];
+                double windowSquares = squares[d] - squares[b] - squares[c] + squares[a];
+                double variance = windowSquares - windowSum*windowSum/n;
+                if(variance <= 1e-6*n) continue;
+                double score = correlation.unsafe_get(x, y)/(templateNorm*Math.sqrt(variance));
+                if(best == null || score > best[2]) best = new double[]{x, y, score};
+            }
+        }
+        return best;
+    }
+
+    /*
+    NCC of the template placed within REFINE_RADIUS of (x, y) in the image, with sub-pixel accuracy from a parabola
+    through the best score and its neighbours. Returns {x, y, score}, null if nothing could be scored.
+     */
+    private static double[] correlateAround(GrayF32 image, GrayF32 template, int x, int y){
+        // placements that keep the template inside the image
+        int minX = Math.max(0, x - REFINE_RADIUS), maxX = Math.min(image.width - template.width, x + REFINE_RADIUS);
+        int minY = Math.max(0, y - REFINE_RADIUS), maxY = Math.min(image.height - template.height, y + REFINE_RADIUS);
+        if(minX > maxX || minY > maxY) return null;
+        GrayF32 crop = image.subimage(minX, minY, maxX + template.width, maxY + template.height, null);
+
+        TemplateMatchingIntensity<GrayF32> ncc = FactoryTemplateMatching.createIntensity(TemplateScoreType.NCC, GrayF32.class);
+        ncc.setInputImage(crop);
+        ncc.process(template);
+        GrayF32 intensity = ncc.getIntensity();
+        // the score of placing the template's top left at (u, v) of the crop is at (u + border x0, v + border y0)
+        int borderX = ncc.getBorderX0(), borderY = ncc.getBorderY0();
+
+        int bestU = -1, bestV = -1;
+        float bestScore = -Float.MAX_VALUE;
+        for(int v = 0; v <= maxY - minY; v++){
+            for(int u = 0; u <= maxX - minX; u++){
+                float score = intensity.get(u + borderX, v + borderY);
+                if(score > bestScore){
+                    bestScore = score;
+                    bestU = u;
+                    bestV = v;
+                }
+            }
+        }
+        if(bestU < 0 || Float.isNaN(bestScore)) return null;
+
+        double offsetX = 0, offsetY = 0;
+        if(bestU > 0 && bestU < maxX - minX){
+            offsetX = peakOffset(intensity.get(bestU - 1 + borderX, bestV + borderY), bestScore,
+                    intensity.get(bestU + 1 + borderX, bestV + borderY));
+        }
+        if(bestV > 0 && bestV < maxY - minY){
+            offsetY = peakOffset(intensity.get(bestU + borderX, bestV - 1 + borderY), bestScore,
+                    intensity.get(bestU + borderX, bestV + 1 + borderY));
+        }
+        return new double[]{minX + bestU + offsetX, minY + bestV + offsetY, bestScore};
+    }
+
+    // vertex of the parabola through three equally spaced scores, relative to the middle one
+    private static double peakOffset(double before, double peak, double after){
+        double curvature = before - 2*peak + after;
+        if(curvature >= 0) return 0;
+        return Math.max(-0.5, Math.min(0.5, 0.5*(before - after)/curvature));
+    }
+
+    public int getMapScale(){
+        return mapScale;
+    }
+
+    @Override
+    public String toString(){
+        synchronized(regions){
+            return String.format("sub-tile refiner[%d regions cached, %d hits, %d misses]", regions.size(), hits, misses);
+        }
+    }
+}
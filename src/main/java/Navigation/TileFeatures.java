@@ -0,0 +1,105 @@
+package Navigation;
+
+import boofcv.abst.feature.detdesc.DetectDescribePoint;
+import boofcv.abst.scene.FeatureSceneRecognition;
+import boofcv.alg.descriptor.UtilFeature;
+import boofcv.struct.feature.TupleDesc;
+import boofcv.struct.image.GrayU8;
+import georegression.struct.point.Point2D_F64;
+import org.ddogleg.struct.DogArray;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/*
+Keypoints and descriptions of one map tile, detected ahead of time so a model can be learned and filled
+from them without running the detector again.
+describeAll runs the detection on several threads. Detectors aren't thread safe so every worker gets its own,
+and since each tile is described on its own the result is the same as describing them one after another.
+@yoni
+ */
+public class TileFeatures<TD extends TupleDesc<TD>> implements FeatureSceneRecognition.Features<TD> {
+    private final DogArray<Point2D_F64> points = new DogArray<>(Point2D_F64::new);
+    private final DogArray<TD> descriptions;
+
+    public TileFeatures(DetectDescribePoint<GrayU8, TD> detector, GrayU8 tile){
+        detector.detect(tile);
+        int n = detector.getNumberOfFeatures();
+        descriptions = UtilFeature.createArray(detector, n);
+        for(int i = 0; i < n; i++){
+            points.grow().setTo(detector.getLocation(i));
+            descriptions.grow().setTo(detector.getDescription(i));
+        }
+    }
+
+    @Override
+    public Point2D_F64 getPixel(int index){
+        return points.get(index);
+    }
+
+    @Override
+    public TD getDescription(int index){
+        return descriptions.get(index);
+    }
+
+    @Override
+    public int size(){
+        return points.size;
+    }
+
+    /*
+    Describes every tile, the result is in the same order as tiles.
+    detectors is called once per worker thread and must return a new detector configured like the model's.
+     */
+    public static <TD extends TupleDesc<TD>> List<FeatureSceneRecognition.Features<TD>> describeAll(
+            List<GrayU8> tiles, int threads, Supplier<DetectDescribePoint<GrayU8, TD>> detectors){
+        if(threads < 1) throw new IllegalArgumentException("need at least one thread");
+        int n = tiles.size();
+        threads = Math.min(threads, Math.max(1, n));
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        FeatureSceneRecognition.Features<TD>[] features = new FeatureSceneRecognition.Features[n];
+
+        // workers take the next tile that wasn't taken yet, so a slow tile doesn't hold up a whole chunk
+        AtomicInteger next = new AtomicInteger();
+        Runnable worker = () -> {
+            DetectDescribePoint<GrayU8, TD> detector = detectors.get();
+            for(int i = next.getAndIncrement(); i < n; i = next.getAndIncrement()){
+                features[i] = new TileFeatures<>(detector, tiles.get(i));
+            }
+        };
+
+        if(threads == 1){
+            worker.run();
+        }
+        else {
+            ExecutorService pool = Executors.newFixedThreadPool(threads, r -> {
+                Thread t = new Thread(r, "describe-tiles");
+                t.setDaemon(true);
+                return t;
+            });
+            try {
+                List<Future<?>> running = new ArrayList<>();
+                for(int i = 0; i < threads; i++){
+                    running.add(pool.submit(worker));
+                }
+                for(Future<?> f : running){
+                    f.get();
+                }
+            } catch (InterruptedException e){
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("interrupted while describing tiles", e);
+            } catch (ExecutionException e){
+                throw new RuntimeException("failed to describe tiles", e.getCause());
+            } finally {
+                pool.shutdownNow();
+            }
+        }
+        return List.of(features);
+    }
+}
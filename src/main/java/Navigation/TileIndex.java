@@ -0,0 +1,168 @@
+package Navigation;
+
+import org.bridj.util.Pair;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+/*
+Index of the map tiles in a model, built once when the model is loaded.
+Tile names are parsed a single time into primitive arrays, after that finding the tile under a point
+and checking whether two tiles are neighbours is a few array reads and doesn't allocate.
+Tiles are referred to by their position in the index.
+@yoni
+ */
+public class TileIndex {
+    private final String[] ids;
+    // grid position from the tile name (see MapToData.tileCoordinatesToName)
+    private final int[] rows;
+    private final int[] cols;
+    // pixel bounds on the map, 4 values per tile: top left x,y then bottom right x,y
+    private final int[] bounds;
+    private final HashMap<String, Integer> idToTile = new HashMap<>();
+
+    // tiles are laid on a regular grid of equal size cells, cellToTile maps a cell to the tile covering it
+    private final int originX, originY;
+    private final int tileWidth, tileHeight;
+    private final int cellsX, cellsY;
+    private final int[] cellToTile;
+
+    private TileIndex(List<String> names){
+        int n = names.size();
+        if(n == 0) throw new IllegalArgumentException("no tiles to index");
+        ids = names.toArray(new String[0]);
+        rows = new int[n];
+        cols = new int[n];
+        bounds = new int[4*n];
+
+        int minX = Integer.MAX_VALUE, minY = Integer.MAX_VALUE;
+        int maxX = Integer.MIN_VALUE, maxY = Integer.MIN_VALUE;
+        for(int i = 0; i < n; i++){
+            Pair<Integer,Integer> rowCol = MapToData.tileNameToRowCol(ids[i]);
+            rows[i] = rowCol.getFirst();
+            cols[i] = rowCol.getSecond();
+            Pair<Pair<Integer,Integer>,Pair<Integer,Integer>> corners = MapToData.tileNameToCoordinate(ids[i]);
+            bounds[4*i] = Math.min(corners.getFirst().getFirst(), corners.getSecond().getFirst());
+            bounds[4*i+1] = Math.min(corners.getFirst().getSecond(), corners.getSecond().getSecond());
+            bounds[4*i+2] = Math.max(corners.getFirst().getFirst(), corners.getSecond().getFirst());
+            bounds[4*i+3] = Math.max(corners.getFirst().getSecond(), corners.getSecond().getSecond());
+            minX = Math.min(minX, bounds[4*i]); minY = Math.min(minY, bounds[4*i+1]);
+            maxX = Math.max(maxX, bounds[4*i+2]); maxY = Math.max(maxY, bounds[4*i+3]);
+            if(idToTile.put(ids[i], i) != null) throw new IllegalArgumentException("duplicate tile " + ids[i]);
+        }
+
+        originX = minX; originY = minY;
+        tileWidth = Math.max(1, bounds[2] - bounds[0]);
+        tileHeight = Math.max(1, bounds[3] - bounds[1]);
+        cellsX = (maxX - minX + tileWidth - 1)/tileWidth;
+        cellsY = (maxY - minY + tileHeight - 1)/tileHeight;
+        cellToTile = new int[cellsX*cellsY];
+        Arrays.fill(cellToTile, -1);
+        for(int i = 0; i < n; i++){
+            if(bounds[4*i+2] - bounds[4*i] != tileWidth || bounds[4*i+3] - bounds[4*i+1] != tileHeight){
+                throw new IllegalArgumentException("tiles must all have the same size, " + ids[i] + " doesn't");
+            }
+            int cx = (bounds[4*i] - originX)/tileWidth;
+            int cy = (bounds[4*i+1] - originY)/tileHeight;
+            cellToTile[cy*cellsX + cx] = i;
+        }
+    }
+
+    public static TileIndex build(List<String> tileNames){
+        return new TileIndex(tileNames);
+    }
+
+    public int size(){
+        return ids.length;
+    }
+
+    // index of the tile with this id, -1 if it isn't in the model
+    public int findTile(String id){
+        Integer tile = idToTile.get(id);
+        return tile == null ? -1 : tile;
+    }
+
+    // index of the tile the point falls in, -1 if it's outside the tiled part of the map
+    public int tileContainingPoint(int x, int y){
+        if(x < originX || y < originY) return -1;
+        int cx = (x - originX)/tileWidth;
+        int cy = (y - originY)/tileHeight;
+        if(cx >= cellsX || cy >= cellsY) return -1;
+        return cellToTile[cy*cellsX + cx];
+    }
+
+    // x moved inside the tiled part of the map, if it's outside
+    public int clampX(int x){
+        return Math.max(originX, Math.min(x, originX + cellsX*tileWidth - 1));
+    }
+
+    public int clampY(int y){
+        return Math.max(originY, Math.min(y, originY + cellsY*tileHeight - 1));
+    }
+
+    // true for the tile itself and the 8 tiles around it
+    public boolean isEqualOrNear(int tileA, int tileB){
+        return Math.abs(rows[tileA] - rows[tileB]) <= 1 && Math.abs(cols[tileA] - cols[tileB]) <= 1;
+    }
+
+    public boolean isEqualOrNear(int tile, String otherId){
+        int other = findTile(otherId);
+        return other >= 0 && isEqualOrNear(tile, other);
+    }
+
+    /*
+    Writes the tiles around the given one (not including it) into output, returns how many were written.
+    output must have room for 8.
+     */
+    public int neighbours(int tile, int[] output){
+        int count = 0;
+        int cx = (bounds[4*tile] - originX)/tileWidth;
+        int cy = (bounds[4*tile+1] - originY)/tileHeight;
+        for(int y = Math.max(0, cy - 1); y <= Math.min(cellsY - 1, cy + 1); y++){
+            for(int x = Math.max(0, cx - 1); x <= Math.min(cellsX - 1, cx + 1); x++){
+                int other = cellToTile[y*cellsX + x];
+                if(other >= 0 && other != tile){
+                    output[count++] = other;
+                }
+            }
+        }
+        return count;
+    }
+
+    public String getId(int tile){
+        return ids[tile];
+    }
+
+    public int getRow(int tile){
+        return rows[tile];
+    }
+
+    public int getCol(int tile){
+        return cols[tile];
+    }
+
+    public int getMinX(int tile){
+        return bounds[4*tile];
+    }
+
+    public int getMinY(int tile){
+        return bounds[4*tile+1];
+    }
+
+    public int getMaxX(int tile){
+        return bounds[4*tile+2];
+    }
+
+    public int getMaxY(int tile){
+        return bounds[4*tile+3];
+    }
+
+    public int getTileWidth(){
+        return tileWidth;
+    }
+
+    public int getTileHeight(){
+        return tileHeight;
+    }
+}
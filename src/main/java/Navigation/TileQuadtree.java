@@ -0,0 +1,544 @@
+package Navigation;
+
+import boofcv.abst.feature.detdesc.DetectDescribePoint;
+import boofcv.abst.scene.FeatureSceneRecognition;
+import boofcv.abst.scene.WrapFeatureToSceneRecognition;
+import boofcv.abst.scene.nister2006.FeatureSceneRecognitionNister2006;
+import boofcv.alg.scene.vocabtree.HierarchicalVocabularyTree;
+import boofcv.struct.feature.TupleDesc;
+import boofcv.struct.image.GrayU8;
+import org.ddogleg.clustering.PointDistance;
+import org.ddogleg.struct.DogArray_I32;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static Navigation.FinalVariables.*;
+
+/*
+Quadtree of overlapping tiles over the map, searched from coarse to fine, so finding a frame costs about the same
+on a city as on a single frame, instead of growing with the number of tiles.
+The root is the smallest square of leafSize*2^k that holds the map, every level below halves the tile side.
+Tiles of a level are half a tile apart, so they overlap and a frame is whole in at least one of them, and a tile's
+children are the 9 tiles of the next level inside it. Tiles with no map under them are left out, tiles that stick
+out of the map are cut to it.
+Tiles are bags of words over the shared vocabulary (SharedVocabulary), weighted and compared like the models of the
+granularities (Nister 2006 with the L1 norm), so errors of both can be ranked together. Only the leaves are described
+from their pixels, a bigger tile's words are the sum of its 4 corner children's, which cover it exactly.
+A query describes the frame once, scores the root and then only the children of the beamWidth best tiles of each
+level. That's at most 9*beamWidth comparisons a level, and the number of levels grows with the log of the map's side.
+The tree is only read once it is built, any number of threads can query it at once. Each query borrows a workspace
+with its own detector and scratch arrays, like SceneQueryPool, and gives it back when done.
+
+File layout (big endian):
+    header  magic, version, number of vocabulary nodes, map width, map height, leaf size
+    leaves  number of leaves, then per leaf (row by row) number of words, the words, then their weights
+@yoni
+ */
+public class TileQuadtree<TD extends TupleDesc<TD>> {
+    private static final int MAGIC = 0x51545245; // "QTRE"
+    private static final int VERSION = 1;
+    public static final int DEFAULT_LEAF_SIZE = 80;
+    public static final int DEFAULT_BEAM_WIDTH = 3;
+
+    // the quadtree of MAP_LOCATION, built or loaded on first use
+    private static CompletableFuture<TileQuadtree<?>> ofMap;
+
+    private final SharedVocabulary<TD> vocabulary;
+    private final HierarchicalVocabularyTree<TD> tree;
+    private final int minimumDepth;
+    private final int mapWidth, mapHeight;
+    private final int leafSize;
+    private final int levels;
+    // per level: tile side, and how many tiles there are along x and y
+    private final int[] sizes, cols, rows;
+    // index of the first tile of each level, tiles are numbered level by level, row by row
+    private final int[] firstTile;
+    // normalized bag of words of every tile: the vocabulary nodes, sorted, and their weights
+    private final int[][] words;
+    private final float[][] weights;
+
+    private volatile int beamWidth = DEFAULT_BEAM_WIDTH;
+    private final Queue<Workspace> idle = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger workspacesCreated = new AtomicInteger();
+    private final AtomicLong queries = new AtomicLong();
+    private final AtomicLong tilesScored = new AtomicLong();
+
+    private TileQuadtree(SharedVocabulary<TD> vocabulary, int mapWidth, int mapHeight, int leafSize){
+        if(leafSize < 16 || leafSize % 2 != 0) throw new IllegalArgumentException("leaf size must be even and at least 16");
+        if(mapWidth < 1 || mapHeight < 1) throw new IllegalArgumentException("map is empty");
+        this.vocabulary = vocabulary;
+        tree = vocabulary.getTree();
+        // the frame is described and its words are weighted like the models do it
+        FeatureSceneRecognitionNister2006<TD> model = TileQuadtree.<TD>newRecognizer().getRecognizer();
+        minimumDepth = model.getConfig().minimumDepthFromRoot;
+        this.mapWidth = mapWidth;
+        this.mapHeight = mapHeight;
+        this.leafSize = leafSize;
+
+        int k = 0;
+        while((long)leafSize << k < Math.max(mapWidth, mapHeight)) k++;
+        levels = k + 1;
+        sizes = new int[levels];
+        cols = new int[levels];
+        rows = new int[levels];
+        firstTile = new int[levels + 1];
+        for(int level = 0; level < levels; level++){
+            sizes[level] = leafSize << (k - level);
+            int stride = sizes[level]/2;
+            // 2^(level+1) - 1 tiles fit in the root, the ones starting past the map are left out
+            cols[level] = Math.min((1 << (level + 1)) - 1, (mapWidth + stride - 1)/stride);
+            rows[level] = Math.min((1 << (level + 1)) - 1, (mapHeight + stride - 1)/stride);
+            firstTile[level + 1] = firstTile[level] + cols[level]*rows[level];
+        }
+        words = new int[firstTile[levels]][];
+        weights = new float[firstTile[levels]][];
+    }
+
+    // a recognizer configured like the models', for its detector and its settings
+    @SuppressWarnings("unchecked")
+    private static <TD extends TupleDesc<TD>> WrapFeatureToSceneRecognition<GrayU8, TD> newRecognizer(){
+        return (WrapFeatureToSceneRecognition<GrayU8, TD>)LocationFromMap.createRecognizer();
+    }
+
+    /*
+    The quadtree every localization of the map uses. Loaded from QUADTREE_PATH, or built from the map and saved there
+    if it doesn't exist yet. Loads in the background, the future is shared by everyone asking for it.
+     */
+    public static synchronized CompletableFuture<TileQuadtree<?>> ofMapAsync(){
+        if(ofMap != null) return ofMap;
+        CompletableFuture<TileQuadtree<?>> loading = CompletableFuture.<TileQuadtree<?>>supplyAsync(() -> {
+            long start = System.currentTimeMillis();
+            Path file = Paths.get(QUADTREE_PATH);
+            TileQuadtree<?> quadtree;
+            if(Files.exists(file)){
+                quadtree = load(SharedVocabulary.ofMap(), file);
+            }
+            else {
+                quadtree = build(SharedVocabulary.ofMap(), MapToData.loadMapGray(), DEFAULT_LEAF_SIZE,
+                        Runtime.getRuntime().availableProcessors());
+                quadtree.save(file);
+            }
+            System.out.println("Quadtree ready in " + (System.currentTimeMillis() - start) + " ms, " + quadtree);
+            return quadtree;
+        });
+        ofMap = loading;
+        loading.whenComplete((quadtree, e) -> {
+            if(e == null) return;
+            System.err.println("Quadtree failed to load: " + e.getCause());
+            // the next one asking tries again instead of getting the same failure
+            forget(loading);
+        });
+        return loading;
+    }
+
+    private static synchronized void forget(CompletableFuture<TileQuadtree<?>> loading){
+        if(ofMap == loading) ofMap = null;
+    }
+
+    /*
+    Cuts the map into the leaves and describes them on the given number of threads.
+     */
+    public static <TD extends TupleDesc<TD>> TileQuadtree<TD> build(SharedVocabulary<TD> vocabulary, GrayU8 map,
+                                                                     int leafSize, int threads){
+        TileQuadtree<TD> quadtree = new TileQuadtree<>(vocabulary, map.width, map.height, leafSize);
+        int leaves = quadtree.levels - 1;
+        List<GrayU8> images = new ArrayList<>();
+        for(int tile = quadtree.firstTile[leaves]; tile < quadtree.firstTile[leaves + 1]; tile++){
+            images.add(map.subimage(quadtree.getMinX(tile), quadtree.getMinY(tile),
+                    quadtree.getMaxX(tile), quadtree.getMaxY(tile), null));
+        }
+        List<FeatureSceneRecognition.Features<TD>> features = TileFeatures.describeAll(images, threads,
+                () -> TileQuadtree.<TD>newRecognizer().getDetector());
+        TileQuadtree<TD>.Workspace workspace = quadtree.borrow();
+        for(int i = 0; i < features.size(); i++){
+            quadtree.describe(workspace, features.get(i), quadtree.firstTile[leaves] + i);
+        }
+        quadtree.sumLevels(workspace);
+        quadtree.idle.offer(workspace);
+        return quadtree;
+    }
+
+    public static TileQuadtree<?> load(SharedVocabulary<?> vocabulary, Path file){
+        return loadTyped(vocabulary, file);
+    }
+
+    private static <TD extends TupleDesc<TD>> TileQuadtree<TD> loadTyped(SharedVocabulary<TD> vocabulary, Path file){
+        try(var in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))){
+            if(in.readInt() != MAGIC) throw new IOException("not a quadtree");
+            int version = in.readInt();
+            if(version != VERSION) throw new IOException("unsupported quadtree version " + version);
+            if(in.readInt() != vocabulary.getTree().nodes.size)
+                throw new IOException("quadtree was made with a different vocabulary");
+            TileQuadtree<TD> quadtree = new TileQuadtree<>(vocabulary, in.readInt(), in.readInt(), in.readInt());
+            int leaves = quadtree.levels - 1;
+            int count = in.readInt();
+            if(count != quadtree.firstTile[leaves + 1] - quadtree.firstTile[leaves])
+                throw new IOException("quadtree has " + count + " leaves, its map needs a different number");
+            for(int tile = quadtree.firstTile[leaves]; tile < quadtree.firstTile[leaves + 1]; tile++){
+                int n = in.readInt();
+                quadtree.words[tile] = new int[n];
+                quadtree.weights[tile] = new float[n];
+                for(int i = 0; i < n; i++){
+                    quadtree.words[tile][i] = in.readInt();
+                }
+                for(int i = 0; i < n; i++){
+                    quadtree.weights[tile][i] = in.readFloat();
+                }
+            }
+            TileQuadtree<TD>.Workspace workspace = quadtree.borrow();
+            quadtree.sumLevels(workspace);
+            quadtree.idle.offer(workspace);
+            return quadtree;
+        } catch (IOException e){
+            throw new RuntimeException("failed to load quadtree " + file, e);
+        }
+    }
+
+    /*
+    Saves the words of the leaves, the other levels are summed again when it's loaded. Written next to the target
+    and moved in place, like TileStore.
+     */
+    public void save(Path file){
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        int leaves = levels - 1;
+        try {
+            Files.createDirectories(file.toAbsolutePath().getParent());
+            try(var out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))){
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(vocabulary.getTree().nodes.size);
+                out.writeInt(mapWidth);
+                out.writeInt(mapHeight);
+                out.writeInt(leafSize);
+                out.writeInt(firstTile[leaves + 1] - firstTile[leaves]);
+                for(int tile = firstTile[leaves]; tile < firstTile[leaves + 1]; tile++){
+                    // leaves are still normalized on their own, their sum is made from these
+                    out.writeInt(words[tile].length);
+                    for(int word : words[tile]){
+                        out.writeInt(word);
+                    }
+                    for(float weight : weights[tile]){
+                        out.writeFloat(weight);
+                    }
+                }
+            }
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e){
+            throw new RuntimeException("failed to save quadtree to " + file, e);
+        }
+    }
+
+    // a tile that was found, its bounds in map pixels
+    public static class Match {
+        public final int tile, level;
+        public final int minX, minY, maxX, maxY;
+        // same scale as SceneRecognition.Match.error, 0 is the same words and 2 nothing in common
+        public final double error;
+
+        Match(TileQuadtree<?> quadtree, int tile, double error){
+            this.tile = tile;
+            this.level = quadtree.getLevel(tile);
+            this.minX = quadtree.getMinX(tile);
+            this.minY = quadtree.getMinY(tile);
+            this.maxX = quadtree.getMaxX(tile);
+            this.maxY = quadtree.getMaxY(tile);
+            this.error = error;
+        }
+
+        @Override
+        public String toString(){
+            return String.format("level %d (%d,%d)-(%d,%d) error %.3f", level, minX, minY, maxX, maxY, error);
+        }
+    }
+
+    public List<Match> query(GrayU8 image, int limit){
+        return query(image, 0, 0, mapWidth, mapHeight, limit);
+    }
+
+    /*
+    Best tiles for the image, lowest error first, out of the tiles the search went through. Only tiles that overlap
+    the window (minX, minY) - (maxX, maxY) are looked at. Safe to call from several threads.
+     */
+    public List<Match> query(GrayU8 image, int minX, int minY, int maxX, int maxY, int limit){
+        Workspace workspace = borrow();
+        boolean completed = false;
+        try {
+            List<Match> matches = query(workspace, image, minX, minY, maxX, maxY, limit);
+            completed = true;
+            return matches;
+        } finally {
+            // a query that threw may have left its scratch dirty, only a completed one gives its workspace back
+            if(completed) idle.offer(workspace);
+        }
+    }
+
+    private List<Match> query(Workspace workspace, GrayU8 image, int minX, int minY, int maxX, int maxY, int limit){
+        TileFeatures<TD> features = new TileFeatures<>(workspace.detector, image);
+        if(features.size() == 0) return List.of();
+        int[] queryWords = bagOfWords(workspace, features);
+        float[] queryWeights = takeWeights(workspace, queryWords);
+        normalize(queryWeights);
+
+        int query = ++workspace.queryCount;
+        int[] marks = workspace.marks;
+        int beamWidth = this.beamWidth;
+        List<Match> scored = new ArrayList<>();
+        List<Match> level = new ArrayList<>();
+        if(overlaps(0, minX, minY, maxX, maxY)) level.add(score(0, queryWords, queryWeights));
+        while(!level.isEmpty()){
+            scored.addAll(level);
+            level.sort((a, b) -> Double.compare(a.error, b.error));
+            List<Match> next = new ArrayList<>();
+            for(int i = 0; i < Math.min(beamWidth, level.size()); i++){
+                int parent = level.get(i).tile;
+                int l = getLevel(parent);
+                if(l == levels - 1) break;
+                int col = (parent - firstTile[l]) % cols[l];
+                int row = (parent - firstTile[l]) / cols[l];
+                // children start at 2*col, 2*col + 1 and 2*col + 2 of the next level
+                for(int y = 2*row; y <= Math.min(2*row + 2, rows[l + 1] - 1); y++){
+                    for(int x = 2*col; x <= Math.min(2*col + 2, cols[l + 1] - 1); x++){
+                        int child = firstTile[l + 1] + y*cols[l + 1] + x;
+                        if(marks[child] == query || !overlaps(child, minX, minY, maxX, maxY)) continue;
+                        marks[child] = query;
+                        next.add(score(child, queryWords, queryWeights));
+                    }
+                }
+            }
+            level = next;
+        }
+        queries.incrementAndGet();
+        tilesScored.addAndGet(scored.size());
+        scored.sort((a, b) -> Double.compare(a.error, b.error));
+        return List.copyOf(scored.subList(0, Math.min(limit, scored.size())));
+    }
+
+    private Workspace borrow(){
+        Workspace workspace = idle.poll();
+        if(workspace == null){
+            workspace = new Workspace();
+            workspacesCreated.incrementAndGet();
+        }
+        return workspace;
+    }
+
+    private Match score(int tile, int[] queryWords, float[] queryWeights){
+        int[] tileWords = words[tile];
+        float[] tileWeights = weights[tile];
+        // L1 distance of two normalized vectors is 2 minus twice the weight they have in common
+        double common = 0;
+        for(int i = 0, j = 0; i < queryWords.length && j < tileWords.length; ){
+            if(queryWords[i] < tileWords[j]) i++;
+            else if(queryWords[i] > tileWords[j]) j++;
+            else common += Math.min(queryWeights[i++], tileWeights[j++]);
+        }
+        return new Match(this, tile, 2 - 2*common);
+    }
+
+    // tf-idf of the features into the workspace's wordWeights, returns the words that got weight, sorted
+    private int[] bagOfWords(Workspace workspace, FeatureSceneRecognition.Features<TD> features){
+        workspace.touched.reset();
+        for(int i = 0; i < features.size(); i++){
+            searchPathToLeaf(workspace, features.getDescription(i));
+        }
+        int[] found = workspace.touched.toArray();
+        Arrays.sort(found);
+        return found;
+    }
+
+    /*
+    HierarchicalVocabularyTree.searchPathToLeaf, which reads the node descriptions through a temporary shared by
+    everyone using the tree, with the workspace's own copy instead.
+     */
+    private void searchPathToLeaf(Workspace workspace, TD feature){
+        HierarchicalVocabularyTree.Node node = tree.nodes.get(0);
+        if(node.isLeaf()) return;
+        for(int level = 0; level <= tree.maximumLevel; level++){
+            int best = -1;
+            double bestDistance = Double.MAX_VALUE;
+            for(int i = 0; i < node.childrenIndexes.size; i++){
+                int child = node.childrenIndexes.get(i);
+                tree.descriptions.getCopy(tree.nodes.get(child).descIdx, workspace.nodeDescription);
+                double d = workspace.distance.distance(feature, workspace.nodeDescription);
+                if(d < bestDistance){
+                    best = child;
+                    bestDistance = d;
+                }
+            }
+            node = tree.nodes.get(best);
+            if(level + 1 >= minimumDepth && node.weight > 0){
+                if(workspace.wordWeights[node.index] == 0) workspace.touched.add(node.index);
+                workspace.wordWeights[node.index] += (float)node.weight;
+            }
+            if(node.isLeaf()) return;
+        }
+        throw new RuntimeException("Invalid tree. Max depth exceeded searching for leaf");
+    }
+
+    // the weights of the words, and clears them from the workspace for the next one
+    private float[] takeWeights(Workspace workspace, int[] words){
+        float[] taken = new float[words.length];
+        for(int i = 0; i < words.length; i++){
+            taken[i] = workspace.wordWeights[words[i]];
+            workspace.wordWeights[words[i]] = 0;
+        }
+        return taken;
+    }
+
+    private void describe(Workspace workspace, FeatureSceneRecognition.Features<TD> features, int tile){
+        int[] tileWords = bagOfWords(workspace, features);
+        float[] tileWeights = takeWeights(workspace, tileWords);
+        normalize(tileWeights);
+        words[tile] = tileWords;
+        weights[tile] = tileWeights;
+    }
+
+    /*
+    Every tile above the leaves is the sum of its corner children, which are the sums of theirs, down to the leaves.
+    Leaves count by their area on the map, so a leaf cut short by the edge of the map counts less.
+     */
+    private void sumLevels(Workspace workspace){
+        float[] wordWeights = workspace.wordWeights;
+        DogArray_I32 touched = workspace.touched;
+        float[][] sums = new float[firstTile[levels]][];
+        int leaves = levels - 1;
+        for(int tile = firstTile[leaves]; tile < firstTile[leaves + 1]; tile++){
+            float area = (getMaxX(tile) - getMinX(tile))*(getMaxY(tile) - getMinY(tile));
+            sums[tile] = new float[weights[tile].length];
+            for(int i = 0; i < weights[tile].length; i++){
+                sums[tile][i] = weights[tile][i]*area;
+            }
+        }
+        for(int l = leaves - 1; l >= 0; l--){
+            for(int row = 0; row < rows[l]; row++){
+                for(int col = 0; col < cols[l]; col++){
+                    int tile = firstTile[l] + row*cols[l] + col;
+                    touched.reset();
+                    for(int y = 2*row; y <= 2*row + 2 && y < rows[l + 1]; y += 2){
+                        for(int x = 2*col; x <= 2*col + 2 && x < cols[l + 1]; x += 2){
+                            int child = firstTile[l + 1] + y*cols[l + 1] + x;
+                            for(int i = 0; i < words[child].length; i++){
+                                int word = words[child][i];
+                                if(wordWeights[word] == 0) touched.add(word);
+                                wordWeights[word] += sums[child][i];
+                            }
+                        }
+                    }
+                    int[] tileWords = touched.toArray();
+                    Arrays.sort(tileWords);
+                    float[] tileSums = takeWeights(workspace, tileWords);
+                    words[tile] = tileWords;
+                    sums[tile] = tileSums;
+                    weights[tile] = tileSums.clone();
+                    normalize(weights[tile]);
+                }
+            }
+        }
+    }
+
+    private static void normalize(float[] values){
+        double sum = 0;
+        for(float value : values){
+            sum += value;
+        }
+        if(sum == 0) return;
+        for(int i = 0; i < values.length; i++){
+            values[i] = (float)(values[i]/sum);
+        }
+    }
+
+    private boolean overlaps(int tile, int minX, int minY, int maxX, int maxY){
+        return getMinX(tile) < maxX && getMaxX(tile) > minX && getMinY(tile) < maxY && getMaxY(tile) > minY;
+    }
+
+    // tiles the least promising ones are dropped at, more finds more but scores more tiles
+    public void setBeamWidth(int beamWidth){
+        if(beamWidth < 1) throw new IllegalArgumentException("beam width must be at least 1");
+        this.beamWidth = beamWidth;
+    }
+
+    // tiles compared with a frame, on average over every query so far
+    public double getAverageTilesScored(){
+        long n = queries.get();
+        return n == 0 ? 0 : tilesScored.get()/(double)n;
+    }
+
+    // number of workspaces made so far, the most queries that ran at the same time
+    public int getWorkspacesCreated(){
+        return workspacesCreated.get();
+    }
+
+    public int getNumLevels(){
+        return levels;
+    }
+
+    public int getNumTiles(){
+        return firstTile[levels];
+    }
+
+    public int getLevel(int tile){
+        int level = 0;
+        while(tile >= firstTile[level + 1]) level++;
+        return level;
+    }
+
+    // side of the tiles of a level before they are cut to the map
+    public int getTileSize(int level){
+        return sizes[level];
+    }
+
+    public int getMinX(int tile){
+        int level = getLevel(tile);
+        return (tile - firstTile[level]) % cols[level] * (sizes[level]/2);
+    }
+
+    public int getMinY(int tile){
+        int level = getLevel(tile);
+        return (tile - firstTile[level]) / cols[level] * (sizes[level]/2);
+    }
+
+    public int getMaxX(int tile){
+        return Math.min(mapWidth, getMinX(tile) + sizes[getLevel(tile)]);
+    }
+
+    public int getMaxY(int tile){
+        return Math.min(mapHeight, getMinY(tile) + sizes[getLevel(tile)]);
+    }
+
+    @Override
+    public String toString(){
+        return String.format("quadtree[map %dx%d, %d levels from %d to %d px, %d tiles, %d queries scoring %.1f tiles]",
+                mapWidth, mapHeight, levels, sizes[0], leafSize, getNumTiles(), queries.get(), getAverageTilesScored());
+    }
+
+    /*
+    What a single query writes to. marks hold the workspace's query that last scored a tile, so a tile shared by two
+    parents is scored once, wordWeights are zero between uses.
+     */
+    private class Workspace {
+        final DetectDescribePoint<GrayU8, TD> detector = TileQuadtree.<TD>newRecognizer().getDetector();
+        final PointDistance<TD> distance = tree.distanceFunction.newInstanceThread();
+        // description of the tree node being compared against
+        final TD nodeDescription = detector.createDescription();
+        final float[] wordWeights = new float[tree.nodes.size];
+        final DogArray_I32 touched = new DogArray_I32();
+        final int[] marks = new int[firstTile[levels]];
+        int queryCount;
+    }
+}
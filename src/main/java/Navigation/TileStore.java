@@ -0,0 +1,289 @@
+package Navigation;
+
+import boofcv.io.image.ConvertBufferedImage;
+import boofcv.struct.image.GrayU8;
+import org.bridj.util.Pair;
+
+import java.awt.image.BufferedImage;
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.SortedMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/*
+All the tiles of one granularity in a single file, instead of a directory with a PNG per tile.
+The file is memory mapped, a tile is read by copying its raw pixels straight into a GrayU8, no decoding.
+It is written with plain channel writes and unmapped on close, a file that is still mapped can't be replaced on
+Windows.
+
+Layout (big endian):
+    header      magic, version, number of tiles, offset of the first pixel block
+    index       per tile: min x, min y, max x, max y on the map, width, height, offset of its pixels (long)
+    ids         per tile: length of the id in bytes (short) then the id in UTF-8
+    pixels      per tile: width*height bytes, row by row
+Tiles are kept in the order they were given, which is the order they are added to a model.
+@yoni
+ */
+public class TileStore implements Closeable {
+    private static final int MAGIC = 0x54494C45; // "TILE"
+    private static final int VERSION = 1;
+    private static final int HEADER_BYTES = 4*4;
+    private static final int INDEX_BYTES = 6*4 + 8;
+
+    private final FileChannel channel;
+    private MappedByteBuffer buffer;// null once closed
+    // reads hold the read lock, so the mapping isn't released under them
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final String[] ids;
+    private final HashMap<String, Integer> idToTile = new HashMap<>();
+    // 4 values per tile: top left x,y then bottom right x,y
+    private final int[] bounds;
+    private final int[] widths;
+    private final int[] heights;
+    private final long[] offsets;
+
+    private TileStore(FileChannel channel) throws IOException {
+        this.channel = channel;
+        if(channel.size() > Integer.MAX_VALUE) throw new IOException("tile store is too big to map");
+        if(channel.size() < HEADER_BYTES) throw new IOException("tile store is truncated");
+        buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+        if(buffer.getInt(0) != MAGIC) throw new IOException("not a tile store");
+        if(buffer.getInt(4) != VERSION) throw new IOException("unsupported tile store version " + buffer.getInt(4));
+        int n = buffer.getInt(8);
+        int pixelsStart = buffer.getInt(12);
+        // everything is read from the mapping, a broken header must not send the reads outside of it
+        if(n < 0 || pixelsStart < HEADER_BYTES + (long)INDEX_BYTES*n) throw new IOException("corrupt tile store header");
+        if(pixelsStart > buffer.capacity()) throw new IOException("tile store is truncated");
+        ids = new String[n];
+        bounds = new int[4*n];
+        widths = new int[n];
+        heights = new int[n];
+        offsets = new long[n];
+
+        ByteBuffer header = buffer.duplicate();
+        header.position(HEADER_BYTES).limit(pixelsStart);
+        for(int i = 0; i < n; i++){
+            for(int j = 0; j < 4; j++){
+                bounds[4*i + j] = header.getInt();
+            }
+            widths[i] = header.getInt();
+            heights[i] = header.getInt();
+            offsets[i] = header.getLong();
+            if(widths[i] < 0 || heights[i] < 0 || offsets[i] < pixelsStart)
+                throw new IOException("corrupt tile store index");
+            if(offsets[i] + (long)widths[i]*heights[i] > buffer.capacity()) throw new IOException("tile store is truncated");
+        }
+        for(int i = 0; i < n; i++){
+            int length = header.remaining() < 2 ? -1 : header.getShort();
+            if(length < 0 || length > header.remaining()) throw new IOException("corrupt tile store ids");
+            byte[] id = new byte[length];
+            header.get(id);
+            ids[i] = new String(id, StandardCharsets.UTF_8);
+            idToTile.put(ids[i], i);
+        }
+    }
+
+    public static TileStore open(Path file) throws IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+        try {
+            return new TileStore(channel);
+        } catch (IOException | RuntimeException e){
+            channel.close();
+            throw e;
+        }
+    }
+
+    /*
+    Writes the tiles to a new store. Keys are the tile ids (as made by MapToData.tileCoordinatesToName without the
+    extension), their bounds on the map are parsed from them. The file is written next to the target and then moved
+    in place, so a store that exists is always complete.
+     */
+    public static void write(Path file, SortedMap<String, GrayU8> tiles) throws IOException {
+        int n = tiles.size();
+        List<byte[]> ids = new ArrayList<>();
+        long pixelsStart = HEADER_BYTES + (long)INDEX_BYTES*n;
+        for(String id : tiles.keySet()){
+            byte[] bytes = id.getBytes(StandardCharsets.UTF_8);
+            ids.add(bytes);
+            pixelsStart += 2 + bytes.length;
+        }
+        long size = pixelsStart;
+        for(GrayU8 tile : tiles.values()){
+            size += (long)tile.width*tile.height;
+        }
+        if(size > Integer.MAX_VALUE) throw new IOException("tiles don't fit in a single tile store");
+
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try(FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)){
+            // header, index and ids are small, they are put together and written at once
+            ByteBuffer buffer = ByteBuffer.allocate((int)pixelsStart);
+            buffer.putInt(MAGIC).putInt(VERSION).putInt(n).putInt((int)pixelsStart);
+
+            long offset = pixelsStart;
+            for(var entry : tiles.entrySet()){
+                Pair<Pair<Integer,Integer>,Pair<Integer,Integer>> corners = MapToData.tileNameToCoordinate(entry.getKey());
+                GrayU8 tile = entry.getValue();
+                buffer.putInt(Math.min(corners.getFirst().getFirst(), corners.getSecond().getFirst()));
+                buffer.putInt(Math.min(corners.getFirst().getSecond(), corners.getSecond().getSecond()));
+                buffer.putInt(Math.max(corners.getFirst().getFirst(), corners.getSecond().getFirst()));
+                buffer.putInt(Math.max(corners.getFirst().getSecond(), corners.getSecond().getSecond()));
+                buffer.putInt(tile.width).putInt(tile.height).putLong(offset);
+                offset += (long)tile.width*tile.height;
+            }
+            for(byte[] id : ids){
+                if(id.length > Short.MAX_VALUE) throw new IOException("tile id is too long");
+                buffer.putShort((short)id.length).put(id);
+            }
+            writeFully(out, buffer.flip());
+            // tiles may be sub-images of the map, so they are written row by row
+            for(GrayU8 tile : tiles.values()){
+                if(tile.stride == tile.width){
+                    writeFully(out, ByteBuffer.wrap(tile.data, tile.startIndex, tile.width*tile.height));
+                    continue;
+                }
+                for(int y = 0; y < tile.height; y++){
+                    writeFully(out, ByteBuffer.wrap(tile.data, tile.startIndex + y*tile.stride, tile.width));
+                }
+            }
+            out.force(true);
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static void writeFully(FileChannel out, ByteBuffer buffer) throws IOException {
+        while(buffer.hasRemaining()){
+            out.write(buffer);
+        }
+    }
+
+    public int size(){
+        return ids.length;
+    }
+
+    // tile ids in the order they are stored
+    public List<String> getIds(){
+        return Arrays.asList(ids.clone());
+    }
+
+    // index of the tile with this id, -1 if it isn't in the store
+    public int findTile(String id){
+        Integer tile = idToTile.get(id);
+        return tile == null ? -1 : tile;
+    }
+
+    public String getId(int tile){
+        return ids[tile];
+    }
+
+    public int getWidth(int tile){
+        return widths[tile];
+    }
+
+    public int getHeight(int tile){
+        return heights[tile];
+    }
+
+    public int getMinX(int tile){
+        return bounds[4*tile];
+    }
+
+    public int getMinY(int tile){
+        return bounds[4*tile+1];
+    }
+
+    public int getMaxX(int tile){
+        return bounds[4*tile+2];
+    }
+
+    public int getMaxY(int tile){
+        return bounds[4*tile+3];
+    }
+
+    /*
+    Copies the tile's pixels into output, which is reshaped to the tile's size. If output is null a new image is made.
+    Reads don't move any shared position so several threads can read tiles at once.
+     */
+    public GrayU8 readTile(int tile, GrayU8 output){
+        if(output == null) output = new GrayU8(widths[tile], heights[tile]);
+        else output.reshape(widths[tile], heights[tile]);
+        int offset = (int)offsets[tile];
+        lock.readLock().lock();
+        try {
+            if(buffer == null) throw new IllegalStateException("tile store is closed");
+            if(output.stride == output.width && output.startIndex == 0){
+                buffer.get(offset, output.data, 0, output.width*output.height);
+            }
+            else {
+                for(int y = 0; y < output.height; y++){
+                    buffer.get(offset + y*output.width, output.data, output.startIndex + y*output.stride, output.width);
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        return output;
+    }
+
+    // every tile in store order, each in its own image
+    public List<GrayU8> readAll(){
+        List<GrayU8> tiles = new ArrayList<>();
+        for(int i = 0; i < ids.length; i++){
+            tiles.add(readTile(i, null));
+        }
+        return tiles;
+    }
+
+    public BufferedImage readBufferedImage(int tile){
+        return ConvertBufferedImage.convertTo(readTile(tile, null), null);
+    }
+
+    /*
+    Unmaps the file and closes it. Reads that started before wait for it, later reads throw.
+     */
+    @Override
+    public void close() throws IOException {
+        lock.writeLock().lock();
+        try {
+            if(buffer != null){
+                unmap(buffer);
+                buffer = null;
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+        channel.close();
+    }
+
+    /*
+    Java 17 has no public way to unmap a buffer, Unsafe.invokeCleaner (jdk.unsupported) does it right away.
+    Without it the mapping stays until the buffer is garbage collected.
+     */
+    private static void unmap(MappedByteBuffer buffer){
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Field field = unsafeClass.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            invokeCleaner.invoke(field.get(null), buffer);
+        } catch (ReflectiveOperationException | RuntimeException e){
+            System.err.println("couldn't unmap the tile store, it is released by the garbage collector: " + e);
+        }
+    }
+}
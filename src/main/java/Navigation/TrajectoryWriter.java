@@ -0,0 +1,78 @@
+package Navigation;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Locale;
+
+/*
+Where the drone was on every processed frame of a video, as a csv file:
+    frame,x,y,std
+x and y are in map pixels and std is how uncertain they were (see PositionFilter).
+Written from a single pipeline stage, in the order the frames were processed.
+@yoni
+ */
+public class TrajectoryWriter implements Closeable {
+    private final Path path;
+    private final BufferedWriter writer;
+    private int rows;
+
+    public TrajectoryWriter(Path path) throws IOException {
+        this.path = path;
+        if(path.getParent() != null) Files.createDirectories(path.getParent());
+        writer = Files.newBufferedWriter(path);
+        writer.write("frame,x,y,std");
+        writer.newLine();
+    }
+
+    // the trajectory of a video goes next to the others, named after the video
+    public static Path pathFor(String videoFileName){
+        return pathFor(videoFileName, false);
+    }
+
+    /*
+    With withDirectory the name of the directory the video is in comes first, e.g. flight1_DJI_0001, for videos
+    that have the same name in different directories.
+     */
+    public static Path pathFor(String videoFileName, boolean withDirectory){
+        Path video = Path.of(videoFileName);
+        String name = video.getFileName().toString();
+        int dot = name.lastIndexOf('.');
+        if(dot > 0) name = name.substring(0, dot);
+        if(withDirectory){
+            Path directory = video.toAbsolutePath().normalize().getParent();
+            if(directory != null && directory.getFileName() != null){
+                name = directory.getFileName() + "_" + name;
+            }
+        }
+        return Path.of(FinalVariables.TRAJECTORY_PATH_GENERIC + name + FinalVariables.TYPE_TRAJECTORY);
+    }
+
+    public void write(int frameIndex, PositionFilter position){
+        var location = position.getLocation();
+        try {
+            writer.write(String.format(Locale.ROOT, "%d,%.2f,%.2f,%.2f", frameIndex, location.x, location.y,
+                    position.getStd()));
+            writer.newLine();
+        } catch (IOException e){
+            throw new UncheckedIOException("failed to write trajectory " + path, e);
+        }
+        rows++;
+    }
+
+    public Path getPath(){
+        return path;
+    }
+
+    public int getRows(){
+        return rows;
+    }
+
+    @Override
+    public void close() throws IOException {
+        writer.close();
+    }
+}
@@ -0,0 +1,46 @@
+package Navigation;
+
+import java.util.function.Supplier;
+
+/*
+Hands the newest drawing from a producer thread to the Swing EDT without either one waiting for the other.
+The producer draws into the back buffer and publishes it, the consumer takes the latest published buffer.
+A buffer is never written while the consumer still reads it, and buffers are reused so nothing is allocated.
+@yoni
+ */
+public class TripleBuffer<T> {
+    private T back;     // producer only
+    private T ready;    // latest published, swapped under the lock
+    private T front;    // consumer only
+    private boolean fresh;  // ready holds something the consumer hasn't taken yet
+
+    public TripleBuffer(Supplier<T> factory){
+        back = factory.get();
+        ready = factory.get();
+        front = factory.get();
+    }
+
+    // buffer the producer may write into
+    public T getBack(){
+        return back;
+    }
+
+    // makes the back buffer the latest drawing, the producer gets a free buffer in exchange
+    public synchronized void publish(){
+        T tmp = ready;
+        ready = back;
+        back = tmp;
+        fresh = true;
+    }
+
+    // latest published buffer, or the one the consumer had last time if nothing new was published
+    public synchronized T acquireFront(){
+        if(fresh){
+            T tmp = front;
+            front = ready;
+            ready = tmp;
+            fresh = false;
+        }
+        return front;
+    }
+}
@@ -0,0 +1,61 @@
+package Navigation;
+
+import boofcv.struct.image.GrayF32;
+import boofcv.struct.image.GrayU8;
+import boofcv.struct.image.Planar;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+A single video frame travelling through the pipeline, tagged with its index in the video.
+If the image came from a FramePool it goes back there once the last holder releases the frame.
+The gray view is what the map is searched with, made on first use and shared by everything that needs it,
+it goes back to the pool with the image.
+ */
+public class VideoFrame implements Releasable {
+    public final int index;
+    public final Planar<GrayF32> image;
+    private final FramePool pool;
+    private final AtomicInteger references = new AtomicInteger(1);
+    private GrayU8 gray;
+
+    public VideoFrame(int index, Planar<GrayF32> image){
+        this(index, image, null);
+    }
+
+    public VideoFrame(int index, Planar<GrayF32> image, FramePool pool){
+        this.index = index;
+        this.image = image;
+        this.pool = pool;
+    }
+
+    // the image in gray, same resolution. only valid while the frame is held
+    public synchronized GrayU8 gray(){
+        if(gray == null){
+            gray = ImageUtils.toGrayU8(image, pool == null ? null : pool.acquireGray());
+        }
+        return gray;
+    }
+
+    @Override
+    public void retain(){
+        if(references.getAndIncrement() <= 0){
+            throw new IllegalStateException("frame " + index + " was already released");
+        }
+    }
+
+    @Override
+    public void release(){
+        int left = references.decrementAndGet();
+        if(left == 0 && pool != null){
+            synchronized(this){
+                if(gray != null) pool.releaseGray(gray);
+                gray = null;
+            }
+            pool.release(image);
+        }
+        else if(left < 0){
+            throw new IllegalStateException("frame " + index + " released too many times");
+        }
+    }
+}
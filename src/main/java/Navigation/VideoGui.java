@@ -6,30 +6,88 @@ import boofcv.io.image.ConvertBufferedImage;
 import boofcv.struct.image.GrayF32;
 import boofcv.struct.image.Planar;
 
+import javax.swing.*;
 import java.awt.*;
 import java.awt.image.BufferedImage;
+import java.util.concurrent.atomic.AtomicBoolean;
 
+/*
+Window showing the video. Frames are converted into one of three reused images and handed to the Swing EDT,
+so the processing thread neither allocates nor waits for drawing. Frames arriving faster than the display
+fps cap are skipped, and in headless mode nothing is drawn at all.
+ */
 public class VideoGui {
     ImageGridPanel gui;
+    private final RenderConfig render;
+    private volatile TripleBuffer<BufferedImage> buffers;
+    private long lastDrawn;
+    // a repaint is already queued on the EDT, no need to queue another
+    private final AtomicBoolean repaintQueued = new AtomicBoolean();
+    private final Runnable showLatest = this::showLatest;
+
     public VideoGui(Planar<GrayF32> frame){
+        this(frame, RenderConfig.unlimited());
+    }
+
+    public VideoGui(Planar<GrayF32> frame, RenderConfig render){
+        this.render = render;
+        if(render.headless) return;
         // Create the GUI for displaying the results + input image
         gui = new ImageGridPanel(1, 1);
         // (0,0) for input, (0,1) for mosiac
         gui.setImage(0, 0, new BufferedImage(frame.width, frame.height, BufferedImage.TYPE_INT_RGB));
         gui.setPreferredSize(new Dimension(frame.width, frame.height));
+        createBuffers(frame.width, frame.height);
     }
-    public void update(BufferedImage frame){
-        gui.setImage(0, 0, frame);
-        gui.repaint();
 
+    private void createBuffers(int width, int height){
+        buffers = new TripleBuffer<>(() -> new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB));
     }
+
+    public void update(BufferedImage frame){
+        if(!startDrawing(frame.getWidth(), frame.getHeight())) return;
+        Graphics2D g2 = buffers.getBack().createGraphics();
+        g2.drawImage(frame, 0, 0, null);
+        g2.dispose();
+        finishDrawing();
+    }
+
     public void update(Planar<GrayF32> frame){
-        // clear map from previous drawings by replacing image with drawings with fresh image
-//        gui.setImage(0,0, ConvertBufferedImage.convertTo(frame, null, true));
-        BufferedImage bframe = ConvertBufferedImage.convertTo(frame,null, true);
-        update(bframe);
+        if(!startDrawing(frame.width, frame.height)) return;
+        // convert into the back buffer instead of a new image
+        ConvertBufferedImage.convertTo(frame, buffers.getBack(), true);
+        finishDrawing();
     }
+
+    // false if this frame shouldn't be drawn
+    private boolean startDrawing(int width, int height){
+        if(render.headless) return false;
+        long now = System.nanoTime();
+        if(lastDrawn != 0 && now - lastDrawn < render.minIntervalNanos()) return false;
+        lastDrawn = now;
+        BufferedImage back = buffers.getBack();
+        if(back.getWidth() != width || back.getHeight() != height){
+            createBuffers(width, height);
+        }
+        return true;
+    }
+
+    private void finishDrawing(){
+        buffers.publish();
+        if(repaintQueued.compareAndSet(false, true)){
+            SwingUtilities.invokeLater(showLatest);
+        }
+    }
+
+    // runs on the EDT
+    private void showLatest(){
+        repaintQueued.set(false);
+        gui.setImage(0, 0, buffers.acquireFront());
+        gui.repaint();
+    }
+
     public void display(){
+        if(render.headless) return;
         ShowImages.showWindow(gui, "vid", true);
     }
 }
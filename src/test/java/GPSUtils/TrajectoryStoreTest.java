@@ -0,0 +1,129 @@
+package GPSUtils;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TrajectoryStoreTest {
+    @TempDir
+    Path dir;
+
+    // the values of row i, different in every column so a mixed up column shows
+    private static void append(TrajectoryStore store, int i) {
+        store.append(0.5 * i, 10 + i, 20 - i, 3 * i, i % 360, 1f / (i + 1));
+    }
+
+    private static void assertRow(TrajectoryStore store, int i) {
+        assertEquals(0.5 * i, store.getTime(i));
+        assertEquals(10 + i, store.getX(i));
+        assertEquals(20 - i, store.getY(i));
+        assertEquals(3 * i, store.getZ(i));
+        assertEquals(i % 360, store.getHeading(i));
+        assertEquals(1f / (i + 1), store.getConfidence(i));
+    }
+
+    @Test
+    void rowsSurviveReopening() throws IOException {
+        Path file = dir.resolve("track.trj");
+        try (TrajectoryStore store = TrajectoryStore.create(file, 8)) {
+            for (int i = 0; i < 20; i++) {
+                assertEquals(i, store.append(0.5 * i, 10 + i, 20 - i, 3 * i, i % 360, 1f / (i + 1)));
+            }
+        }
+        try (TrajectoryStore store = TrajectoryStore.openForAppend(file)) {
+            assertEquals(20, store.size());
+            assertEquals(8, store.getBlockRows());
+            for (int i = 20; i < 30; i++) {
+                append(store, i);
+            }
+        }
+        try (TrajectoryStore store = TrajectoryStore.openReadOnly(file)) {
+            assertEquals(30, store.size());
+            for (int i = 0; i < 30; i++) {
+                assertRow(store, i);
+            }
+            Point point = store.getPoint(5);
+            assertArrayEquals(new double[]{15, 15, 15}, new double[]{point.x(), point.y(), point.z()});
+            assertEquals(4, store.rowAtTime(2));
+            assertEquals(30, store.rowAtTime(100));
+            assertThrows(IllegalStateException.class, () -> append(store, 30));
+            assertThrows(IndexOutOfBoundsException.class, () -> store.getX(30));
+        }
+    }
+
+    @Test
+    void readsColumnsAcrossBlocks() throws IOException {
+        try (TrajectoryStore store = TrajectoryStore.create(dir.resolve("track.trj"), 4)) {
+            for (int i = 0; i < 50; i++) {
+                append(store, i);
+            }
+            double[] x = new double[45];
+            store.read(TrajectoryStore.Column.X, 3, 48, x, 0);
+            double[] heading = new double[45];
+            store.read(TrajectoryStore.Column.HEADING, 3, 48, heading, 0);
+            for (int i = 0; i < x.length; i++) {
+                assertEquals(10 + 3 + i, x[i]);
+                assertEquals(3 + i, heading[i]);
+            }
+        }
+    }
+
+    @Test
+    void readerSeesRowsPastItsFirstMapping() throws IOException {
+        Path file = dir.resolve("track.trj");
+        try (TrajectoryStore writer = TrajectoryStore.create(file, 4)) {
+            append(writer, 0);
+            try (TrajectoryStore reader = TrajectoryStore.openReadOnly(file)) {
+                assertEquals(1, reader.size());
+                // the file grows by several blocks after the reader opened it
+                for (int i = 1; i < 25; i++) {
+                    append(writer, i);
+                }
+                assertEquals(25, reader.size());
+                for (int i = 0; i < 25; i++) {
+                    assertRow(reader, i);
+                }
+            }
+        }
+    }
+
+    @Test
+    void downsampleKeepsTheLastRow() throws IOException {
+        try (TrajectoryStore store = TrajectoryStore.create(dir.resolve("track.trj"), 16)) {
+            assertEquals(0, store.downsample(10).size());
+            for (int i = 0; i < 101; i++) {
+                append(store, i);
+            }
+            TrajectoryStore.View view = store.downsample(10);
+            assertEquals(10, view.size());
+            assertEquals(100, view.row(view.size() - 1));
+            for (int i = 1; i < view.size(); i++) {
+                assertEquals(11, view.row(i) - view.row(i - 1));
+            }
+            Point[] points = view.toPoints();
+            assertEquals(store.getX(view.row(3)), points[3].x());
+            assertEquals(store.getZ(view.row(3)), points[3].z());
+
+            // fewer rows than asked for keeps all of them
+            assertEquals(101, store.downsample(1000).size());
+        }
+    }
+
+    @Test
+    void closedStoreCantBeRead() throws IOException {
+        TrajectoryStore store = TrajectoryStore.create(dir.resolve("track.trj"), 4);
+        for (int i = 0; i < 10; i++) {
+            append(store, i);
+        }
+        store.close();
+        assertThrows(IllegalStateException.class, () -> store.getX(0));
+        assertThrows(IllegalStateException.class, () -> store.read(TrajectoryStore.Column.TIME, 0, 1, new double[1], 0));
+        assertThrows(IllegalStateException.class, () -> append(store, 10));
+        // closing twice is harmless
+        store.close();
+    }
+}
@@ -0,0 +1,148 @@
+package Navigation;
+
+import boofcv.abst.scene.SceneRecognition;
+import boofcv.struct.image.GrayU8;
+import org.bridj.util.Pair;
+import org.ddogleg.struct.DogArray;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class LocalizationServerTest {
+    private static final GrayU8 map = TestImages.texturedMap(320, 240, 3);
+    // two granularities of the same map, so answers of the wrong model would show
+    private static List<LocationFromMap> models;
+    private static final List<GrayU8> crops = new ArrayList<>();
+    private static final List<Pair<Integer,Integer>> centers = new ArrayList<>();
+
+    private LocalizationServer server;
+    private LocalizationClient client;
+
+    @BeforeAll
+    static void buildModels(){
+        models = new ArrayList<>();
+        for(int tilesPerSide : new int[]{3, 4}){
+            TreeMap<String, GrayU8> tiles = MapToData.splitMap(map, tilesPerSide);
+            LocationFromMap model = new LocationFromMap(LocationFromMap.buildModel(new ArrayList<>(tiles.keySet()),
+                    new ArrayList<>(tiles.values()), 2));
+            // every answer is a real query, not a copy of an earlier one
+            model.setQueryCache(null);
+            models.add(model);
+        }
+        Random random = new Random(3);
+        for(int i = 0; i < 20; i++){
+            int x = random.nextInt(map.width - 80), y = random.nextInt(map.height - 80);
+            crops.add(map.subimage(x, y, x + 80, y + 80, null).clone());
+            centers.add(new Pair<>(x + 40, y + 40));
+        }
+    }
+
+    @BeforeEach
+    void start() throws IOException {
+        server = new LocalizationServer(models, 0, 2);
+        client = new LocalizationClient(server.getPort());
+    }
+
+    @AfterEach
+    void stop() throws IOException {
+        client.close();
+        server.close();
+    }
+
+    private static void assertSameMatches(DogArray<SceneRecognition.Match> expected,
+                                          DogArray<SceneRecognition.Match> actual){
+        assertEquals(expected.size, actual.size);
+        for(int i = 0; i < expected.size; i++){
+            assertEquals(expected.get(i).id, actual.get(i).id);
+            assertEquals(expected.get(i).error, actual.get(i).error);
+        }
+    }
+
+    @Test
+    void clientSeesTheServersModels(){
+        assertTrue(server.getPort() > 0);
+        assertEquals(2, client.getNumModels());
+        // built in memory, not a granularity of the map
+        assertEquals(-1, client.getDataset(0));
+        assertEquals(-1, client.getDataset(1));
+    }
+
+    @Test
+    void answersAreTheModelsAnswers() throws InterruptedException {
+        int found = 0;
+        for(int i = 0; i < crops.size(); i++){
+            int model = i % 2;
+            DogArray<SceneRecognition.Match> direct = models.get(model).getMatchesArray(crops.get(i), centers.get(i));
+            assertSameMatches(direct, client.getMatchesArray(model, crops.get(i), centers.get(i)));
+            if(direct.size > 0) found++;
+        }
+        assertTrue(found > 0);
+        assertEquals(crops.size(), server.getAnswered());
+    }
+
+    @Test
+    void pipelinedRequestsGetTheirOwnAnswers() throws Exception {
+        try(LocalizationClient other = new LocalizationClient(server.getPort())){
+            // everything is sent before any answer is read, from two connections at once
+            List<CompletableFuture<DogArray<SceneRecognition.Match>>> answers = new ArrayList<>();
+            for(int i = 0; i < 100; i++){
+                int crop = i % crops.size();
+                answers.add((i % 3 == 0 ? other : client).query(i % 2, crops.get(crop), centers.get(crop)));
+            }
+            for(int i = 0; i < answers.size(); i++){
+                int crop = i % crops.size();
+                DogArray<SceneRecognition.Match> direct = models.get(i % 2).getMatchesArray(crops.get(crop), centers.get(crop));
+                assertSameMatches(direct, answers.get(i).get(30, TimeUnit.SECONDS));
+            }
+        }
+        assertEquals(100, server.getAnswered());
+        // requests that arrived together were batched
+        assertTrue(server.getBatches() < 100);
+    }
+
+    @Test
+    void unknownModelIsAnError() throws InterruptedException {
+        var e = assertThrows(IllegalArgumentException.class,
+                () -> client.getMatchesArray(2, crops.get(0), centers.get(0)));
+        assertTrue(e.getMessage().contains("no model 2"), e.getMessage());
+        assertThrows(IllegalArgumentException.class, () -> client.getMatchesArray(-1, crops.get(0), centers.get(0)));
+        // the connection is still good
+        assertSameMatches(models.get(0).getMatchesArray(crops.get(0), centers.get(0)),
+                client.getMatchesArray(0, crops.get(0), centers.get(0)));
+    }
+
+    @Test
+    void locationOutsideTheTilesIsAnError() throws InterruptedException {
+        var e = assertThrows(IllegalArgumentException.class,
+                () -> client.getMatchesArray(0, crops.get(0), new Pair<>(-500, -500)));
+        assertTrue(e.getMessage().contains("not inside any tile"), e.getMessage());
+        assertThrows(IllegalArgumentException.class,
+                () -> client.getMatchesArray(1, crops.get(0), new Pair<>(map.width + 10, 10)));
+        assertSameMatches(models.get(1).getMatchesArray(crops.get(1), centers.get(1)),
+                client.getMatchesArray(1, crops.get(1), centers.get(1)));
+    }
+
+    @Test
+    void closedServerFailsTheRequests() throws IOException {
+        server.close();
+        // whether the client already saw the connection go or finds out with this request, it isn't left waiting
+        CompletableFuture<DogArray<SceneRecognition.Match>> answer = client.query(0, crops.get(0), centers.get(0));
+        var e = assertThrows(ExecutionException.class, () -> answer.get(30, TimeUnit.SECONDS));
+        assertInstanceOf(IOException.class, e.getCause());
+        assertThrows(UncheckedIOException.class, () -> client.getMatchesArray(0, crops.get(0), centers.get(0)));
+        assertThrows(IOException.class, () -> new LocalizationClient(server.getPort()).close());
+    }
+}
@@ -0,0 +1,96 @@
+package Navigation;
+
+import boofcv.abst.scene.SceneRecognition;
+import boofcv.struct.image.GrayU8;
+import org.ddogleg.struct.DogArray;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SharedVocabularyTest {
+    private static final GrayU8 map = TestImages.texturedMap(320, 240, 2);
+    private static SharedVocabulary<?> vocabulary;
+    private static List<String> names;
+    private static List<GrayU8> tiles;
+
+    @TempDir
+    Path dir;
+
+    @BeforeAll
+    static void learn(){
+        TreeMap<String, GrayU8> split = MapToData.splitMap(map, 4);
+        names = new ArrayList<>(split.keySet());
+        tiles = new ArrayList<>(split.values());
+        vocabulary = SharedVocabulary.learn(tiles, 2);
+    }
+
+    // crops of the map around every tile and between them
+    private static List<GrayU8> queries(){
+        List<GrayU8> queries = new ArrayList<>();
+        for(int y = 0; y + 80 <= map.height; y += 40){
+            for(int x = 0; x + 80 <= map.width; x += 40){
+                queries.add(map.subimage(x, y, x + 80, y + 80, null).clone());
+            }
+        }
+        return queries;
+    }
+
+    private static void assertSameAnswers(SceneRecognition<GrayU8> expected, SceneRecognition<GrayU8> actual){
+        var expectedMatches = new DogArray<>(SceneRecognition.Match::new);
+        var actualMatches = new DogArray<>(SceneRecognition.Match::new);
+        int found = 0;
+        for(GrayU8 query : queries()){
+            boolean expectedFound = expected.query(query, null, 5, expectedMatches);
+            assertEquals(expectedFound, actual.query(query, null, 5, actualMatches));
+            assertEquals(expectedMatches.size, actualMatches.size);
+            for(int i = 0; i < expectedMatches.size; i++){
+                assertEquals(expectedMatches.get(i).id, actualMatches.get(i).id);
+                assertEquals(expectedMatches.get(i).error, actualMatches.get(i).error);
+            }
+            if(expectedFound) found++;
+        }
+        // the comparison means nothing if nothing was found
+        assertTrue(found > 0);
+    }
+
+    @Test
+    void loadedIndexAnswersLikeTheSavedOne(){
+        SceneRecognition<GrayU8> indexed = vocabulary.index(names, tiles, 2);
+        Path file = dir.resolve("index.bin");
+        vocabulary.saveIndex(indexed, file);
+        assertFalse(Files.exists(dir.resolve("index.bin.tmp")));
+
+        SceneRecognition<GrayU8> loaded = vocabulary.loadIndex(file);
+        assertEquals(indexed.getImageIds(null), loaded.getImageIds(null));
+        assertSameAnswers(indexed, loaded);
+    }
+
+    @Test
+    void savedVocabularyLoadsTheSameIndex(){
+        SceneRecognition<GrayU8> indexed = vocabulary.index(names, tiles, 2);
+        Path index = dir.resolve("index.bin");
+        vocabulary.saveIndex(indexed, index);
+        Path tree = dir.resolve("vocabulary.bin");
+        vocabulary.save(tree);
+
+        // as when the process starts again, neither is in memory
+        SharedVocabulary<?> reloaded = SharedVocabulary.load(tree);
+        assertEquals(vocabulary.getTree().nodes.size, reloaded.getTree().nodes.size);
+        assertSameAnswers(indexed, reloaded.loadIndex(index));
+    }
+
+    @Test
+    void indexOfAnotherVocabularyIsRejected(){
+        SceneRecognition<GrayU8> other = LocationFromMap.buildModel(names, tiles, 2);
+        assertThrows(IllegalArgumentException.class, () -> vocabulary.saveIndex(other, dir.resolve("index.bin")));
+        assertThrows(RuntimeException.class, () -> vocabulary.loadIndex(dir.resolve("missing.bin")));
+    }
+}
@@ -0,0 +1,42 @@
+package Navigation;
+
+import boofcv.alg.filter.blur.GBlurImageOps;
+import boofcv.alg.misc.ImageMiscOps;
+import boofcv.struct.image.GrayU8;
+
+import java.util.Random;
+
+/*
+Small maps made up for the tests, so they don't need the map in resources.
+@yoni
+ */
+final class TestImages {
+    private TestImages(){}
+
+    /*
+    Overlapping rectangles of random gray levels, slightly blurred. Has corners and blobs everywhere, so the feature
+    detector of the models finds enough in every tile. The same seed gives the same map.
+     */
+    static GrayU8 texturedMap(int width, int height, long seed){
+        Random random = new Random(seed);
+        GrayU8 map = new GrayU8(width, height);
+        ImageMiscOps.fill(map, 128);
+        int rectangles = width*height/150;
+        for(int i = 0; i < rectangles; i++){
+            int w = 4 + random.nextInt(24), h = 4 + random.nextInt(24);
+            ImageMiscOps.fillRectangle(map, random.nextInt(256), random.nextInt(width) - w/2,
+                    random.nextInt(height) - h/2, w, h);
+        }
+        return GBlurImageOps.gaussian(map, null, -1, 1, null);
+    }
+
+    static boolean samePixels(GrayU8 a, GrayU8 b){
+        if(a.width != b.width || a.height != b.height) return false;
+        for(int y = 0; y < a.height; y++){
+            for(int x = 0; x < a.width; x++){
+                if(a.get(x, y) != b.get(x, y)) return false;
+            }
+        }
+        return true;
+    }
+}
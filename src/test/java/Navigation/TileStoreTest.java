@@ -0,0 +1,113 @@
+package Navigation;
+
+import boofcv.struct.image.GrayU8;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TileStoreTest {
+    @TempDir
+    Path dir;
+
+    // 4 by 3 tiles of 26 pixels, cut from the map as sub-images like MapToData does
+    private final GrayU8 map = TestImages.texturedMap(110, 80, 1);
+    private final TreeMap<String, GrayU8> tiles = MapToData.splitMap(map, 3);
+
+    private Path writeStore() throws IOException {
+        Path file = dir.resolve("tiles.bin");
+        TileStore.write(file, tiles);
+        return file;
+    }
+
+    @Test
+    void tilesComeBackAsWritten() throws IOException {
+        Path file = writeStore();
+        assertFalse(Files.exists(file.resolveSibling("tiles.bin.tmp")));
+        try(TileStore store = TileStore.open(file)){
+            assertEquals(12, store.size());
+            assertEquals(new ArrayList<>(tiles.keySet()), store.getIds());
+            GrayU8 reused = new GrayU8(3, 3);
+            int tile = 0;
+            for(var entry : tiles.entrySet()){
+                assertEquals(entry.getKey(), store.getId(tile));
+                assertEquals(tile, store.findTile(entry.getKey()));
+                // the bounds are the ones in the id, the pixels are the map's inside them
+                var corners = MapToData.tileNameToCoordinate(entry.getKey());
+                assertEquals(corners.getFirst().getFirst(), store.getMinX(tile));
+                assertEquals(corners.getFirst().getSecond(), store.getMinY(tile));
+                assertEquals(corners.getSecond().getFirst(), store.getMaxX(tile));
+                assertEquals(corners.getSecond().getSecond(), store.getMaxY(tile));
+                assertEquals(26, store.getWidth(tile));
+                assertEquals(26, store.getHeight(tile));
+
+                GrayU8 expected = map.subimage(store.getMinX(tile), store.getMinY(tile), store.getMaxX(tile),
+                        store.getMaxY(tile), null);
+                assertTrue(TestImages.samePixels(expected, store.readTile(tile, null)), entry.getKey());
+                assertTrue(TestImages.samePixels(expected, store.readTile(tile, reused)), entry.getKey());
+                tile++;
+            }
+            assertEquals(-1, store.findTile("tile_9-9_0-0-1-1"));
+
+            // into a sub-image of the tile's size, rows are copied one by one
+            GrayU8 canvas = new GrayU8(40, 40);
+            GrayU8 window = canvas.subimage(5, 5, 31, 31, null);
+            store.readTile(7, window);
+            assertTrue(TestImages.samePixels(store.readTile(7, null), window));
+
+            List<GrayU8> all = store.readAll();
+            assertEquals(12, all.size());
+            assertTrue(TestImages.samePixels(store.readTile(11, null), all.get(11)));
+        }
+    }
+
+    @Test
+    void closedStoreCantBeRead() throws IOException {
+        TileStore store = TileStore.open(writeStore());
+        store.close();
+        assertThrows(IllegalStateException.class, () -> store.readTile(0, null));
+        // the file isn't held anymore, it can be replaced
+        TileStore.write(dir.resolve("tiles.bin"), tiles);
+    }
+
+    @Test
+    void truncatedStoreIsRejected() throws IOException {
+        Path file = writeStore();
+        long size = Files.size(file);
+        // cut in the pixels, in the ids, in the index and in the header
+        for(long cut : new long[]{size - 1, size - 26*26*12, 16 + 32*12 + 5, 16 + 40, 10, 0}){
+            Files.copy(writeStore(), dir.resolve("cut.bin"), StandardCopyOption.REPLACE_EXISTING);
+            try(FileChannel channel = FileChannel.open(dir.resolve("cut.bin"), StandardOpenOption.WRITE)){
+                channel.truncate(cut);
+            }
+            assertThrows(IOException.class, () -> TileStore.open(dir.resolve("cut.bin")), "cut at " + cut);
+        }
+    }
+
+    @Test
+    void corruptStoreIsRejected() throws IOException {
+        // magic, version, number of tiles, first pixel, a tile's width, a tile's offset, an id's length
+        int[][] corruptions = {{0, 0x12345678}, {4, 99}, {8, 1 << 20}, {12, 3}, {16 + 16, -5},
+                {16 + 28, 0}, {16 + 32*12, 0x7FFF0000}};
+        for(int[] corruption : corruptions){
+            Path file = writeStore();
+            try(FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)){
+                channel.write(ByteBuffer.allocate(4).putInt(0, corruption[1]), corruption[0]);
+            }
+            assertThrows(IOException.class, () -> TileStore.open(file), "corrupt at " + corruption[0]);
+        }
+        Files.write(dir.resolve("other.bin"), "not tiles at all, just some text".getBytes());
+        assertThrows(IOException.class, () -> TileStore.open(dir.resolve("other.bin")));
+    }
+}
@@ -0,0 +1,82 @@
+package GPSUtils;
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+import static GPSUtils.CoordinateConverter.*;
+
+/**
+ * The bulk conversions of CoordinateConverter on the JDK Vector API, as many
+ * points at a time as fit in a vector register. Only loaded when the
+ * jdk.incubator.vector module is present, see CoordinateConverter.VECTOR.
+ * The formulas are the ones of the scalar bulk conversions, line for line.
+ * <p>
+ * Lives in its own source set (src/vector/java), the only one compiled with
+ * the incubator module, so the rest of the build stays free of its warning.
+ * CoordinateConverter finds it by name and uses it through
+ * {@link CoordinateConverter.BulkConversions}.
+ */
+final class CoordinateConverterVector implements CoordinateConverter.BulkConversions {
+    private static final VectorSpecies<Double> SPECIES = DoubleVector.SPECIES_PREFERRED;
+
+    CoordinateConverterVector() {
+    }
+
+    /**
+     * Converts the points that fill whole vectors and returns how many that
+     * is, the rest are left to the scalar loop.
+     */
+    @Override
+    public int xyzToLatLon(double[] x, double[] y, double[] z,
+                           double[] lat, double[] lon, double[] height, int length, double scale) {
+        int bound = SPECIES.loopBound(length);
+        for (int i = 0; i < bound; i += SPECIES.length()) {
+            DoubleVector xi = DoubleVector.fromArray(SPECIES, x, i);
+            DoubleVector yi = DoubleVector.fromArray(SPECIES, y, i);
+            DoubleVector zi = DoubleVector.fromArray(SPECIES, z, i);
+            DoubleVector W = xi.mul(xi).add(yi.mul(yi)).sqrt();
+
+            DoubleVector tanBZero = zi.mul(A).div(W.mul(B));
+            DoubleVector cosBZero = DoubleVector.broadcast(SPECIES, 1.0).div(tanBZero.mul(tanBZero).add(1.0).sqrt());
+            DoubleVector sinBZero = tanBZero.mul(cosBZero);
+            DoubleVector tanPhi = zi.add(sinBZero.mul(sinBZero).mul(sinBZero).mul(E_PRIME_SQUARED * B))
+                    .div(W.sub(cosBZero.mul(cosBZero).mul(cosBZero).mul(A * E_SQUARED)));
+            DoubleVector cosPhi = DoubleVector.broadcast(SPECIES, 1.0).div(tanPhi.mul(tanPhi).add(1.0).sqrt());
+            DoubleVector sinPhi = tanPhi.mul(cosPhi);
+            DoubleVector rSubN = DoubleVector.broadcast(SPECIES, A * A)
+                    .div(cosPhi.mul(cosPhi).mul(A * A).add(sinPhi.mul(sinPhi).mul(B * B)).sqrt());
+
+            tanPhi.lanewise(VectorOperators.ATAN).mul(scale).intoArray(lat, i);
+            yi.lanewise(VectorOperators.ATAN2, xi).mul(scale).intoArray(lon, i);
+            W.div(cosPhi).sub(rSubN).intoArray(height, i);
+        }
+        return bound;
+    }
+
+    /**
+     * Converts the points that fill whole vectors and returns how many that
+     * is, the rest are left to the scalar loop.
+     */
+    @Override
+    public int getXYZfromLatLon(double[] lat, double[] lon, double[] height,
+                                double[] x, double[] y, double[] z, int length, double scale) {
+        int bound = SPECIES.loopBound(length);
+        for (int i = 0; i < bound; i += SPECIES.length()) {
+            DoubleVector latitude = DoubleVector.fromArray(SPECIES, lat, i).mul(scale);
+            DoubleVector longitude = DoubleVector.fromArray(SPECIES, lon, i).mul(scale);
+            DoubleVector h = DoubleVector.fromArray(SPECIES, height, i);
+            DoubleVector cosLat = latitude.lanewise(VectorOperators.COS);
+            DoubleVector sinLat = latitude.lanewise(VectorOperators.SIN);
+
+            DoubleVector rSubN = DoubleVector.broadcast(SPECIES, A * A)
+                    .div(cosLat.mul(cosLat).mul(A * A).add(sinLat.mul(sinLat).mul(B * B)).sqrt());
+
+            DoubleVector horizontal = rSubN.add(h).mul(cosLat);
+            horizontal.mul(longitude.lanewise(VectorOperators.COS)).intoArray(x, i);
+            horizontal.mul(longitude.lanewise(VectorOperators.SIN)).intoArray(y, i);
+            rSubN.mul((B * B) / (A * A)).add(h).mul(sinLat).intoArray(z, i);
+        }
+        return bound;
+    }
+}